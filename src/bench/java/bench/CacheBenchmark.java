@@ -0,0 +1,114 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The read-through WeatherCache under a Zipfian key popularity, as GET_WEATHER traffic skews towards a few big cities.
+// A miss costs a simulated database read of loadCost CPU tokens; invalidatePercent of the operations invalidate their
+// key instead, as provisions do. The hit ratio and evictions are printed after each trial.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class CacheBenchmark {
+    private static final int SAMPLES = 1 << 20;
+    // Estimated footprint of one cached entry, as WeatherCache counts it for a three-day forecast
+    private static final long ENTRY_BYTES = 330;
+
+    @Param({"10000", "100000", "1000000"})
+    int locations;
+
+    // Zipf exponent: the k-th most popular location is asked for in proportion to 1 / k^skew
+    @Param({"0.8", "0.99", "1.2"})
+    double skew;
+
+    @Param({"1000", "10000"})
+    int cacheEntries;
+
+    @Param({"0", "1"})
+    int invalidatePercent;
+
+    @Param({"2000"})
+    int loadCost;
+
+    private Object cache;
+    private String[] names;
+    private int[] samples;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = new Random().nextInt(SAMPLES);
+        final Random random = new Random();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("weather.log.level", "OFF");
+        names = new String[locations];
+        for (int i = 0; i < locations; i++) {
+            names[i] = "Station-" + i;
+        }
+        Object weather = Server.newLocationWeather("Sunny", 21.5,
+                List.of(Server.newPair("Monday", 20), Server.newPair("Tuesday", 22), Server.newPair("Wednesday", 19)), 45.0, 25.0);
+        Optional<?> loaded = Optional.of(weather);
+        cache = Server.newWeatherCache(location -> {
+            Blackhole.consumeCPU(loadCost);
+            return loaded;
+        }, cacheEntries * ENTRY_BYTES, TimeUnit.HOURS.toMillis(1));
+        samples = zipfSamples(locations, skew, new Random(Server.SEED));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(Server.cacheStats(cache));
+    }
+
+    @Benchmark
+    public Optional<?> get(Cursor cursor) {
+        String location = names[samples[cursor.next++ & (SAMPLES - 1)]];
+        if (invalidatePercent > 0 && cursor.random.nextInt(100) < invalidatePercent) {
+            Server.cacheInvalidate(cache, location);
+            return Optional.empty();
+        }
+        return Server.cacheGet(cache, location);
+    }
+
+    // Location indexes drawn from the Zipf distribution by inverting its cumulative weights
+    private static int[] zipfSamples(int locations, double skew, Random random) {
+        double[] cumulative = new double[locations];
+        double total = 0;
+        for (int k = 0; k < locations; k++) {
+            total += 1 / Math.pow(k + 1, skew);
+            cumulative[k] = total;
+        }
+        int[] samples = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            samples[i] = Math.min(locations - 1, index >= 0 ? index : -index - 1);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,120 @@
+package bench;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+// The startup bulk load of DatabaseHelper: batched ON CONFLICT upserts of every location and its forecast in one
+// transaction, into empty tables (a new database) or over the same rows (a restart whose snapshot was out of sync
+// with the database). The rows counter gives weather plus forecast rows per second. Runs against a throwaway
+// PostgreSQL the benchmark starts itself, or against -Dbench.db.url (with bench.db.user and bench.db.password),
+// whose weather and forecast tables it empties:
+//   mvn -Pbench compile exec:exec -Djmh.args="DatabaseLoad"
+// The embedded server runs initdb, which refuses to run as root.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DatabaseLoadBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int locations;
+
+    @Param({"true", "false"})
+    boolean emptyTables;
+
+    private EmbeddedPostgres postgres;
+    private String url;
+    private String user;
+    private String password;
+    private Path dataDir;
+    private long rowsPerLoad;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rows {
+        public long rows;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        url = System.getProperty("bench.db.url");
+        user = System.getProperty("bench.db.user", "postgres");
+        password = System.getProperty("bench.db.password", "");
+        if (url == null) {
+            postgres = EmbeddedPostgres.builder().start();
+            url = postgres.getJdbcUrl("postgres", "postgres");
+        }
+        System.setProperty("bench.database", "true");
+        System.setProperty("db.url", url);
+        System.setProperty("db.user", user);
+        System.setProperty("db.password", password);
+        dataDir = Server.start(locations);
+        Server.createTables();
+        clearTables();
+        if (!Server.loadIntoDatabase()) {
+            throw new IllegalStateException("Bulk load failed, see the server log");
+        }
+        rowsPerLoad = count("weather") + count("forecast");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.delete(dataDir);
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareTables() throws SQLException {
+        if (emptyTables) {
+            clearTables();
+        }
+    }
+
+    @Benchmark
+    public boolean loadIntoDatabase(Rows rows) {
+        boolean loaded = Server.loadIntoDatabase();
+        rows.rows += rowsPerLoad;
+        return loaded;
+    }
+
+    private void clearTables() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, user, password);
+             Statement statement = connection.createStatement()) {
+            statement.execute("TRUNCATE forecast, weather RESTART IDENTITY");
+        }
+    }
+
+    private long count(String table) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, user, password);
+             Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// A whole GET_WEATHER command as a session runs it: parsing, lookup and reply formatting, minus the socket
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetWeatherBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int locations;
+
+    private Path dataDir;
+    private Object exactMatch;
+    private Object nearbyFallback;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Server.start(locations);
+        exactMatch = Server.newClientHandler(OutputStream.nullOutputStream());
+        Server.handleCommand(exactMatch, "SET_LOCATION:Station-" + locations / 2 + ":0:0");
+        // No station by that name, so the reply comes from the closest one within the nearby radius
+        nearbyFallback = Server.newClientHandler(OutputStream.nullOutputStream());
+        Server.handleCommand(nearbyFallback, "SET_LOCATION:Somewhere:48.85:2.35");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.delete(dataDir);
+    }
+
+    @Benchmark
+    public boolean exactMatch() {
+        return Server.handleCommand(exactMatch, "GET_WEATHER");
+    }
+
+    @Benchmark
+    public boolean nearbyFallback() {
+        return Server.handleCommand(nearbyFallback, "GET_WEATHER");
+    }
+}
@@ -0,0 +1,72 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// What the metrics add to every command: the timer alone, then the timer plus the Metrics.Command match and the
+// histogram record that ClientHandler.handleCommand wraps around each command, uncontended and from 4 threads sharing
+// one histogram; and a STATS scrape. Run with -prof gc to check that recording allocates nothing
+// (gc.alloc.rate.norm of 0 B/op):
+//   mvn -Pbench compile exec:exec -Djmh.args="Instrumentation -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstrumentationBenchmark {
+    @Param({"GET_WEATHER", "SEARCH:Station-1"})
+    String input;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("weather.log.level", "OFF");
+        // Fills a few histograms, so the scrape has something to render
+        for (String command : new String[] {"GET_WEATHER", "SET_LOCATION:x:0:0", "LOGIN:x:y", "STATS"}) {
+            for (int i = 0; i < 1000; i++) {
+                Server.record(Server.commandLatency(Server.commandOf(command)), i * 1000L);
+            }
+        }
+    }
+
+    @Benchmark
+    public long timerOnly() {
+        long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+
+    @Benchmark
+    public void record() {
+        recordCommand();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        recordCommand();
+    }
+
+    @Benchmark
+    public String scrape() {
+        return Server.renderMetrics();
+    }
+
+    // As handleCommand does it, around an empty command
+    private void recordCommand() {
+        Object command = Server.commandOf(input);
+        long start = System.nanoTime();
+        Server.record(Server.commandLatency(command), System.nanoTime() - start);
+    }
+}
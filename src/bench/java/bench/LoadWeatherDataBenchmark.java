@@ -0,0 +1,101 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Startup cost: streaming the data file, parsing every entry and filling the store and spatial index, or with
+// snapshot=true mapping the binary snapshot and copying its columns instead. Every load starts from an empty store.
+// The data file is about megabytes in size; besides the time, each trial prints the heap its loads peaked at and the
+// heap left after one, with the store loaded. The 1 GB file needs a few GB of heap and of disk in java.io.tmpdir:
+//   mvn -Pbench compile exec:exec -Djmh.args="LoadWeatherData -p megabytes=10,100"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LoadWeatherDataBenchmark {
+    private static final int SAMPLE_LOCATIONS = 1000;
+
+    @Param({"10", "100", "1000"})
+    int megabytes;
+
+    @Param({"false", "true"})
+    boolean snapshot;
+
+    private Path dataDir;
+    private final List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP).toList();
+    // Highest over the trial's loads, in bytes. The peak is the sum of each heap pool's peak, which can slightly
+    // overstate a peak the pools did not all reach at once.
+    private long peakHeap;
+    private long retainedHeap;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("weather.snapshot.enabled", Boolean.toString(snapshot));
+        dataDir = Server.start(locationsFor(megabytes));
+        System.out.printf("%n%d MB data file%n", Files.size(dataDir.resolve("weather_data.json")) / 1_000_000);
+        if (snapshot) {
+            Server.saveSnapshot();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.printf("%nHeap: peak %d MB while loading, %d MB retained by the loaded store and the JVM%n",
+                peakHeap >> 20, retainedHeap >> 20);
+        Server.delete(dataDir);
+    }
+
+    // The previous load is dropped and collected, so its heap counts against neither the time nor the peak
+    @Setup(Level.Invocation)
+    public void emptyStore() {
+        Server.clearWeatherData();
+        System.gc();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    @TearDown(Level.Invocation)
+    public void measureHeap() {
+        peakHeap = Math.max(peakHeap, heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum());
+        System.gc();
+        retainedHeap = Math.max(retainedHeap, heapPools.stream().mapToLong(pool -> pool.getUsage().getUsed()).sum());
+    }
+
+    @Benchmark
+    public boolean loadWeatherData() {
+        return Server.loadWeatherData();
+    }
+
+    // Scales a generated sample, since the file size per location depends on the generator's forecast lengths
+    private static int locationsFor(int megabytes) throws IOException {
+        Path sample = Files.createTempFile("weather-sample", ".json");
+        try {
+            Server.generate(sample, SAMPLE_LOCATIONS, Server.SEED);
+            return (int) (megabytes * 1_000_000L * SAMPLE_LOCATIONS / Files.size(sample));
+        } finally {
+            Files.delete(sample);
+        }
+    }
+}
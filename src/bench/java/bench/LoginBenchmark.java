@@ -0,0 +1,58 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// LOGIN with the PBKDF2 cost as a parameter, verified by hashing every time or answered from the login cache
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    @Param({"10000", "210000"})
+    int iterations;
+
+    @Param({"true", "false"})
+    boolean cache;
+
+    private Path dataDir;
+    private Object session;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Read once when the server classes initialize, which Server.start triggers
+        System.setProperty("weather.password.iterations", Integer.toString(iterations));
+        System.setProperty("weather.login.cacheSize", cache ? "10000" : "0");
+        dataDir = Server.start(1000);
+        session = Server.newClientHandler(OutputStream.nullOutputStream());
+        Server.handleCommand(session, "REGISTER:bench:secret:user");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.delete(dataDir);
+    }
+
+    @Benchmark
+    public boolean login() {
+        return Server.handleCommand(session, "LOGIN:bench:secret");
+    }
+}
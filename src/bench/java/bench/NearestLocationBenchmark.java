@@ -0,0 +1,102 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Spatial index lookups around random points, with the radius of the nearby fallback and a wider one, against a
+// full scan of every station as the baseline the index replaced. The scan is linear in the station count; the index
+// only visits the grid cells the radius covers, so it grows with the stations per cell:
+//   mvn -Pbench compile exec:exec -Djmh.args="NearestLocation"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NearestLocationBenchmark {
+    private static final int POINTS = 1024;
+
+    @Param({"1000", "100000", "1000000"})
+    int locations;
+
+    @Param({"50", "500"})
+    double radiusKm;
+
+    private Path dataDir;
+    private final double[] latitudes = new double[POINTS];
+    private final double[] longitudes = new double[POINTS];
+    private int next;
+    // Every station of the data file, in file order, for the full scan
+    private String[] names;
+    private double[] stationLatitudes;
+    private double[] stationLongitudes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Server.start(locations);
+        Random random = new Random(Server.SEED);
+        for (int i = 0; i < POINTS; i++) {
+            latitudes[i] = random.nextDouble() * 130 - 60;
+            longitudes[i] = random.nextDouble() * 360 - 180;
+        }
+        names = new String[locations];
+        stationLatitudes = new double[locations];
+        stationLongitudes = new double[locations];
+        // WeatherDataGenerator writes one station per line between the brackets
+        try (Stream<String> lines = Files.lines(dataDir.resolve("weather_data.json"))) {
+            int[] count = {0};
+            lines.filter(line -> line.startsWith("{")).forEach(line -> {
+                JSONObject station = new JSONObject(line.endsWith(",") ? line.substring(0, line.length() - 1) : line);
+                names[count[0]] = station.getString("location");
+                stationLatitudes[count[0]] = station.getDouble("latitude");
+                stationLongitudes[count[0]++] = station.getDouble("longitude");
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.delete(dataDir);
+    }
+
+    @Benchmark
+    public String findClosestLocation() {
+        int i = next++ & (POINTS - 1);
+        return Server.findClosestLocation(latitudes[i], longitudes[i], radiusKm);
+    }
+
+    @Benchmark
+    public String fullScan() {
+        int i = next++ & (POINTS - 1);
+        String closest = null;
+        double closestKm = radiusKm;
+        for (int station = 0; station < names.length; station++) {
+            double km = Server.distanceKm(latitudes[i], longitudes[i], stationLatitudes[station], stationLongitudes[station]);
+            if (km < closestKm) {
+                closest = names[station];
+                closestKm = km;
+            }
+        }
+        return closest;
+    }
+}
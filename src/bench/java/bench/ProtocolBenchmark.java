@@ -0,0 +1,109 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// GET_WEATHER and SET_LOCATION over the text and the binary protocol, next to GetWeatherBenchmark: the session
+// handles the request and the reply is decoded into lines as a client shows them, minus the socket. The bytes of one
+// GET_WEATHER reply are printed at setup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int locations;
+
+    @Param({"text", "binary"})
+    String protocol;
+
+    private Path dataDir;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private Object session;
+    private boolean binary;
+    private String setLocationCommand;
+    private byte[] setLocationFrame;
+    private byte[] getWeatherFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Server.start(locations);
+        binary = "binary".equals(protocol);
+        session = Server.newClientHandler(out);
+        String station = "Station-" + locations / 2;
+        setLocationCommand = "SET_LOCATION:" + station + ":0:0";
+        byte[] payload = Server.setLocationPayload(station, 0, 0);
+        setLocationFrame = new byte[1 + payload.length];
+        setLocationFrame[0] = (byte) Server.binaryConstant("OP_SET_LOCATION");
+        System.arraycopy(payload, 0, setLocationFrame, 1, payload.length);
+        getWeatherFrame = new byte[] {(byte) Server.binaryConstant("OP_GET_WEATHER")};
+
+        setLocation();
+        getWeather();
+        System.out.println();
+        System.out.println(protocol + " GET_WEATHER reply: " + out.size() + " bytes");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.delete(dataDir);
+    }
+
+    @Benchmark
+    public int getWeather() throws IOException {
+        out.reset();
+        if (binary) {
+            Server.handleFrame(session, getWeatherFrame);
+        } else {
+            Server.handleCommand(session, "GET_WEATHER");
+        }
+        return decode();
+    }
+
+    @Benchmark
+    public int setLocation() throws IOException {
+        out.reset();
+        if (binary) {
+            Server.handleFrame(session, setLocationFrame);
+        } else {
+            Server.handleCommand(session, setLocationCommand);
+        }
+        return decode();
+    }
+
+    // Lines of the reply, read the way WeatherConnection reads them
+    private int decode() throws IOException {
+        Server.flush(session);
+        byte[] reply = out.toByteArray();
+        if (!binary) {
+            return new String(reply, StandardCharsets.UTF_8).split("\n", -1).length;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(reply));
+        int lines = 0;
+        while (in.available() > 0) {
+            lines += Server.decodeReply(Server.readFrame(in)).size();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// A provisioning batch end to end: validation, journal append, store update and subscriber fan-out
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProvisionBenchmark {
+    @Param({"10", "1000", "100000"})
+    int batch;
+
+    // Stations already in the store the batch is applied to
+    @Param({"10000", "1000000"})
+    int locations;
+
+    private Path dataDir;
+    private String batchFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Server.start(locations);
+        // Another seed, so the batch changes the stations it names instead of repeating them
+        Path file = dataDir.resolve("batch.json");
+        Server.generate(file, batch, Server.SEED + 1);
+        batchFile = file.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.delete(dataDir);
+    }
+
+    @Benchmark
+    public String provision() {
+        return Server.provisionWeatherData(batchFile);
+    }
+}
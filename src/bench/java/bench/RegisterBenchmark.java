@@ -0,0 +1,81 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Registrations per second from concurrent sessions: PBKDF2 hashing, the user log append (with and without fsync,
+// concurrent appends share one write) and its compactions. REGISTER of a taken name is answered before hashing.
+// Each JMH thread is one session; how far group commit and the password gate let throughput grow only shows over
+// several thread counts:
+//   for t in 1 2 4 8 16 32 64; do mvn -Pbench compile exec:exec -Djmh.args="Register -t $t"; done
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegisterBenchmark {
+    @Param({"10000", "210000"})
+    int iterations;
+
+    @Param({"true", "false"})
+    boolean fsync;
+
+    private static final AtomicLong nextUser = new AtomicLong();
+    private Path dataDir;
+
+    @State(Scope.Thread)
+    public static class Session {
+        Object handler;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            handler = Server.newClientHandler(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Read once when the server classes initialize, which Server.start triggers
+        System.setProperty("weather.password.iterations", Integer.toString(iterations));
+        System.setProperty("weather.users.fsync", Boolean.toString(fsync));
+        // Every session queues for the hashing gate instead of being turned away as busy, which would count a
+        // rejection as a registration
+        System.setProperty("weather.password.maxWaiting", "1000");
+        System.setProperty("weather.password.waitTimeoutMs", "600000");
+        dataDir = Server.start(1000);
+        Server.handleCommand(Server.newClientHandler(OutputStream.nullOutputStream()), "REGISTER:taken:secret:user");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.delete(dataDir);
+    }
+
+    @Benchmark
+    public boolean register(Session session) {
+        return Server.handleCommand(session.handler, "REGISTER:bench-" + nextUser.incrementAndGet() + ":secret:user");
+    }
+
+    @Benchmark
+    public boolean registerTaken(Session session) {
+        return Server.handleCommand(session.handler, "REGISTER:taken:secret:user");
+    }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// SEARCH over the generated Station-<n> names: completions of a prefix, an exact name typed in another case,
+// a name with two letters swapped, which needs the edit-distance walk, and a name that matches nothing
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark {
+    private static final int QUERIES = 1024;
+    private static final int LIMIT = 10;
+
+    @Param({"10000", "100000", "1000000"})
+    int locations;
+
+    @Param({"prefix", "exact", "typo", "miss"})
+    String query;
+
+    private Path dataDir;
+    private final String[] queries = new String[QUERIES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Server.start(locations);
+        Random random = new Random(Server.SEED);
+        for (int i = 0; i < QUERIES; i++) {
+            int station = random.nextInt(locations);
+            queries[i] = switch (query) {
+                case "prefix" -> "station-" + station / 100;
+                case "exact" -> "STATION-" + station;
+                case "typo" -> "Statoin-" + station;
+                default -> "Bucharest-" + station;
+            };
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.delete(dataDir);
+    }
+
+    @Benchmark
+    public List<?> search() {
+        return Server.searchLocations(queries[next++ & (QUERIES - 1)], LIMIT);
+    }
+}
@@ -0,0 +1,414 @@
+package bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// The server lives in the default package, which JMH does not allow for benchmarks and which a named package
+// cannot import. This class reaches it through method handles resolved once; static final handles are
+// constant-folded by the JIT, so calls cost the same as direct ones.
+final class Server {
+    static final int SEED = 42;
+
+    private static final MethodHandle GENERATE = staticMethod("WeatherDataGenerator", "generate",
+            MethodType.methodType(void.class, Path.class, int.class, long.class));
+    private static final MethodHandle LOAD_WEATHER_DATA = staticMethod("WeatherServer", "loadWeatherData",
+            MethodType.methodType(boolean.class));
+    private static final MethodHandle CLEAR_WEATHER_DATA = staticMethod("WeatherServer", "clearWeatherData",
+            MethodType.methodType(void.class));
+    private static final MethodHandle CREATE_TABLES = staticMethod("DatabaseHelper", "createTables",
+            MethodType.methodType(void.class));
+    private static final MethodHandle LOAD_INTO_DATABASE = staticMethod("DatabaseHelper", "loadWeatherDataIntoDatabase",
+            MethodType.methodType(boolean.class, Map.class));
+    private static final MethodHandle STORE_VIEW;
+    private static final MethodHandle SAVE_SNAPSHOT = staticMethod("WeatherServer", "saveSnapshot",
+            MethodType.methodType(void.class));
+    private static final MethodHandle FIND_CLOSEST_LOCATION = staticMethod("WeatherServer", "findClosestLocation",
+            MethodType.methodType(String.class, double.class, double.class, double.class));
+    private static final MethodHandle DISTANCE_KM = staticMethod("SpatialIndex", "distanceKm",
+            MethodType.methodType(double.class, double.class, double.class, double.class, double.class));
+    private static final MethodHandle SEARCH_LOCATIONS = staticMethod("WeatherServer", "searchLocations",
+            MethodType.methodType(List.class, String.class, int.class));
+    private static final MethodHandle PROVISION_WEATHER_DATA = staticMethod("WeatherServer", "provisionWeatherData",
+            MethodType.methodType(String.class, String.class));
+    private static final MethodHandle NEW_CLIENT_HANDLER;
+    private static final MethodHandle HANDLE_COMMAND;
+    private static final MethodHandle HANDLE_FRAME;
+    private static final MethodHandle FLUSH;
+    private static final MethodHandle SET_LOCATION_PAYLOAD = staticMethod("BinaryProtocol", "setLocationPayload",
+            MethodType.methodType(byte[].class, String.class, double.class, double.class));
+    private static final MethodHandle READ_FRAME = staticMethod("BinaryProtocol", "readFrame",
+            MethodType.methodType(byte[].class, DataInputStream.class));
+    private static final MethodHandle DECODE_REPLY = staticMethod("BinaryProtocol", "decodeReply",
+            MethodType.methodType(List.class, byte[].class));
+    private static final MethodHandle NEW_LOCATION_WEATHER;
+    private static final MethodHandle NEW_PAIR;
+    private static final MethodHandle NEW_WEATHER_CACHE;
+    private static final MethodHandle CACHE_GET;
+    private static final MethodHandle CACHE_INVALIDATE;
+    private static final MethodHandle CACHE_STATS;
+    private static final Class<?> CACHE_LOADER;
+    private static final MethodHandle COMMAND_OF;
+    private static final MethodHandle COMMAND_LATENCY;
+    private static final MethodHandle HISTOGRAM_RECORD;
+    private static final MethodHandle METRICS_RENDER = staticMethod("Metrics", "render", MethodType.methodType(String.class));
+
+    static {
+        try {
+            Class<?> server = Class.forName("WeatherServer", false, Server.class.getClassLoader());
+            Class<?> store = Class.forName("WeatherStore", false, Server.class.getClassLoader());
+            STORE_VIEW = MethodHandles.filterReturnValue(
+                    MethodHandles.privateLookupIn(server, MethodHandles.lookup()).findStaticGetter(server, "weatherData", store),
+                    MethodHandles.lookup().findVirtual(store, "view", MethodType.methodType(Map.class)));
+
+            Class<?> handler = Class.forName("WeatherServer$ClientHandler", false, Server.class.getClassLoader());
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(handler, MethodHandles.lookup());
+            NEW_CLIENT_HANDLER = lookup.findConstructor(handler, MethodType.methodType(void.class, OutputStream.class, Runnable.class))
+                    .asType(MethodType.methodType(Object.class, OutputStream.class, Runnable.class));
+            HANDLE_COMMAND = lookup.findVirtual(handler, "handleCommand", MethodType.methodType(boolean.class, String.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class, String.class));
+            FLUSH = lookup.findVirtual(handler, "flush", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            HANDLE_FRAME = lookup.findVirtual(handler, "handleFrame", MethodType.methodType(boolean.class, byte[].class))
+                    .asType(MethodType.methodType(boolean.class, Object.class, byte[].class));
+
+            Class<?> weather = Class.forName("WeatherServer$LocationWeather", false, Server.class.getClassLoader());
+            NEW_LOCATION_WEATHER = MethodHandles.privateLookupIn(weather, MethodHandles.lookup()).findConstructor(weather,
+                            MethodType.methodType(void.class, String.class, double.class, List.class, double.class, double.class))
+                    .asType(MethodType.methodType(Object.class, String.class, double.class, List.class, double.class, double.class));
+            Class<?> pair = Class.forName("WeatherServer$Pair", false, Server.class.getClassLoader());
+            NEW_PAIR = MethodHandles.privateLookupIn(pair, MethodHandles.lookup())
+                    .findConstructor(pair, MethodType.methodType(void.class, Object.class, Object.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+            Class<?> cache = Class.forName("WeatherCache", false, Server.class.getClassLoader());
+            CACHE_LOADER = Class.forName("WeatherCache$Loader", false, Server.class.getClassLoader());
+            MethodHandles.Lookup cacheLookup = MethodHandles.privateLookupIn(cache, MethodHandles.lookup());
+            NEW_WEATHER_CACHE = cacheLookup.findConstructor(cache, MethodType.methodType(void.class, CACHE_LOADER, long.class, long.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, long.class, long.class));
+            CACHE_GET = cacheLookup.findVirtual(cache, "get", MethodType.methodType(Optional.class, String.class))
+                    .asType(MethodType.methodType(Optional.class, Object.class, String.class));
+            CACHE_INVALIDATE = cacheLookup.findVirtual(cache, "invalidate", MethodType.methodType(void.class, String.class))
+                    .asType(MethodType.methodType(void.class, Object.class, String.class));
+            Class<?> stats = Class.forName("WeatherCache$Stats", false, Server.class.getClassLoader());
+            CACHE_STATS = cacheLookup.findVirtual(cache, "stats", MethodType.methodType(stats))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+
+            Class<?> command = Class.forName("Metrics$Command", false, Server.class.getClassLoader());
+            Class<?> histogram = Class.forName("LatencyHistogram", false, Server.class.getClassLoader());
+            MethodHandles.Lookup commandLookup = MethodHandles.privateLookupIn(command, MethodHandles.lookup());
+            COMMAND_OF = commandLookup.findStatic(command, "of", MethodType.methodType(command, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            COMMAND_LATENCY = commandLookup.findGetter(command, "latency", histogram)
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            HISTOGRAM_RECORD = MethodHandles.privateLookupIn(histogram, MethodHandles.lookup())
+                    .findVirtual(histogram, "record", MethodType.methodType(void.class, long.class))
+                    .asType(MethodType.methodType(void.class, Object.class, long.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Server() {
+    }
+
+    // Generates a dataset of the given size in a fresh data directory and loads it. Has to run before anything else
+    // touches the server classes, which read their settings once; rate limits and logging are turned off.
+    static Path start(int locations) throws IOException {
+        Path dataDir = Files.createTempDirectory("weather-bench");
+        generate(dataDir.resolve("weather_data.json"), locations, SEED);
+        System.setProperty("weather.dataDir", dataDir.toString());
+        System.setProperty("weather.rateLimit.connection", "0");
+        System.setProperty("weather.rateLimit.user", "0");
+        System.setProperty("weather.rateLimit.admin", "0");
+        System.setProperty("weather.log.level", "OFF");
+        // Without a JDBC driver for the URL the pool is never created and database writes fail at once, so runs
+        // measure the server alone; -jvmArgsAppend -Dbench.database=true keeps the configured database
+        if (!Boolean.getBoolean("bench.database")) {
+            System.setProperty("db.url", "jdbc:none:");
+        }
+        loadWeatherData();
+        return dataDir;
+    }
+
+    static void delete(Path dataDir) throws IOException {
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    static void generate(Path file, int locations, long seed) {
+        try {
+            GENERATE.invokeExact(file, locations, seed);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // Returns whether the data came from the snapshot
+    static boolean loadWeatherData() {
+        try {
+            return (boolean) LOAD_WEATHER_DATA.invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void clearWeatherData() {
+        try {
+            CLEAR_WEATHER_DATA.invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void createTables() {
+        try {
+            CREATE_TABLES.invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // Bulk-loads the whole store into the configured database, as startup does; returns whether it succeeded
+    static boolean loadIntoDatabase() {
+        try {
+            return (boolean) LOAD_INTO_DATABASE.invokeExact((Map<?, ?>) STORE_VIEW.invoke());
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void saveSnapshot() {
+        try {
+            SAVE_SNAPSHOT.invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static String findClosestLocation(double latitude, double longitude, double radiusKm) {
+        try {
+            return (String) FIND_CLOSEST_LOCATION.invokeExact(latitude, longitude, radiusKm);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // The great-circle distance the spatial index ranks candidates by
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        try {
+            return (double) DISTANCE_KM.invokeExact(lat1, lon1, lat2, lon2);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static List<?> searchLocations(String query, int limit) {
+        try {
+            return (List<?>) SEARCH_LOCATIONS.invokeExact(query, limit);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static String provisionWeatherData(String file) {
+        try {
+            return (String) PROVISION_WEATHER_DATA.invokeExact(file);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // A ClientHandler session writing its replies to out, as the NIO engine drives it
+    static Object newClientHandler(OutputStream out) {
+        try {
+            return (Object) NEW_CLIENT_HANDLER.invokeExact(out, (Runnable) null);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static boolean handleCommand(Object clientHandler, String command) {
+        try {
+            return (boolean) HANDLE_COMMAND.invokeExact(clientHandler, command);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // A binary request frame (opcode and payload, without the length prefix)
+    static boolean handleFrame(Object clientHandler, byte[] frame) {
+        try {
+            return (boolean) HANDLE_FRAME.invokeExact(clientHandler, frame);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // Pushes the session's buffered replies to its output stream
+    static void flush(Object clientHandler) {
+        try {
+            FLUSH.invokeExact(clientHandler);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // A BinaryProtocol constant such as OP_GET_WEATHER
+    static int binaryConstant(String name) {
+        try {
+            Class<?> protocol = Class.forName("BinaryProtocol", false, Server.class.getClassLoader());
+            return (int) MethodHandles.privateLookupIn(protocol, MethodHandles.lookup())
+                    .findStaticGetter(protocol, name, int.class).invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static byte[] setLocationPayload(String location, double latitude, double longitude) {
+        try {
+            return (byte[]) SET_LOCATION_PAYLOAD.invokeExact(location, latitude, longitude);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // The next length-prefixed frame of a binary reply stream
+    static byte[] readFrame(DataInputStream in) {
+        try {
+            return (byte[]) READ_FRAME.invokeExact(in);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // The text lines a client shows for one binary reply frame
+    static List<?> decodeReply(byte[] frame) {
+        try {
+            return (List<?>) DECODE_REPLY.invokeExact(frame);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // A LocationWeather with a forecast of (day, temperature) pairs
+    static Object newLocationWeather(String currentWeather, double temperature, List<?> forecast, double latitude, double longitude) {
+        try {
+            return (Object) NEW_LOCATION_WEATHER.invokeExact(currentWeather, temperature, forecast, latitude, longitude);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newPair(String first, int second) {
+        try {
+            return (Object) NEW_PAIR.invokeExact((Object) first, (Object) second);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // A WeatherCache reading through loader, which maps a location to an Optional of LocationWeather
+    static Object newWeatherCache(Function<String, Optional<?>> loader, long maxBytes, long ttlMillis) {
+        try {
+            MethodHandle load = MethodHandles.publicLookup().findVirtual(Function.class, "apply",
+                    MethodType.methodType(Object.class, Object.class)).bindTo(loader);
+            return (Object) NEW_WEATHER_CACHE.invokeExact(MethodHandleProxies.asInterfaceInstance(CACHE_LOADER, load), maxBytes, ttlMillis);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Optional<?> cacheGet(Object cache, String location) {
+        try {
+            return (Optional<?>) CACHE_GET.invokeExact(cache, location);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void cacheInvalidate(Object cache, String location) {
+        try {
+            CACHE_INVALIDATE.invokeExact(cache, location);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // The cache's WeatherCache.Stats record
+    static Object cacheStats(Object cache) {
+        try {
+            return (Object) CACHE_STATS.invokeExact(cache);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // The Metrics.Command a protocol line is counted under
+    static Object commandOf(String input) {
+        try {
+            return (Object) COMMAND_OF.invokeExact(input);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // The LatencyHistogram of a Metrics.Command
+    static Object commandLatency(Object command) {
+        try {
+            return (Object) COMMAND_LATENCY.invokeExact(command);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void record(Object histogram, long nanos) {
+        try {
+            HISTOGRAM_RECORD.invokeExact(histogram, nanos);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // The STATS text
+    static String renderMetrics() {
+        try {
+            return (String) METRICS_RENDER.invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(String className, String name, MethodType type) {
+        try {
+            Class<?> owner = Class.forName(className, false, Server.class.getClassLoader());
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup()).findStatic(owner, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException runtime) {
+            return runtime;
+        }
+        if (e instanceof Error error) {
+            throw error;
+        }
+        return new IllegalStateException(e);
+    }
+}
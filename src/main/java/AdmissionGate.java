@@ -0,0 +1,55 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Caps how many sessions run an expensive command at once. Up to maxWaiting more wait for a turn;
+// anyone beyond that, or still waiting after the timeout, is turned away instead of piling up.
+public class AdmissionGate {
+    private final Semaphore permits;
+    private final int maxWaiting;
+    private final long timeoutMillis;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionGate(int maxConcurrent, int maxWaiting, long timeoutMillis) {
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxWaiting = maxWaiting;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // Every successful tryEnter() must be paired with exit()
+    public boolean tryEnter() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            if (permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void exit() {
+        permits.release();
+    }
+
+    public int waiting() {
+        return waiting.get();
+    }
+
+    public long rejectedCount() {
+        return rejected.get();
+    }
+}
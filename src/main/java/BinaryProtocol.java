@@ -0,0 +1,127 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Length-prefixed framing chosen by sending MAGIC as the very first byte of a connection.
+// Every frame is a 4-byte big-endian length followed by an opcode (requests) or status (replies) byte and its payload.
+public final class BinaryProtocol {
+    // Never the first byte of a text command, so the server can tell the two protocols apart
+    static final int MAGIC = 0xB1;
+    static final int MAX_FRAME_SIZE = 1 << 20;
+
+    // Requests: TEXT carries a UTF-8 text command; SET_LOCATION is latitude, longitude, then the UTF-8 name
+    static final int OP_TEXT = 0;
+    static final int OP_SET_LOCATION = 1;
+    static final int OP_GET_WEATHER = 2;
+
+    // Replies: TEXT carries the UTF-8 text reply; NEARBY prefixes the weather body with the station name
+    static final int STATUS_TEXT = 0;
+    static final int STATUS_WEATHER = 1;
+    static final int STATUS_NEARBY = 2;
+    static final int STATUS_NOT_FOUND = 3;
+
+    private BinaryProtocol() {
+    }
+
+    // currentWeather, temperature, forecast count, then day and temperature per forecast entry
+    static byte[] encodeWeatherBody(WeatherServer.LocationWeather weather) {
+        int days = weather.forecastDays();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + days * 16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(weather.currentWeather());
+            out.writeDouble(weather.temperature());
+            out.writeShort(days);
+            for (int day = 0; day < days; day++) {
+                out.writeUTF(weather.forecastDay(day));
+                out.writeInt(weather.forecastTemperature(day));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] encodeUtf(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 + value.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static void writeFrame(OutputStream out, int code, byte[]... parts) throws IOException {
+        int length = 1;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(length);
+        data.writeByte(code);
+        for (byte[] part : parts) {
+            data.write(part);
+        }
+    }
+
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return in.readNBytes(length);
+    }
+
+    static byte[] setLocationPayload(String location, double latitude, double longitude) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + location.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeDouble(latitude);
+            out.writeDouble(longitude);
+            out.write(location.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Renders a reply frame as the lines the text protocol would have sent, blank terminator included
+    static List<String> decodeReply(byte[] frame) throws IOException {
+        List<String> lines = new ArrayList<>();
+        int status = frame[0] & 0xFF;
+        if (status == STATUS_TEXT) {
+            String text = new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8);
+            for (String line : text.split("\n", -1)) {
+                lines.add(line);
+            }
+            // split keeps a trailing empty element after the final newline
+            lines.remove(lines.size() - 1);
+            return lines;
+        }
+        if (status == STATUS_NOT_FOUND) {
+            lines.add("No data available for this location or nearby.");
+            lines.add("");
+            return lines;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+        if (status == STATUS_NEARBY) {
+            lines.add("Closest location: " + in.readUTF());
+        }
+        lines.add("Current weather: " + in.readUTF());
+        lines.add("Temperature: " + in.readDouble() + "°C");
+        lines.add("Forecast:");
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            lines.add(" - " + in.readUTF() + ": " + in.readInt() + "°C");
+        }
+        lines.add("");
+        return lines;
+    }
+}
@@ -0,0 +1,27 @@
+import java.io.IOException;
+
+public interface ConnectionEngine {
+
+    int MAX_CONNECTIONS = Integer.getInteger("weather.maxConnections", 10_000);
+    int IDLE_TIMEOUT_MS = Integer.getInteger("weather.idleTimeoutMs", 300_000);
+    int DRAIN_TIMEOUT_MS = Integer.getInteger("weather.drainTimeoutMs", 10_000);
+
+    // Accepts clients until stop() is called, then drains the open sessions before returning
+    void serve() throws IOException;
+
+    // Stops accepting new clients; safe to call from inside a client session
+    void stop();
+
+    int activeConnections();
+
+    static ConnectionEngine create(String mode, int port) {
+        return switch (mode) {
+            case "nio" -> new NioConnectionEngine(port, MAX_CONNECTIONS, IDLE_TIMEOUT_MS, DRAIN_TIMEOUT_MS);
+            case "thread" -> new ThreadConnectionEngine(port, Thread.ofPlatform().name("client-", 0).factory(),
+                    MAX_CONNECTIONS, IDLE_TIMEOUT_MS, DRAIN_TIMEOUT_MS);
+            case "virtual" -> new ThreadConnectionEngine(port, Thread.ofVirtual().name("client-", 0).factory(),
+                    MAX_CONNECTIONS, IDLE_TIMEOUT_MS, DRAIN_TIMEOUT_MS);
+            default -> throw new IllegalArgumentException("Unknown connection engine: " + mode);
+        };
+    }
+}
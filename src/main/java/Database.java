@@ -0,0 +1,84 @@
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared connection pool; settings come from the file named by -Dweather.dbConfig, overridable with -Ddb.* system properties
+public class Database {
+    private static final String CONFIG_FILE = System.getProperty("weather.dbConfig", "src/db.properties");
+    private static final HikariDataSource dataSource = createDataSource();
+    private static final AtomicLong connectionsAcquired = new AtomicLong();
+    private static final AtomicLong totalWaitNanos = new AtomicLong();
+    private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+    record PoolStats(int active, int idle, int total, int waiting, long acquired, long averageWaitMicros, long maxWaitMicros) {
+    }
+
+    public static Connection getConnection() throws SQLException {
+        if (dataSource == null) {
+            throw new SQLException("Database connection pool is not available.");
+        }
+        long start = System.nanoTime();
+        Connection connection = dataSource.getConnection();
+        long waited = System.nanoTime() - start;
+        connectionsAcquired.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        return connection;
+    }
+
+    public static PoolStats poolStats() {
+        HikariPoolMXBean pool = dataSource != null ? dataSource.getHikariPoolMXBean() : null;
+        long acquired = connectionsAcquired.get();
+        long averageWaitMicros = acquired == 0 ? 0 : totalWaitNanos.get() / acquired / 1000;
+        if (pool == null) {
+            return new PoolStats(0, 0, 0, 0, acquired, averageWaitMicros, maxWaitNanos.get() / 1000);
+        }
+        return new PoolStats(pool.getActiveConnections(), pool.getIdleConnections(), pool.getTotalConnections(),
+                pool.getThreadsAwaitingConnection(), acquired, averageWaitMicros, maxWaitNanos.get() / 1000);
+    }
+
+    public static void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private static HikariDataSource createDataSource() {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(CONFIG_FILE)) {
+            properties.load(in);
+        } catch (IOException e) {
+            Log.error("Error loading database settings from {}: {}", CONFIG_FILE, e.getMessage());
+        }
+        properties.putAll(System.getProperties());
+
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("weather-db");
+        config.setJdbcUrl(properties.getProperty("db.url"));
+        config.setUsername(properties.getProperty("db.user"));
+        config.setPassword(properties.getProperty("db.password"));
+        config.setMinimumIdle(Integer.parseInt(properties.getProperty("db.pool.minIdle", "2")));
+        config.setMaximumPoolSize(Integer.parseInt(properties.getProperty("db.pool.maxSize", "16")));
+        config.setConnectionTimeout(Long.parseLong(properties.getProperty("db.pool.connectionTimeoutMs", "5000")));
+        config.setValidationTimeout(Long.parseLong(properties.getProperty("db.pool.validationTimeoutMs", "2000")));
+        config.setLeakDetectionThreshold(Long.parseLong(properties.getProperty("db.pool.leakDetectionMs", "30000")));
+        // Start even when the database is down; callers get an SQLException per request instead
+        config.setInitializationFailTimeout(-1);
+        config.setRegisterMbeans(true);
+        try {
+            return new HikariDataSource(config);
+        } catch (RuntimeException e) {
+            // Bad settings such as an unknown JDBC URL; the server keeps running without the database
+            Log.error("Error creating database connection pool: {}", e.getMessage());
+            return null;
+        }
+    }
+}
@@ -1,20 +1,13 @@
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
 import java.sql.*;
+import java.util.Collection;
+import java.util.Map;
 
 public class DatabaseHelper {
 
-    private static final String DB_URL = "your url";
-    private static final String DB_USER = "your name";
-    private static final String DB_PASSWORD = "your password";
+    private static final int BATCH_SIZE = 1000;
 
     public static void createTables() {
-        try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+        try (Connection connection = Database.getConnection()) {
             //Create weather table
             String createWeatherTableSQL = "CREATE TABLE IF NOT EXISTS weather ("
                     + "id SERIAL PRIMARY KEY, "
@@ -34,10 +27,16 @@ public class DatabaseHelper {
             try (Statement stmt = connection.createStatement()) {
 
                 stmt.execute(createWeatherTableSQL);
-                System.out.println("Weather table created.");
+                Log.info("Weather table created.");
 
                 stmt.execute(createForecastTableSQL);
-                System.out.println("Forecast table created.");
+                Log.info("Forecast table created.");
+
+                // Unique keys backing the ON CONFLICT upserts of the bulk load; older tables may hold repeated forecast days
+                stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS weather_location_key ON weather (location)");
+                stmt.execute("DELETE FROM forecast a USING forecast b "
+                        + "WHERE a.weather_id = b.weather_id AND a.day = b.day AND a.id < b.id");
+                stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS forecast_weather_day_key ON forecast (weather_id, day)");
             }
             // create User table
             String createUsersTableSQL = "CREATE TABLE IF NOT EXISTS users ("
@@ -46,149 +45,109 @@ public class DatabaseHelper {
                     + "role VARCHAR(255) NOT NULL)";
             try (Statement stmt = connection.createStatement()) {
                 stmt.execute(createUsersTableSQL);
-                System.out.println("Users table created.");
+                Log.info("Users table created.");
+            }
+            // Observation history, its partitions and rollups
+            try (Statement stmt = connection.createStatement()) {
+                HistoryRepository.createTables(stmt);
+                Log.info("History tables created.");
             }
         } catch (SQLException e) {
-            System.err.println("Error at table create: " + e.getMessage());
+            Log.error("Error at table create: {}", e.getMessage());
         }
     }
-    public static void loadWeatherDataIntoDatabase() {
-        try (BufferedReader reader = new BufferedReader(new FileReader("src/weather_data.json"))) {
-            StringBuilder jsonBuilder = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                jsonBuilder.append(line);
-            }
-
-            JSONArray jsonArray = new JSONArray(jsonBuilder.toString());
-
-            try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                String checkLocationSQL = "SELECT id FROM weather WHERE location = ?";
-                String insertWeatherSQL = "INSERT INTO weather (location, currentWeather, temperature, latitude, longitude) "
-                        + "VALUES (?, ?, ?, ?, ?)";
-                String insertForecastSQL = "INSERT INTO forecast (weather_id, day, temperature) VALUES (?, ?, ?)";
-                String checkForecastSQL = "SELECT COUNT(*) FROM forecast WHERE weather_id = ? AND day = ? AND temperature = ?";
-
-                try (PreparedStatement checkStmt = connection.prepareStatement(checkLocationSQL);
-                     PreparedStatement insertWeatherStmt = connection.prepareStatement(insertWeatherSQL, Statement.RETURN_GENERATED_KEYS);
-                     PreparedStatement insertForecastStmt = connection.prepareStatement(insertForecastSQL);
-                     PreparedStatement checkForecastStmt = connection.prepareStatement(checkForecastSQL)) {
-
-                    for (int i = 0; i < jsonArray.length(); i++) {
-                        JSONObject weatherEntry = jsonArray.getJSONObject(i);
-
-                        String location = weatherEntry.getString("location");
-                        String currentWeather = weatherEntry.getString("currentWeather");
-                        double temperature = weatherEntry.getDouble("temperature");
-                        double latitude = weatherEntry.getDouble("latitude");
-                        double longitude = weatherEntry.getDouble("longitude");
-
-                        checkStmt.setString(1, location);
-                        ResultSet rs = checkStmt.executeQuery();
-                        int weatherId = -1;
-
-                        if (rs.next()) {
-                            weatherId = rs.getInt("id");
-                        }
-
-                        if (weatherId == -1) {
-                            // Insert new weather data if it doesn't exist
-                            insertWeatherStmt.setString(1, location);
-                            insertWeatherStmt.setString(2, currentWeather);
-                            insertWeatherStmt.setDouble(3, temperature);
-                            insertWeatherStmt.setDouble(4, latitude);
-                            insertWeatherStmt.setDouble(5, longitude);
-                            insertWeatherStmt.executeUpdate();
-
-                            ResultSet generatedKeys = insertWeatherStmt.getGeneratedKeys();
-                            if (generatedKeys.next()) {
-                                weatherId = generatedKeys.getInt(1);
-                            }
-                        }
-
-                        // Process forecast data
-                        JSONArray forecastArray = weatherEntry.getJSONArray("forecast");
-                        for (int j = 0; j < forecastArray.length(); j++) {
-                            JSONObject forecast = forecastArray.getJSONObject(j);
-                            String day = forecast.getString("day");
-                            int forecastTemperature = forecast.getInt("temperature");
-
-                            // Check if this forecast already exists
-                            checkForecastStmt.setInt(1, weatherId);
-                            checkForecastStmt.setString(2, day);
-                            checkForecastStmt.setInt(3, forecastTemperature);
-                            ResultSet forecastRs = checkForecastStmt.executeQuery();
-
-                            if (forecastRs.next() && forecastRs.getInt(1) == 0) {
-                                // Insert new forecast if it doesn't exist
-                                insertForecastStmt.setInt(1, weatherId);
-                                insertForecastStmt.setString(2, day);
-                                insertForecastStmt.setInt(3, forecastTemperature);
-                                insertForecastStmt.executeUpdate();
-                            }
-                        }
+    // Writes the store, as loaded from the data file and the replayed journal, in batches of BATCH_SIZE locations inside
+    // a single transaction; returns whether it succeeded. Like WeatherRepository.saveAll, each location's forecast is
+    // replaced, so days no longer in it are deleted.
+    public static boolean loadWeatherDataIntoDatabase(Map<String, WeatherServer.LocationWeather> store) {
+        try (Connection connection = Database.getConnection()) {
+            String upsertWeatherSQL = "INSERT INTO weather (location, currentWeather, temperature, latitude, longitude) "
+                    + "VALUES (?, ?, ?, ?, ?) "
+                    + "ON CONFLICT (location) DO UPDATE SET currentWeather = EXCLUDED.currentWeather, "
+                    + "temperature = EXCLUDED.temperature, latitude = EXCLUDED.latitude, longitude = EXCLUDED.longitude";
+            // Forecast rows resolve their weather_id by location, so no per-row SELECT or generated key is needed
+            String deleteForecastSQL = "DELETE FROM forecast WHERE weather_id = (SELECT id FROM weather WHERE location = ?)";
+            String upsertForecastSQL = "INSERT INTO forecast (weather_id, day, temperature) "
+                    + "SELECT id, ?, ? FROM weather WHERE location = ? "
+                    + "ON CONFLICT (weather_id, day) DO UPDATE SET temperature = EXCLUDED.temperature";
+
+            long start = System.nanoTime();
+            int weatherRows = 0;
+            int forecastRows = 0;
+            connection.setAutoCommit(false);
+            try (PreparedStatement weatherStmt = connection.prepareStatement(upsertWeatherSQL);
+                 PreparedStatement deleteStmt = connection.prepareStatement(deleteForecastSQL);
+                 PreparedStatement forecastStmt = connection.prepareStatement(upsertForecastSQL)) {
+
+                int pending = 0;
+                for (Map.Entry<String, WeatherServer.LocationWeather> entry : store.entrySet()) {
+                    String location = entry.getKey();
+                    WeatherServer.LocationWeather weather = entry.getValue();
+                    weatherStmt.setString(1, location);
+                    weatherStmt.setString(2, weather.currentWeather());
+                    weatherStmt.setDouble(3, weather.temperature());
+                    weatherStmt.setDouble(4, weather.latitude());
+                    weatherStmt.setDouble(5, weather.longitude());
+                    weatherStmt.addBatch();
+                    weatherRows++;
+
+                    deleteStmt.setString(1, location);
+                    deleteStmt.addBatch();
+                    for (WeatherServer.Pair<String, Integer> pair : weather.forecast()) {
+                        forecastStmt.setString(1, pair.first());
+                        forecastStmt.setInt(2, pair.second());
+                        forecastStmt.setString(3, location);
+                        forecastStmt.addBatch();
+                        forecastRows++;
                     }
 
-                    System.out.println("Weather and forecast data has been processed.");
+                    if (++pending == BATCH_SIZE) {
+                        // Weather rows first, so the forecast batches can see their ids
+                        executeBatches(weatherStmt, deleteStmt, forecastStmt);
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    executeBatches(weatherStmt, deleteStmt, forecastStmt);
                 }
+                connection.commit();
             } catch (SQLException e) {
-                System.err.println("Error inserting weather and forecast data: " + e.getMessage());
+                connection.rollback();
+                throw e;
             }
-        } catch (IOException | JSONException e) {
-            System.err.println("Error reading or parsing JSON file: " + e.getMessage());
+
+            Metrics.DB_BULK_LOAD.record(System.nanoTime() - start);
+            long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            Log.info("Weather and forecast data has been processed: {} locations, {} forecasts in {} ms ({} rows/sec).",
+                    weatherRows, forecastRows, elapsedMs, (weatherRows + forecastRows) * 1000L / elapsedMs);
+            return true;
+        } catch (SQLException e) {
+            Log.error("Error inserting weather and forecast data: {}", e.getMessage());
         }
+        return false;
     }
 
+    private static void executeBatches(PreparedStatement... statements) throws SQLException {
+        for (PreparedStatement statement : statements) {
+            statement.executeBatch();
+        }
+    }
 
-    public static void loadUsersFromTextFileToDatabase() {
-        try (BufferedReader reader = new BufferedReader(new FileReader("src/users.txt"))) {
-            String line;
-            try (Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                String insertUserSQL = "INSERT INTO users (username, password, role) VALUES (?, ?, ?)";
-                String updateUserSQL = "UPDATE users SET password = ?, role = ? WHERE username = ?";
-
-                try (PreparedStatement insertStmt = connection.prepareStatement(insertUserSQL);
-                     PreparedStatement updateStmt = connection.prepareStatement(updateUserSQL)) {
-
-                    while ((line = reader.readLine()) != null) {
-
-                        if (line.trim().isEmpty() || line.startsWith("#")) continue;
-
-
-                        String[] userFields = line.split(",");
-                        if (userFields.length == 3) {
-                            String username = userFields[0].trim();
-                            String password = userFields[1].trim();
-                            String role = userFields[2].trim();
-
-
-                            String checkUserSQL = "SELECT COUNT(*) FROM users WHERE username = ?";
-                            try (PreparedStatement checkStmt = connection.prepareStatement(checkUserSQL)) {
-                                checkStmt.setString(1, username);
-                                ResultSet rs = checkStmt.executeQuery();
-                                if (rs.next() && rs.getInt(1) > 0) {
-
-                                    updateStmt.setString(1, password);
-                                    updateStmt.setString(2, role);
-                                    updateStmt.setString(3, username);
-                                    updateStmt.executeUpdate();
-                                } else {
 
-                                    insertStmt.setString(1, username);
-                                    insertStmt.setString(2, password);
-                                    insertStmt.setString(3, role);
-                                    insertStmt.executeUpdate();
-                                }
-                            }
-                        }
-                    }
-                    System.out.println("User data has been processed from the text file.");
-                }
-            } catch (SQLException e) {
-                System.err.println("Error inserting or updating users: " + e.getMessage());
+    // Upserts the loaded users, which include those only in the user log since the last compaction
+    public static void loadUsersIntoDatabase(Collection<WeatherServer.User> users) {
+        try (Connection connection = Database.getConnection();
+             PreparedStatement upsertStmt = connection.prepareStatement(UserRepository.UPSERT_SQL)) {
+            for (WeatherServer.User user : users) {
+                upsertStmt.setString(1, user.username());
+                upsertStmt.setString(2, user.passwordHash());
+                upsertStmt.setString(3, user.role());
+                upsertStmt.addBatch();
             }
-        } catch (IOException e) {
-            System.err.println("Error reading text file: " + e.getMessage());
+            upsertStmt.executeBatch();
+            Log.info("User data has been processed from the user store.");
+        } catch (SQLException e) {
+            Log.error("Error inserting or updating users: {}", e.getMessage());
         }
     }
 
@@ -0,0 +1,172 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Observation history in the database. Raw readings go to weather_history, partitioned by month so that range
+// reads only touch the months they cover and expired months are dropped whole. Every saved batch is also folded
+// into the hourly and daily rollup tables, so downsampled reads never scan raw rows.
+public class HistoryRepository {
+
+    // Raw readings and hourly rollups older than this many months are removed at startup; daily rollups are kept
+    static final int RETENTION_MONTHS = Integer.getInteger("weather.history.retentionMonths", 12);
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyy_MM");
+
+    private static final String INSERT_SQL = "INSERT INTO weather_history (location, observed_at, temperature, currentWeather) "
+            + "VALUES (?, ?, ?, ?)";
+    private static final String UPSERT_ROLLUP_SQL = "INSERT INTO %s AS r (location, bucket, min_temperature, max_temperature, "
+            + "sum_temperature, readings) VALUES (?, ?, ?, ?, ?, 1) "
+            + "ON CONFLICT (location, bucket) DO UPDATE SET min_temperature = LEAST(r.min_temperature, EXCLUDED.min_temperature), "
+            + "max_temperature = GREATEST(r.max_temperature, EXCLUDED.max_temperature), "
+            + "sum_temperature = r.sum_temperature + EXCLUDED.sum_temperature, readings = r.readings + 1";
+    private static final String FIND_RAW_SQL = "SELECT observed_at, temperature, currentWeather FROM weather_history "
+            + "WHERE location = ? AND observed_at >= ? AND observed_at < ? ORDER BY observed_at LIMIT ?";
+    private static final String FIND_ROLLUP_SQL = "SELECT bucket, min_temperature, max_temperature, sum_temperature, readings "
+            + "FROM %s WHERE location = ? AND bucket >= ? AND bucket < ? ORDER BY bucket LIMIT ?";
+
+    // Months whose partition is known to exist
+    private static final Set<YearMonth> partitions = ConcurrentHashMap.newKeySet();
+
+    static void createTables(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS weather_history ("
+                + "location VARCHAR(255) NOT NULL, "
+                + "observed_at TIMESTAMPTZ NOT NULL, "
+                + "temperature DOUBLE PRECISION, "
+                + "currentWeather VARCHAR(255)) "
+                + "PARTITION BY RANGE (observed_at)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS weather_history_location_time ON weather_history (location, observed_at)");
+        for (String rollup : new String[]{"weather_history_hourly", "weather_history_daily"}) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + rollup + " ("
+                    + "location VARCHAR(255) NOT NULL, "
+                    + "bucket TIMESTAMPTZ NOT NULL, "
+                    + "min_temperature DOUBLE PRECISION, "
+                    + "max_temperature DOUBLE PRECISION, "
+                    + "sum_temperature DOUBLE PRECISION, "
+                    + "readings INT, "
+                    + "PRIMARY KEY (location, bucket))");
+        }
+
+        YearMonth oldest = YearMonth.now(ZoneOffset.UTC).minusMonths(RETENTION_MONTHS);
+        List<String> expired = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery("SELECT c.relname FROM pg_inherits i "
+                + "JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent "
+                + "WHERE p.relname = 'weather_history'")) {
+            while (rs.next()) {
+                // Names sort like the months they hold
+                if (rs.getString(1).compareTo(partitionName(oldest)) < 0) {
+                    expired.add(rs.getString(1));
+                }
+            }
+        }
+        for (String partition : expired) {
+            stmt.execute("DROP TABLE IF EXISTS " + partition);
+            Log.info("Dropped expired history partition {}", partition);
+        }
+        stmt.execute("DELETE FROM weather_history_hourly WHERE bucket < '" + oldest.atDay(1) + "T00:00:00Z'");
+    }
+
+    public static void saveAll(List<WeatherHistory.Observation> observations) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = Database.getConnection()) {
+            for (WeatherHistory.Observation observation : observations) {
+                ensurePartition(connection, YearMonth.from(timestamp(observation.time())));
+            }
+            connection.setAutoCommit(false);
+            try (PreparedStatement insertStmt = connection.prepareStatement(INSERT_SQL);
+                 PreparedStatement hourlyStmt = connection.prepareStatement(UPSERT_ROLLUP_SQL.formatted("weather_history_hourly"));
+                 PreparedStatement dailyStmt = connection.prepareStatement(UPSERT_ROLLUP_SQL.formatted("weather_history_daily"))) {
+                for (WeatherHistory.Observation observation : observations) {
+                    insertStmt.setString(1, observation.location());
+                    insertStmt.setObject(2, timestamp(observation.time()));
+                    insertStmt.setDouble(3, observation.temperature());
+                    insertStmt.setString(4, observation.condition());
+                    insertStmt.addBatch();
+                    addRollup(hourlyStmt, observation, WeatherHistory.Resolution.HOUR);
+                    addRollup(dailyStmt, observation, WeatherHistory.Resolution.DAY);
+                }
+                insertStmt.executeBatch();
+                hourlyStmt.executeBatch();
+                dailyStmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } finally {
+            Metrics.DB_HISTORY_SAVE.record(System.nanoTime() - start);
+        }
+    }
+
+    // Points of [from, to) in time order, at most limit of them
+    public static List<WeatherHistory.Point> find(String location, WeatherHistory.Resolution resolution,
+                                                  long from, long to, int limit) throws SQLException {
+        long start = System.nanoTime();
+        String sql = switch (resolution) {
+            case RAW -> FIND_RAW_SQL;
+            case HOUR -> FIND_ROLLUP_SQL.formatted("weather_history_hourly");
+            case DAY -> FIND_ROLLUP_SQL.formatted("weather_history_daily");
+        };
+        try (Connection connection = Database.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, location);
+            stmt.setObject(2, timestamp(resolution.bucket(from)));
+            stmt.setObject(3, timestamp(to));
+            stmt.setInt(4, limit);
+            List<WeatherHistory.Point> points = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    long time = rs.getObject(1, OffsetDateTime.class).toInstant().toEpochMilli();
+                    if (resolution == WeatherHistory.Resolution.RAW) {
+                        double temperature = rs.getDouble(2);
+                        points.add(new WeatherHistory.Point(time, temperature, temperature, temperature, 1, rs.getString(3)));
+                    } else {
+                        points.add(new WeatherHistory.Point(time, rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getInt(5), null));
+                    }
+                }
+            }
+            return points;
+        } finally {
+            Metrics.DB_HISTORY_FIND.record(System.nanoTime() - start);
+        }
+    }
+
+    private static void addRollup(PreparedStatement stmt, WeatherHistory.Observation observation,
+                                  WeatherHistory.Resolution resolution) throws SQLException {
+        stmt.setString(1, observation.location());
+        stmt.setObject(2, timestamp(resolution.bucket(observation.time())));
+        stmt.setDouble(3, observation.temperature());
+        stmt.setDouble(4, observation.temperature());
+        stmt.setDouble(5, observation.temperature());
+        stmt.addBatch();
+    }
+
+    // Partitions are created outside the batch transaction, so a failed batch does not forget them
+    private static void ensurePartition(Connection connection, YearMonth month) throws SQLException {
+        if (partitions.contains(month)) {
+            return;
+        }
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + partitionName(month) + " PARTITION OF weather_history "
+                    + "FOR VALUES FROM ('" + month.atDay(1) + "T00:00:00Z') TO ('" + month.plusMonths(1).atDay(1) + "T00:00:00Z')");
+        }
+        partitions.add(month);
+    }
+
+    private static String partitionName(YearMonth month) {
+        return "weather_history_" + month.format(PARTITION_SUFFIX);
+    }
+
+    private static OffsetDateTime timestamp(long epochMillis) {
+        return Instant.ofEpochMilli(epochMillis).atOffset(ZoneOffset.UTC);
+    }
+}
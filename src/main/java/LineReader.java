@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Reads UTF-8 text lines like BufferedReader.readLine, but fails a line longer than maxLineBytes instead of buffering
+// whatever a client sends before its newline. Lines end at '\n', with a trailing '\r' dropped.
+public class LineReader {
+    private final InputStream in;
+    private final int maxLineBytes;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private byte[] line = new byte[256];
+
+    public LineReader(InputStream in, int maxLineBytes) {
+        this.in = in;
+        this.maxLineBytes = maxLineBytes;
+    }
+
+    // Returns null at the end of the stream; a last line without a newline is still returned
+    public String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit) {
+                int read = in.read(buffer);
+                if (read == -1) {
+                    return length == 0 ? null : decode(length);
+                }
+                position = 0;
+                limit = read;
+            }
+            int end = position;
+            while (end < limit && buffer[end] != '\n') {
+                end++;
+            }
+            int count = end - position;
+            if (length + count > maxLineBytes) {
+                throw new IOException("Request line too long");
+            }
+            if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.min(maxLineBytes, Math.max(2 * line.length, length + count)));
+            }
+            System.arraycopy(buffer, position, line, length, count);
+            length += count;
+            if (end < limit) {
+                position = end + 1;
+                return decode(length);
+            }
+            position = limit;
+        }
+    }
+
+    // Whether another line has at least started arriving, so reading it would not block for long
+    public boolean ready() throws IOException {
+        return position < limit || in.available() > 0;
+    }
+
+    private String decode(int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,427 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Headless load generator for the socket protocol and, with HTTP_GET or HTTP_REVALIDATE in the mix, the HTTP
+// front-end, for capacity tests:
+//   java [-Dweather.load.<option>=...] [-Dweather.protocol=binary] LoadGenerator
+// With weather.load.nodes it starts a cluster of that many nodes on localhost first, so running it with 1, 2, 4 ...
+// nodes at the same offered rate shows how throughput and response times scale with the cluster size.
+// Every client is a virtual thread with its own connection. Commands are scheduled open-loop, at exponentially
+// distributed gaps averaging weather.load.rate over all clients, whether or not the server keeps up. Response
+// times run from the scheduled send, not the actual one, so a stall also counts against every command queued
+// behind it instead of quietly lowering the offered load (coordinated omission).
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("weather.load.host", "localhost");
+    // The server's default, read here rather than from WeatherServer.PORT: touching WeatherServer initializes it, and
+    // an in-process server has to see the settings startServer gives it
+    private static final int PORT = Integer.getInteger("weather.load.port", Integer.getInteger("weather.port", 12345));
+    // Starts a server in this JVM on a generated data set instead of connecting to a running one
+    private static final boolean IN_PROCESS = Boolean.getBoolean("weather.load.inProcess");
+    // Starts this many cluster nodes as separate processes on a generated data set, on PORT and the ports after it
+    private static final int NODES = Integer.getInteger("weather.load.nodes", 0);
+    // First cluster port of the started nodes, and JVM options passed to each of them
+    private static final int CLUSTER_PORT = Integer.getInteger("weather.load.clusterPort", PORT + 10_000);
+    private static final String NODE_OPTIONS = System.getProperty("weather.load.nodeOptions", "");
+    // Clients are spread over these servers in turn: the started nodes, or weather.load.ports (comma-separated)
+    private static final int[] PORTS = NODES > 0
+            ? IntStream.range(PORT, PORT + NODES).toArray()
+            : Stream.of(System.getProperty("weather.load.ports", String.valueOf(PORT)).split(","))
+                    .mapToInt(port -> Integer.parseInt(port.trim())).toArray();
+    private static final boolean BINARY = "binary".equals(System.getProperty("weather.protocol", "text"));
+    private static final int CLIENTS = Integer.getInteger("weather.load.clients", 100);
+    // Commands per second over all clients
+    private static final double RATE = Double.parseDouble(System.getProperty("weather.load.rate", "1000"));
+    private static final long WARMUP_SECONDS = Long.getLong("weather.load.warmupSeconds", 5L);
+    private static final long DURATION_SECONDS = Long.getLong("weather.load.durationSeconds", 30L);
+    // Relative weights of the commands
+    private static final String MIX = System.getProperty("weather.load.mix", "GET_WEATHER=85,SET_LOCATION=10,LOGIN=4,PROVISION=1");
+    private static final boolean HTTP = parseMix(MIX).stream().anyMatch(Operation::http);
+    // HTTP requests go to these ports, like PORTS: one per started node from weather.load.httpPort on, or
+    // weather.load.httpPorts (comma-separated)
+    private static final int HTTP_PORT = Integer.getInteger("weather.load.httpPort", Integer.getInteger("weather.httpPort", 8080));
+    private static final int[] HTTP_PORTS = NODES > 0
+            ? IntStream.range(HTTP_PORT, HTTP_PORT + NODES).toArray()
+            : Stream.of(System.getProperty("weather.load.httpPorts", String.valueOf(HTTP_PORT)).split(","))
+                    .mapToInt(port -> Integer.parseInt(port.trim())).toArray();
+    // Stations are named Station-0 .. Station-<locations - 1>, as WeatherDataGenerator writes them
+    private static final int LOCATIONS = Integer.getInteger("weather.load.locations", 10_000);
+    private static final int PROVISION_BATCH = Integer.getInteger("weather.load.provisionBatch", 100);
+    // An admin, so PROVISION is allowed: written to users.txt of the servers this generator starts, and expected in
+    // users.txt of a server it only connects to
+    private static final String USER = System.getProperty("weather.load.user", "load");
+    private static final String PASSWORD = System.getProperty("weather.load.password", "load-password");
+    // Opens a new connection for every command and closes it after the reply, to measure how fast an engine accepts
+    // connections rather than how fast it answers on open ones
+    private static final boolean CONNECTION_PER_COMMAND = Boolean.getBoolean("weather.load.connectionPerCommand");
+    // When set, the run fails if the overall 99th percentile response time is above it
+    private static final long MAX_P99_MILLIS = Long.getLong("weather.load.maxP99Ms", 0L);
+    // Provision files are rotated, so consecutive provisions change the stations they name
+    private static final int PROVISION_FILES = 8;
+
+    // HTTP_GET fetches /weather/<station>; HTTP_REVALIDATE does too, with If-None-Match set to the last ETag any
+    // client got for that station, as a shared cache in front of the server would
+    enum Operation {
+        GET_WEATHER, SET_LOCATION, LOGIN, PROVISION, HTTP_GET, HTTP_REVALIDATE;
+
+        // Measured from the scheduled send; service time runs from the actual send and ignores queueing
+        final LatencyHistogram responseTime = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+
+        boolean http() {
+            return this == HTTP_GET || this == HTTP_REVALIDATE;
+        }
+    }
+
+    private static final LatencyHistogram allResponseTimes = new LatencyHistogram();
+    private static final AtomicLong connectionFailures = new AtomicLong();
+    private static final AtomicLong connectionsOpened = new AtomicLong();
+    // Commands whose scheduled time came before the end of the run but that were never sent
+    private static final AtomicLong unsent = new AtomicLong();
+    private static final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private static final Map<String, String> etags = new ConcurrentHashMap<>();
+    private static final AtomicLong notModified = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (IN_PROCESS && NODES > 0) {
+            throw new IllegalArgumentException("weather.load.inProcess and weather.load.nodes cannot be combined");
+        }
+        Path workDir = Files.createTempDirectory("weather-load");
+        List<Process> nodes = new ArrayList<>();
+        try {
+            if (IN_PROCESS) {
+                startServer(workDir);
+            }
+            if (NODES > 0) {
+                startCluster(workDir, nodes);
+            }
+            run(workDir);
+        } finally {
+            if (IN_PROCESS) {
+                WeatherServer.stopServer();
+                Log.flush();
+            }
+            for (Process node : nodes) {
+                node.destroy();
+                node.waitFor();
+            }
+            delete(workDir);
+        }
+        if (MAX_P99_MILLIS > 0 && allResponseTimes.percentileNanos(99) > MAX_P99_MILLIS * 1_000_000) {
+            System.out.println("FAILED: p99 response time above " + MAX_P99_MILLIS + " ms");
+            System.exit(1);
+        }
+    }
+
+    // Runs the server on a fresh data set, so the repository's data and journal are left alone. Settings given on
+    // the command line win; otherwise throttling, the HTTP front-end and the server log are off and the database is
+    // left out.
+    private static void startServer(Path workDir) throws IOException, InterruptedException {
+        WeatherDataGenerator.generate(workDir.resolve("weather_data.json"), LOCATIONS, 42L);
+        writeUsers(workDir);
+        System.setProperty("weather.dataDir", workDir.toString());
+        System.setProperty("weather.port", String.valueOf(PORT));
+        System.getProperties().putIfAbsent("weather.httpPort", HTTP ? String.valueOf(HTTP_PORT) : "-1");
+        System.getProperties().putIfAbsent("weather.rateLimit.connection", "0");
+        System.getProperties().putIfAbsent("weather.rateLimit.user", "0");
+        System.getProperties().putIfAbsent("weather.rateLimit.admin", "0");
+        System.getProperties().putIfAbsent("weather.log.level", "OFF");
+        // No JDBC driver takes this URL, so database writes fail at once instead of waiting for a connection
+        if (!Boolean.getBoolean("weather.load.database")) {
+            System.setProperty("db.url", "jdbc:none:");
+        }
+        WeatherServer.main(new String[0]);
+        awaitServer(PORT);
+    }
+
+    // Every node gets a directory of its own with a copy of the data set and keeps the locations it owns. The
+    // nodes run with the same defaults as the in-process server; weather.load.nodeOptions can override them.
+    private static void startCluster(Path workDir, List<Process> nodes) throws IOException, InterruptedException {
+        Path data = workDir.resolve("weather_data.json");
+        WeatherDataGenerator.generate(data, LOCATIONS, 42L);
+        List<String> clusterNodes = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            clusterNodes.add("localhost:" + (CLUSTER_PORT + i));
+        }
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        // Fresh for every run, the nodes only need to agree on it
+        String secret = UUID.randomUUID().toString();
+        for (int i = 0; i < NODES; i++) {
+            Path nodeDir = Files.createDirectory(workDir.resolve("node-" + i));
+            Files.copy(data, nodeDir.resolve("weather_data.json"));
+            writeUsers(nodeDir);
+            List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                    "-Dweather.dataDir=" + nodeDir, "-Dweather.port=" + PORTS[i],
+                    "-Dweather.cluster.nodes=" + String.join(",", clusterNodes), "-Dweather.cluster.self=" + i,
+                    "-Dweather.cluster.secret=" + secret,
+                    "-Dweather.httpPort=" + (HTTP ? HTTP_PORTS[i] : -1), "-Dweather.rateLimit.connection=0", "-Dweather.rateLimit.user=0",
+                    "-Dweather.rateLimit.admin=0", "-Dweather.log.level=OFF"));
+            if (!Boolean.getBoolean("weather.load.database")) {
+                command.add("-Ddb.url=jdbc:none:");
+            }
+            if (!NODE_OPTIONS.isBlank()) {
+                command.addAll(List.of(NODE_OPTIONS.trim().split("\\s+")));
+            }
+            command.add("WeatherServer");
+            nodes.add(new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(workDir.resolve("node-" + i + ".log").toFile()).start());
+        }
+        for (int port : PORTS) {
+            awaitServer(port);
+        }
+        System.out.println("Started " + NODES + " cluster nodes on ports " + PORTS[0] + "-" + PORTS[PORTS.length - 1]);
+    }
+
+    // The server hashes the plaintext password when it loads the file
+    private static void writeUsers(Path dataDir) throws IOException {
+        Files.writeString(dataDir.resolve("users.txt"), USER + "," + PASSWORD + ",admin\n");
+    }
+
+    private static void awaitServer(int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (true) {
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void run(Path workDir) throws IOException, InterruptedException {
+        List<Operation> mix = parseMix(MIX);
+        List<String> provisionFiles = new ArrayList<>();
+        if (mix.contains(Operation.PROVISION)) {
+            // The server reads these itself, so a remote server needs the same path on a shared filesystem
+            for (int i = 0; i < PROVISION_FILES; i++) {
+                Path file = workDir.resolve("provision-" + i + ".json");
+                WeatherDataGenerator.generate(file, PROVISION_BATCH, 1000L + i);
+                provisionFiles.add(file.toAbsolutePath().toString());
+            }
+        }
+        System.out.println("Offering " + RATE + " commands/s from " + CLIENTS + " clients (" + (BINARY ? "binary" : "text")
+                + " protocol" + (HTTP ? " and HTTP" : "") + ") for " + WARMUP_SECONDS + " s of warm-up and " + DURATION_SECONDS + " s of measurement");
+        long start = System.nanoTime() + 100_000_000L;
+        long measureFrom = start + WARMUP_SECONDS * 1_000_000_000L;
+        long end = measureFrom + DURATION_SECONDS * 1_000_000_000L;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CLIENTS; i++) {
+                int client = i;
+                clients.submit(() -> runClient(client, mix, provisionFiles, start, measureFrom, end));
+            }
+        }
+        report();
+    }
+
+    private static void runClient(int client, List<Operation> mix, List<String> provisionFiles,
+                                  long start, long measureFrom, long end) {
+        Random random = new Random(client);
+        double meanGapNanos = 1e9 * CLIENTS / RATE;
+        // Clients start at random points of their first gap instead of all at once
+        long scheduled = start + (long) (random.nextDouble() * meanGapNanos);
+        long requestId = 0;
+        // None is kept open with weather.load.connectionPerCommand, or when every command goes over HTTP
+        try (WeatherConnection connection = CONNECTION_PER_COMMAND || mix.stream().allMatch(Operation::http) ? null
+                : WeatherConnection.open(HOST, PORTS[client % PORTS.length], BINARY)) {
+            if (connection != null) {
+                request(connection, ++requestId, "LOGIN:" + USER + ":" + PASSWORD);
+                request(connection, ++requestId, randomLocation(random));
+            }
+            while (scheduled < end) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    // Behind schedule when the run ended: the server could not take the offered load
+                    unsent.incrementAndGet();
+                    scheduled += nextGap(random, meanGapNanos);
+                    continue;
+                }
+                while (now < scheduled) {
+                    LockSupport.parkNanos(scheduled - now);
+                    now = System.nanoTime();
+                }
+                Operation operation = mix.get(random.nextInt(mix.size()));
+                String command = switch (operation) {
+                    case GET_WEATHER -> "GET_WEATHER";
+                    case SET_LOCATION -> randomLocation(random);
+                    case LOGIN -> "LOGIN:" + USER + ":" + PASSWORD;
+                    case PROVISION -> "PROVISION WEATHER DATA:" + provisionFiles.get(random.nextInt(provisionFiles.size()));
+                    case HTTP_GET, HTTP_REVALIDATE -> "/weather/Station-" + random.nextInt(LOCATIONS);
+                };
+                long sent = System.nanoTime();
+                List<String> reply = operation.http() ? httpRequest(client, operation, command)
+                        : CONNECTION_PER_COMMAND ? requestOnNewConnection(client, operation, command, random)
+                        : request(connection, ++requestId, command);
+                long done = System.nanoTime();
+                if (scheduled >= measureFrom) {
+                    operation.responseTime.record(done - scheduled);
+                    allResponseTimes.record(done - scheduled);
+                    operation.serviceTime.record(done - sent);
+                    if (reply == null || reply.stream().anyMatch(line -> line.startsWith("ERROR"))) {
+                        operation.errors.incrementAndGet();
+                    }
+                }
+                scheduled += nextGap(random, meanGapNanos);
+            }
+        } catch (IOException e) {
+            connectionFailures.incrementAndGet();
+        }
+    }
+
+    // Connects, sets up what the command needs (a location for GET_WEATHER, an admin login for PROVISION), sends it
+    // and closes; null when the connection was refused or dropped, which counts as an error rather than ending the client
+    private static List<String> requestOnNewConnection(int client, Operation operation, String command, Random random) {
+        try (WeatherConnection connection = WeatherConnection.open(HOST, PORTS[client % PORTS.length], BINARY)) {
+            connectionsOpened.incrementAndGet();
+            if (operation == Operation.GET_WEATHER) {
+                request(connection, 1, randomLocation(random));
+            } else if (operation == Operation.PROVISION) {
+                request(connection, 1, "LOGIN:" + USER + ":" + PASSWORD);
+            }
+            return request(connection, 2, command);
+        } catch (IOException e) {
+            connectionFailures.incrementAndGet();
+            return null;
+        }
+    }
+
+    // The body as the only line of the reply, none for a 304; null for a failed request or any other status
+    private static List<String> httpRequest(int client, Operation operation, String path) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://" + HOST + ":" + HTTP_PORTS[client % HTTP_PORTS.length] + path));
+        String etag = operation == Operation.HTTP_REVALIDATE ? etags.get(path) : null;
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        try {
+            HttpResponse<String> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 304) {
+                notModified.incrementAndGet();
+                return List.of();
+            }
+            if (response.statusCode() != 200) {
+                return null;
+            }
+            response.headers().firstValue("ETag").ifPresent(tag -> etags.put(path, tag));
+            return List.of(response.body());
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Sends a tagged command and reads its reply, whose header gives the line count on either protocol
+    private static List<String> request(WeatherConnection connection, long requestId, String command) throws IOException {
+        connection.sendTagged(requestId, command);
+        String header = connection.readLine();
+        String expected = "#" + requestId + " ";
+        if (header == null || !header.startsWith(expected)) {
+            throw new IOException("Unexpected reply header: " + header);
+        }
+        int lines = Integer.parseInt(header.substring(expected.length()));
+        List<String> reply = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++) {
+            String line = connection.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed mid-reply");
+            }
+            reply.add(line);
+        }
+        return reply;
+    }
+
+    // Mostly stations of the data set by name, sometimes an unknown name that takes the nearby fallback
+    private static String randomLocation(Random random) {
+        double latitude = Math.round((random.nextDouble() * 130 - 60) * 10_000) / 10_000.0;
+        double longitude = Math.round((random.nextDouble() * 360 - 180) * 10_000) / 10_000.0;
+        String name = random.nextInt(10) == 0 ? "Nowhere-" + random.nextInt(1000) : "Station-" + random.nextInt(LOCATIONS);
+        return "SET_LOCATION:" + name + ":" + latitude + ":" + longitude;
+    }
+
+    // Poisson arrivals: exponential gaps with the given mean
+    private static long nextGap(Random random, double meanGapNanos) {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+    }
+
+    // "GET_WEATHER=85,LOGIN=4" becomes a list holding each operation as many times as its weight
+    private static List<Operation> parseMix(String mix) {
+        List<Operation> operations = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] weight = part.trim().split("=", 2);
+            Operation operation = Operation.valueOf(weight[0].trim().toUpperCase());
+            int count = weight.length > 1 ? Integer.parseInt(weight[1].trim()) : 1;
+            for (int i = 0; i < count; i++) {
+                operations.add(operation);
+            }
+        }
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("Empty command mix: " + mix);
+        }
+        return operations;
+    }
+
+    private static void report() {
+        long completed = allResponseTimes.count();
+        System.out.printf("Completed %d commands, %.1f/s%n", completed, completed / (double) DURATION_SECONDS);
+        if (CONNECTION_PER_COMMAND) {
+            System.out.printf("Opened %d connections, %.1f/s over the whole run%n", connectionsOpened.get(),
+                    connectionsOpened.get() / (double) (WARMUP_SECONDS + DURATION_SECONDS));
+        }
+        System.out.println("Response time from the scheduled send, in microseconds (service time p99 excludes queueing):");
+        System.out.printf("%-13s %9s %7s %9s %9s %9s %9s %9s %12s%n",
+                "command", "count", "errors", "p50", "p90", "p99", "p99.9", "max", "service p99");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = operation.responseTime;
+            if (histogram.count() == 0) {
+                continue;
+            }
+            System.out.printf("%-13s %9d %7d %9d %9d %9d %9d %9d %12d%n", operation, histogram.count(), operation.errors.get(),
+                    histogram.percentileNanos(50) / 1000, histogram.percentileNanos(90) / 1000,
+                    histogram.percentileNanos(99) / 1000, histogram.percentileNanos(99.9) / 1000,
+                    histogram.maxNanos() / 1000, operation.serviceTime.percentileNanos(99) / 1000);
+        }
+        System.out.println("All commands: p50 " + allResponseTimes.percentileNanos(50) / 1000 + " us, p99 "
+                + allResponseTimes.percentileNanos(99) / 1000 + " us, max " + allResponseTimes.maxNanos() / 1000 + " us");
+        if (notModified.get() > 0) {
+            System.out.println("HTTP requests answered 304 Not Modified over the whole run: " + notModified.get());
+        }
+        if (unsent.get() > 0) {
+            System.out.println("Not sent before the end, the server fell behind: " + unsent.get());
+        }
+        if (connectionFailures.get() > 0) {
+            System.out.println((CONNECTION_PER_COMMAND ? "Connections refused or dropped: " : "Clients that lost their connection: ")
+                    + connectionFailures.get());
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+// Location names by their normalized form (lower case, single spaces, no diacritics), for lookups that forgive
+// how a name was typed and for SEARCH. The keys are kept sorted in one array, so a prefix is a contiguous range
+// found by binary search, and the array can be walked like a trie: the edit-distance rows of a shared prefix are
+// computed once, and every key below a prefix that is already too far from the query is skipped at once. The skip
+// follows the common prefix lengths of neighbouring keys, so it never has to search among the keys themselves.
+// Readers work on an immutable snapshot; new names are merged into a copy that replaces it.
+public class LocationNameIndex {
+
+    // One candidate; distance is the edit distance between the query and the closest prefix of the name
+    record Match(String location, int distance) {
+    }
+
+    // common[i] is the length of the prefix keys[i] shares with keys[i - 1]; nextShorter[i] is the first position
+    // after i whose common prefix is shorter than common[i]
+    private record Snapshot(String[] keys, String[] names, int maxKeyLength, char[] common, int[] nextShorter) {
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(new String[0], new String[0], 0, new char[0], new int[0]);
+
+    // Lower case, runs of whitespace as one space, no leading or trailing space, and diacritics removed
+    static String normalize(String name) {
+        if (isNormalAscii(name)) {
+            return name;
+        }
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFKD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        boolean space = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            int type = Character.getType(c);
+            if (type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK || type == Character.ENCLOSING_MARK) {
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            // Letters that Unicode does not decompose into a base letter and a mark
+            switch (Character.toLowerCase(c)) {
+                case 'ß' -> normalized.append("ss");
+                case 'æ' -> normalized.append("ae");
+                case 'œ' -> normalized.append("oe");
+                case 'ø' -> normalized.append('o');
+                case 'ł' -> normalized.append('l');
+                case 'đ' -> normalized.append('d');
+                case 'ı' -> normalized.append('i');
+                default -> normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+
+    // Most names need no work; they are kept as the same String
+    private static boolean isNormalAscii(String name) {
+        int length = name.length();
+        if (length == 0 || name.charAt(0) == ' ' || name.charAt(length - 1) == ' ') {
+            return length == 0;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80 || (c >= 'A' && c <= 'Z') || (c < ' ') || (c == ' ' && name.charAt(i - 1) == ' ')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized void clear() {
+        snapshot = new Snapshot(new String[0], new String[0], 0, new char[0], new int[0]);
+    }
+
+    // Names must not be in the index yet; each call copies the index once, so callers pass whole batches
+    synchronized void addAll(Collection<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        String[][] added = new String[names.size()][];
+        int count = 0;
+        for (String name : names) {
+            added[count++] = new String[]{normalize(name), name};
+        }
+        Arrays.sort(added, (a, b) -> compare(a[0], a[1], b[0], b[1]));
+
+        Snapshot current = snapshot;
+        int total = current.keys().length + added.length;
+        String[] keys = new String[total];
+        String[] locations = new String[total];
+        int maxKeyLength = current.maxKeyLength();
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < total; k++) {
+            boolean takeCurrent = j == added.length || (i < current.keys().length
+                    && compare(current.keys()[i], current.names()[i], added[j][0], added[j][1]) <= 0);
+            if (takeCurrent) {
+                keys[k] = current.keys()[i];
+                locations[k] = current.names()[i++];
+            } else {
+                keys[k] = added[j][0];
+                locations[k] = added[j++][1];
+                maxKeyLength = Math.max(maxKeyLength, keys[k].length());
+            }
+        }
+        char[] common = new char[total];
+        for (int k = 1; k < total; k++) {
+            common[k] = (char) commonPrefix(keys[k - 1], keys[k]);
+        }
+        int[] nextShorter = new int[total];
+        // Positions still waiting for a shorter common prefix, their lengths increasing towards the top
+        int[] waiting = new int[total];
+        int top = 0;
+        for (int k = 0; k < total; k++) {
+            while (top > 0 && common[waiting[top - 1]] > common[k]) {
+                nextShorter[waiting[--top]] = k;
+            }
+            waiting[top++] = k;
+        }
+        while (top > 0) {
+            nextShorter[waiting[--top]] = total;
+        }
+        snapshot = new Snapshot(keys, locations, maxKeyLength, common, nextShorter);
+    }
+
+    // By normalized name, then by the name itself
+    private static int compare(String key, String name, String otherKey, String otherName) {
+        int order = key.compareTo(otherKey);
+        return order != 0 ? order : name.compareTo(otherName);
+    }
+
+    public int size() {
+        return snapshot.keys().length;
+    }
+
+    // The indexed name that normalizes like the given one, or null
+    public String canonical(String name) {
+        Snapshot index = snapshot;
+        String key = normalize(name);
+        int first = lowerBound(index.keys(), key);
+        return first < index.keys().length && index.keys()[first].equals(key) ? index.names()[first] : null;
+    }
+
+    // Up to limit names ordered by distance, then by normalized name: completions of the query first (the exact
+    // name leads them), then names within the allowed number of edits of the query or one of its prefixes
+    public List<Match> search(String query, int limit) {
+        Snapshot index = snapshot;
+        String[] keys = index.keys();
+        String q = normalize(query);
+        if (limit <= 0 || keys.length == 0) {
+            return List.of();
+        }
+        // Candidates as distance << 32 | position, kept sorted
+        long[] found = new long[limit];
+        int count = 0;
+
+        int prefixStart = lowerBound(keys, q);
+        int prefixEnd = endOfPrefix(keys, q, q.length(), prefixStart);
+        for (int i = prefixStart; i < prefixEnd && count < limit; i++) {
+            found[count++] = i;
+        }
+        // Short queries match too much with typos allowed. One edit more per pass: the closer matches found first
+        // fill the candidates and tighten the bound, which keeps the wider passes from exploring much.
+        int maxEdits = q.length() <= 3 ? 0 : q.length() <= 6 ? 1 : 2;
+        for (int edits = 1; edits <= maxEdits && count < limit; edits++) {
+            count = walk(index, q, edits, prefixStart, prefixEnd, found, count);
+        }
+
+        List<Match> matches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            matches.add(new Match(index.names()[(int) found[i]], (int) (found[i] >>> 32)));
+        }
+        return matches;
+    }
+
+    // Visits the keys in order with one Levenshtein row per character of the current key; rows of the prefix it
+    // shares with the previous key are reused. A key's distance is the best last column over its rows, and once
+    // neither that nor any cell of a row can get under the bound, all keys sharing that prefix are skipped.
+    // Only keys exactly edits away are added; closer ones were found by the earlier passes.
+    private static int walk(Snapshot index, String q, int edits, int skipFrom, int skipTo, long[] found, int count) {
+        String[] keys = index.keys();
+        int m = q.length();
+        int depths = index.maxKeyLength() + 1;
+        int[][] rows = new int[depths][m + 1];
+        int[] rowMin = new int[depths];
+        // best[d]: distance between the query and the closest prefix of the key up to length d
+        int[] best = new int[depths];
+        for (int j = 0; j <= m; j++) {
+            rows[0][j] = j;
+        }
+        best[0] = m;
+        String rowsKey = "";
+        int rowsDepth = 0;
+
+        int i = 0;
+        while (i < keys.length) {
+            if (i >= skipFrom && i < skipTo) {
+                // The completions, already taken
+                i = skipTo;
+                continue;
+            }
+            String key = keys[i];
+            // Later keys only enter by being strictly closer, since they come after the candidates in name order
+            int bound = count == found.length ? (int) (found[count - 1] >>> 32) : edits + 1;
+            int depth = Math.min(rowsDepth, commonPrefix(rowsKey, key));
+            boolean pruned = false;
+            while (true) {
+                if (Math.min(best[depth], rowMin[depth]) >= bound) {
+                    i = subtreeEnd(index, i, depth);
+                    pruned = true;
+                    break;
+                }
+                if (depth == key.length()) {
+                    break;
+                }
+                char c = key.charAt(depth);
+                int[] previous = rows[depth];
+                int[] row = rows[depth + 1];
+                row[0] = depth + 1;
+                int min = row[0];
+                for (int j = 1; j <= m; j++) {
+                    int substitute = previous[j - 1] + (q.charAt(j - 1) == c ? 0 : 1);
+                    row[j] = Math.min(substitute, Math.min(previous[j], row[j - 1]) + 1);
+                    min = Math.min(min, row[j]);
+                }
+                depth++;
+                rowMin[depth] = min;
+                best[depth] = Math.min(best[depth - 1], row[m]);
+                rowsKey = key;
+                rowsDepth = depth;
+            }
+            if (pruned) {
+                continue;
+            }
+            int distance = best[key.length()];
+            if (distance == edits && distance < bound) {
+                count = insert(found, count, (long) distance << 32 | i);
+            }
+            i++;
+        }
+        return count;
+    }
+
+    // Adds the candidate in order, dropping the last one when the array is full
+    private static int insert(long[] found, int count, long candidate) {
+        int position = count == found.length ? count - 1 : count;
+        while (position > 0 && found[position - 1] > candidate) {
+            found[position] = found[position - 1];
+            position--;
+        }
+        found[position] = candidate;
+        return Math.min(count + 1, found.length);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // First position whose key is not less than the given one
+    private static int lowerBound(String[] keys, String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First position from start on whose key does not begin with the first length characters of prefix; the
+    // keys beginning with them are contiguous
+    private static int endOfPrefix(String[] keys, String prefix, int length, int start) {
+        int low = start;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].length() >= length && keys[mid].regionMatches(0, prefix, 0, length)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First position after i whose key does not share the first length characters of keys[i]. Every jump lands
+    // on a shorter common prefix, so it takes at most as many jumps as the prefix has characters.
+    private static int subtreeEnd(Snapshot index, int i, int length) {
+        char[] common = index.common();
+        int next = i + 1;
+        while (next < common.length && common[next] >= length) {
+            next = index.nextShorter()[next];
+        }
+        return next;
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server log. Callers put the template and its arguments into a preallocated lock-free ring buffer;
+// a single writer thread fills in the {} placeholders and writes the lines, so no handler thread ever waits on
+// stdout. Messages below weather.log.level return before anything is formatted or queued.
+public final class Log {
+    // OFF is only a threshold, nothing is logged at it
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("weather.log.level", "INFO").toUpperCase());
+    // text: "<time> <level> [<thread>] <message>"; json: one object per line with the same fields
+    private static final boolean JSON = "json".equals(System.getProperty("weather.log.format", "text"));
+    // drop discards messages while the buffer is full, block makes the caller wait for room
+    private static final boolean BLOCK_WHEN_FULL = "block".equals(System.getProperty("weather.log.overflow", "drop"));
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("weather.log.bufferSize", 8192)));
+    private static final int MASK = CAPACITY - 1;
+
+    private static final class Event {
+        Level level;
+        long timeMillis;
+        String thread;
+        String template;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+        Object arg3;
+    }
+
+    // Bounded multi-producer queue after Vyukov: a slot's sequence says whether it is free for the producer
+    // claiming position p (sequence == p) or holds an event for the consumer (sequence == p + 1)
+    private static final Event[] events = new Event[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    // Only the writer thread advances these; flushed trails head until the written lines reach stdout
+    private static volatile long head;
+    private static volatile long flushed;
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            events[i] = new Event();
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    static void debug(String template, Object arg0) {
+        log(Level.DEBUG, template, arg0, null, null, null);
+    }
+
+    static void debug(String template, Object arg0, Object arg1) {
+        log(Level.DEBUG, template, arg0, arg1, null, null);
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message, null, null, null, null);
+    }
+
+    static void info(String template, Object arg0) {
+        log(Level.INFO, template, arg0, null, null, null);
+    }
+
+    static void info(String template, Object arg0, Object arg1) {
+        log(Level.INFO, template, arg0, arg1, null, null);
+    }
+
+    static void info(String template, Object arg0, Object arg1, Object arg2) {
+        log(Level.INFO, template, arg0, arg1, arg2, null);
+    }
+
+    static void info(String template, Object arg0, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, template, arg0, arg1, arg2, arg3);
+    }
+
+    static void warn(String template, Object arg0) {
+        log(Level.WARN, template, arg0, null, null, null);
+    }
+
+    static void warn(String template, Object arg0, Object arg1) {
+        log(Level.WARN, template, arg0, arg1, null, null);
+    }
+
+    static void error(String template, Object arg0) {
+        log(Level.ERROR, template, arg0, null, null, null);
+    }
+
+    static void error(String template, Object arg0, Object arg1) {
+        log(Level.ERROR, template, arg0, arg1, null, null);
+    }
+
+    static long droppedCount() {
+        return dropped.get();
+    }
+
+    // Waits until everything queued so far has been written
+    static void flush() {
+        long target = tail.get();
+        while (flushed < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private static void log(Level level, String template, Object arg0, Object arg1, Object arg2, Object arg3) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & MASK);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Event event = events[index];
+                    event.level = level;
+                    event.timeMillis = System.currentTimeMillis();
+                    event.thread = Thread.currentThread().getName();
+                    event.template = template;
+                    event.arg0 = arg0;
+                    event.arg1 = arg1;
+                    event.arg2 = arg2;
+                    event.arg3 = arg3;
+                    // Publishes the event fields to the writer
+                    sequences.set(index, position + 1);
+                    return;
+                }
+            } else if (difference < 0) {
+                // The writer has not freed this slot yet: the buffer is full
+                if (!BLOCK_WHEN_FULL) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                Thread.yield();
+            }
+            // Otherwise another producer claimed the position first; retry with the new tail
+        }
+    }
+
+    private static void writeLoop() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (true) {
+            int index = (int) (head & MASK);
+            if (sequences.get(index) != head + 1) {
+                long drops = dropped.get();
+                try {
+                    if (drops != reportedDrops) {
+                        out.write("Log buffer full, dropped " + (drops - reportedDrops) + " messages\n");
+                        reportedDrops = drops;
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    // Nowhere left to report a broken stdout; keep draining so callers never wait on it
+                }
+                flushed = head;
+                LockSupport.parkNanos(5_000_000);
+                continue;
+            }
+            Event event = events[index];
+            line.setLength(0);
+            try {
+                format(line, event);
+            } catch (RuntimeException e) {
+                line.setLength(0);
+                line.append("Unformattable log message: ").append(event.template).append('\n');
+            }
+            event.template = null;
+            event.arg0 = null;
+            event.arg1 = null;
+            event.arg2 = null;
+            event.arg3 = null;
+            // Hands the slot back to the producers
+            sequences.set(index, head + CAPACITY);
+            head++;
+            try {
+                out.append(line);
+            } catch (IOException e) {
+                // See above
+            }
+        }
+    }
+
+    // Writer thread only: the date and time up to the second, reused for every event within that second
+    private static long cachedSecond = Long.MIN_VALUE;
+    private static String cachedPrefix;
+
+    private static void appendTime(StringBuilder line, long timeMillis) {
+        long second = Math.floorDiv(timeMillis, 1000);
+        if (second != cachedSecond) {
+            // "2026-01-01T10:00:00Z" without the zone, the milliseconds go in between
+            String text = Instant.ofEpochSecond(second).toString();
+            cachedPrefix = text.substring(0, text.length() - 1);
+            cachedSecond = second;
+        }
+        int millis = Math.floorMod(timeMillis, 1000);
+        line.append(cachedPrefix).append('.').append((char) ('0' + millis / 100))
+                .append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10)).append('Z');
+    }
+
+    private static void format(StringBuilder line, Event event) {
+        if (!JSON) {
+            appendTime(line, event.timeMillis);
+            line.append(' ').append(event.level).append(" [").append(event.thread).append("] ");
+            appendMessage(line, event);
+            line.append('\n');
+            return;
+        }
+        StringBuilder message = new StringBuilder(128);
+        appendMessage(message, event);
+        line.append("{\"time\":\"");
+        appendTime(line, event.timeMillis);
+        line.append("\",\"level\":\"").append(event.level)
+                .append("\",\"thread\":");
+        appendJsonString(line, event.thread);
+        line.append(",\"message\":");
+        appendJsonString(line, message);
+        line.append("}\n");
+    }
+
+    // Replaces each {} with the next argument, the way SLF4J does
+    private static void appendMessage(StringBuilder out, Event event) {
+        String template = event.template;
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = template.indexOf("{}", start)) >= 0 && argument < 4) {
+            out.append(template, start, placeholder);
+            out.append(switch (argument) {
+                case 0 -> event.arg0;
+                case 1 -> event.arg1;
+                case 2 -> event.arg2;
+                default -> event.arg3;
+            });
+            argument++;
+            start = placeholder + 2;
+        }
+        out.append(template, start, template.length());
+    }
+
+    private static void appendJsonString(StringBuilder out, CharSequence value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,87 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Remembers recently verified logins, so a client logging in again skips the slow password hash.
+// Only a keyed HMAC of the password is kept, with a key that never leaves this process.
+public class LoginCache {
+
+    private record Entry(String storedHash, byte[] passwordMac, long expiresAt) {
+    }
+
+    record Stats(long hits, long misses, int size) {
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final byte[] key = new byte[32];
+    // Access-ordered, so the least recently used login is evicted first
+    private final LinkedHashMap<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public LoginCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        new SecureRandom().nextBytes(key);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > LoginCache.this.maxEntries;
+            }
+        };
+    }
+
+    // A hit needs the same password and the same stored hash, so a changed password is never served from the cache
+    public boolean verify(String username, String password, String storedHash) {
+        byte[] passwordMac = mac(username, password);
+        synchronized (entries) {
+            Entry entry = entries.get(username);
+            if (entry != null && entry.expiresAt() - System.nanoTime() > 0 && entry.storedHash().equals(storedHash)
+                    && MessageDigest.isEqual(entry.passwordMac(), passwordMac)) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        if (!PasswordHasher.verify(password, storedHash)) {
+            return false;
+        }
+        if (maxEntries > 0) {
+            synchronized (entries) {
+                entries.put(username, new Entry(storedHash, passwordMac, System.nanoTime() + ttlNanos));
+            }
+        }
+        return true;
+    }
+
+    public void invalidate(String username) {
+        synchronized (entries) {
+            entries.remove(username);
+        }
+    }
+
+    public Stats stats() {
+        synchronized (entries) {
+            return new Stats(hits.get(), misses.get(), entries.size());
+        }
+    }
+
+    private byte[] mac(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC is unavailable: " + e.getMessage(), e);
+        }
+    }
+}
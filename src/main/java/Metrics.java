@@ -0,0 +1,159 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Server-wide counters, gauges and latency histograms. The same values are served by the STATS command,
+// GET /metrics on the HTTP front-end and the weather:type=Metrics MBean.
+public final class Metrics {
+
+    // Protocol commands, each with its own latency histogram; the histogram count doubles as the command counter
+    enum Command {
+        REGISTER, LOGIN, PROVISION, STOP, SET_LOCATION, GET_WEATHER, GET_WEATHER_BATCH,
+        SUBSCRIBE, SUBSCRIBE_NEARBY, UNSUBSCRIBE, STATS, HISTORY, SEARCH, UNKNOWN;
+
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        // Matches without allocating, so it can run for every command
+        static Command of(String input) {
+            if (input.equals("GET_WEATHER")) return GET_WEATHER;
+            if (input.startsWith("SET_LOCATION:")) return SET_LOCATION;
+            if (input.startsWith("GET_WEATHER_BATCH:")) return GET_WEATHER_BATCH;
+            if (input.startsWith("LOGIN:")) return LOGIN;
+            if (input.startsWith("REGISTER:")) return REGISTER;
+            if (input.startsWith("PROVISION WEATHER DATA:")) return PROVISION;
+            if (input.startsWith("SUBSCRIBE:")) return SUBSCRIBE;
+            if (input.startsWith("SUBSCRIBE_NEARBY:")) return SUBSCRIBE_NEARBY;
+            if (input.equals("UNSUBSCRIBE")) return UNSUBSCRIBE;
+            if (input.equals("STATS")) return STATS;
+            if (input.startsWith("HISTORY:")) return HISTORY;
+            if (input.startsWith("SEARCH:")) return SEARCH;
+            if (input.equalsIgnoreCase("STOP")) return STOP;
+            return UNKNOWN;
+        }
+    }
+
+    // Declared before the histograms below, which register themselves in it
+    private static final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    static final LatencyHistogram SPATIAL_LOOKUP = histogram("spatial.nearest");
+    static final LatencyHistogram DB_WEATHER_FIND = histogram("db.weather.find");
+    static final LatencyHistogram DB_WEATHER_SAVE = histogram("db.weather.save");
+    static final LatencyHistogram DB_USER_FIND = histogram("db.user.find");
+    static final LatencyHistogram DB_USER_SAVE = histogram("db.user.save");
+    static final LatencyHistogram DB_BULK_LOAD = histogram("db.bulkLoad");
+    static final LatencyHistogram DB_HISTORY_FIND = histogram("db.history.find");
+    static final LatencyHistogram DB_HISTORY_SAVE = histogram("db.history.save");
+    static final LatencyHistogram CLUSTER_CALL = histogram("cluster.call");
+
+    private Metrics() {
+    }
+
+    static synchronized LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    // Read on every snapshot; suppliers must be cheap and thread-safe
+    static synchronized void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    // Every metric by name; latencies are in microseconds
+    static synchronized Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Command command : Command.values()) {
+            if (command.latency.count() > 0) {
+                addHistogram(values, "command." + command.name(), command.latency);
+            }
+        }
+        histograms.forEach((name, histogram) -> addHistogram(values, name, histogram));
+        gauges.forEach((name, supplier) -> values.put(name, supplier.getAsLong()));
+        return values;
+    }
+
+    // One "name value" line per metric
+    static String render() {
+        StringBuilder text = new StringBuilder(4096);
+        snapshot().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+        return text.toString();
+    }
+
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("weather:type=Metrics"));
+        } catch (JMException e) {
+            Log.error("Error registering metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    private static void addHistogram(Map<String, Long> values, String name, LatencyHistogram histogram) {
+        values.put(name + ".count", histogram.count());
+        values.put(name + ".meanMicros", histogram.meanNanos() / 1000);
+        values.put(name + ".p50Micros", histogram.percentileNanos(50) / 1000);
+        values.put(name + ".p99Micros", histogram.percentileNanos(99) / 1000);
+        values.put(name + ".p999Micros", histogram.percentileNanos(99.9) / 1000);
+        values.put(name + ".maxMicros", histogram.maxNanos() / 1000);
+    }
+
+    // Read-only view of snapshot(); the attribute list follows the metrics that exist at the time of the call
+    private static final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations: " + actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Weather server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class NioConnectionEngine implements ConnectionEngine {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final int WORKERS = Integer.getInteger("weather.nio.workers",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    // A session stops being read while this many reply bytes or parsed requests wait for it
+    private static final int MAX_QUEUED_BYTES = Integer.getInteger("weather.nio.maxQueuedBytes", 1 << 20);
+    private static final int MAX_QUEUED_REQUESTS = 256;
+
+    private final int port;
+    private final int maxConnections;
+    private final int idleTimeoutMs;
+    private final int drainTimeoutMs;
+    private volatile Selector selector;
+    private volatile boolean running = true;
+    private volatile int activeConnections;
+    private ExecutorService workers;
+    // Sessions with pushed updates waiting, filled by provisioning threads and drained by the selector thread
+    private final Queue<Session> pushReady = new ConcurrentLinkedQueue<>();
+    // Replies produced by the workers, handed back to the selector thread for writing
+    private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+
+    NioConnectionEngine(int port, int maxConnections, int idleTimeoutMs, int drainTimeoutMs) {
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.drainTimeoutMs = drainTimeoutMs;
+    }
+
+    // Per-connection state kept as the selection key attachment; apart from output and handler, which belong to the
+    // single worker task a session may have running, it is only touched by the selector thread
+    private class Session {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final WeatherServer.ClientHandler handler = new WeatherServer.ClientHandler(output, this::wakeup);
+        SelectionKey key;
+        // Bytes of the current text line
+        final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        // Length prefix and body of the binary frame being read; frame is null until the prefix is complete
+        final ByteBuffer frameLength = ByteBuffer.allocate(4);
+        ByteBuffer frame;
+        Boolean binary;
+        // Complete requests (text lines or binary frames) waiting for a worker
+        final Queue<Object> inbox = new ArrayDeque<>();
+        final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        int queuedBytes;
+        boolean busy;
+        boolean pushPending;
+        long lastActivity = System.currentTimeMillis();
+        boolean closeAfterWrite;
+
+        private void wakeup() {
+            pushReady.add(this);
+            wakeSelector();
+        }
+    }
+
+    private record Completion(Session session, byte[] reply, boolean keepOpen, boolean failed) {
+    }
+
+    @Override
+    public void serve() throws IOException {
+        try (Selector sel = Selector.open();
+             ExecutorService pool = Executors.newFixedThreadPool(WORKERS, Thread.ofPlatform().name("nio-worker-", 0).factory())) {
+            selector = sel;
+            workers = pool;
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(new InetSocketAddress(port));
+                serverChannel.configureBlocking(false);
+                serverChannel.register(sel, SelectionKey.OP_ACCEPT);
+                Log.info("Server is running on port {}", port);
+                while (running) {
+                    poll(sel, serverChannel);
+                }
+            }
+            // Closing the server channel stopped accepting; the open sessions are served until they finish or the drain times out
+            Log.info("Server has been stopped.");
+            long drainDeadline = System.currentTimeMillis() + drainTimeoutMs;
+            while (activeConnections > 0 && System.currentTimeMillis() < drainDeadline) {
+                poll(sel, null);
+            }
+
+            for (SelectionKey key : sel.keys()) {
+                if (key.attachment() instanceof Session) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private void poll(Selector sel, ServerSocketChannel serverChannel) throws IOException {
+        sel.select(SELECT_TIMEOUT_MS);
+        Iterator<SelectionKey> keys = sel.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            try {
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable() && serverChannel != null) {
+                    accept(serverChannel, sel);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                // One failing session must not take down the selector loop
+                Log.error("Client error: {}", e.getMessage());
+                close(key);
+            }
+        }
+        completeReplies();
+        deliverPushes();
+        closeIdleSessions(sel);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        wakeSelector();
+    }
+
+    private void wakeSelector() {
+        Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
+    @Override
+    public int activeConnections() {
+        return activeConnections;
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Selector sel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            if (activeConnections >= maxConnections) {
+                channel.write(ByteBuffer.wrap("ERROR: Server busy.\n".getBytes(StandardCharsets.UTF_8)));
+                channel.close();
+                continue;
+            }
+            Session session = new Session();
+            session.key = channel.register(sel, SelectionKey.OP_READ, session);
+            activeConnections++;
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        int read = channel.read(buffer);
+        if (read == -1) {
+            close(key);
+            return;
+        }
+        session.lastActivity = System.currentTimeMillis();
+        buffer.flip();
+
+        if (session.binary == null) {
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+            session.binary = (buffer.get(buffer.position()) & 0xFF) == BinaryProtocol.MAGIC;
+            if (session.binary) {
+                buffer.get();
+            }
+        }
+        if (session.binary) {
+            readFrames(session, buffer);
+        } else {
+            readLines(session, buffer);
+        }
+        dispatch(session);
+        updateInterest(key, session);
+    }
+
+    // Scans the buffer in place, copying each line into pending only up to its newline
+    private void readLines(Session session, ByteBuffer buffer) throws IOException {
+        byte[] data = buffer.array();
+        int start = buffer.position();
+        int end = buffer.limit();
+        while (start < end) {
+            int newline = start;
+            while (newline < end && data[newline] != '\n') {
+                newline++;
+            }
+            if (session.pending.size() + newline - start > WeatherServer.MAX_LINE_BYTES) {
+                throw new IOException("Request line too long");
+            }
+            session.pending.write(data, start, newline - start);
+            if (newline == end) {
+                break;
+            }
+            String input = session.pending.toString(StandardCharsets.UTF_8);
+            session.pending.reset();
+            if (input.endsWith("\r")) {
+                input = input.substring(0, input.length() - 1);
+            }
+            session.inbox.add(input);
+            start = newline + 1;
+        }
+    }
+
+    // Fills the length prefix, then a buffer of exactly that size, so every byte read is copied once
+    private void readFrames(Session session, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (session.frame == null) {
+                transfer(buffer, session.frameLength);
+                if (session.frameLength.hasRemaining()) {
+                    break;
+                }
+                int length = session.frameLength.flip().getInt();
+                session.frameLength.clear();
+                if (length < 1 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                session.frame = ByteBuffer.allocate(length);
+            }
+            transfer(buffer, session.frame);
+            if (!session.frame.hasRemaining()) {
+                session.inbox.add(session.frame.array());
+                session.frame = null;
+            }
+        }
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int count = Math.min(from.remaining(), to.remaining());
+        to.put(to.position(), from, from.position(), count);
+        to.position(to.position() + count);
+        from.position(from.position() + count);
+    }
+
+    // Hands the session's waiting requests and pushed updates to a worker, unless one is already busy with it; a
+    // session is worked on by one thread at a time so its replies keep the order of its requests
+    private void dispatch(Session session) {
+        if (session.busy || session.closeAfterWrite || (session.inbox.isEmpty() && !session.pushPending)) {
+            return;
+        }
+        List<Object> requests = new ArrayList<>(session.inbox);
+        session.inbox.clear();
+        boolean pushes = session.pushPending;
+        session.pushPending = false;
+        session.busy = true;
+        workers.execute(() -> execute(session, requests, pushes));
+    }
+
+    // Runs on a worker thread: commands may hash passwords, wait for the database or call other cluster nodes
+    private void execute(Session session, List<Object> requests, boolean pushes) {
+        Completion completion;
+        try {
+            boolean keepOpen = true;
+            for (Object request : requests) {
+                keepOpen = request instanceof String input ? session.handler.handleCommand(input)
+                        : session.handler.handleFrame((byte[]) request);
+                if (!keepOpen) {
+                    break;
+                }
+            }
+            if (keepOpen && pushes && !session.handler.drainPushes(null)) {
+                Log.info("Disconnecting slow subscriber.");
+                keepOpen = false;
+            }
+            session.handler.flush();
+            completion = new Completion(session, session.output.toByteArray(), keepOpen, false);
+            session.output.reset();
+        } catch (IOException | RuntimeException e) {
+            Log.error("Client error: {}", e.getMessage());
+            completion = new Completion(session, null, false, true);
+        }
+        completions.add(completion);
+        wakeSelector();
+    }
+
+    private void completeReplies() {
+        Completion completion;
+        while ((completion = completions.poll()) != null) {
+            Session session = completion.session();
+            session.busy = false;
+            SelectionKey key = session.key;
+            if (!key.isValid()) {
+                continue;
+            }
+            if (completion.failed()) {
+                close(key);
+                continue;
+            }
+            session.lastActivity = System.currentTimeMillis();
+            if (completion.reply().length > 0) {
+                session.pendingWrites.add(ByteBuffer.wrap(completion.reply()));
+                session.queuedBytes += completion.reply().length;
+            }
+            if (!completion.keepOpen()) {
+                session.closeAfterWrite = true;
+                session.inbox.clear();
+            }
+            try {
+                write(key);
+                if (key.isValid()) {
+                    dispatch(session);
+                    updateInterest(key, session);
+                }
+            } catch (IOException e) {
+                Log.error("Client error: {}", e.getMessage());
+                close(key);
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        while (!session.pendingWrites.isEmpty()) {
+            ByteBuffer buffer = session.pendingWrites.peek();
+            session.queuedBytes -= channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            session.pendingWrites.poll();
+        }
+        if (session.pendingWrites.isEmpty() && session.closeAfterWrite && !session.busy) {
+            close(key);
+            return;
+        }
+        updateInterest(key, session);
+    }
+
+    // Reads only while the session's backlog is under its caps, so a client that never reads its replies
+    // cannot make the server buffer without bound
+    private void updateInterest(SelectionKey key, Session session) {
+        int ops = 0;
+        if (!session.closeAfterWrite && session.queuedBytes < MAX_QUEUED_BYTES && session.inbox.size() < MAX_QUEUED_REQUESTS) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!session.pendingWrites.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void deliverPushes() {
+        Session session;
+        while ((session = pushReady.poll()) != null) {
+            SelectionKey key = session.key;
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+            session.pushPending = true;
+            dispatch(session);
+        }
+    }
+
+    private void closeIdleSessions(Selector sel) {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : sel.keys()) {
+            // Subscribers are expected to sit idle between pushed updates
+            if (key.attachment() instanceof Session session && !session.busy && !session.handler.isSubscribed()
+                    && now - session.lastActivity > idleTimeoutMs) {
+                Log.info("Closing idle client.");
+                close(key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Session session && key.isValid()) {
+            activeConnections--;
+            session.handler.close();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Log.error("Error closing client: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Fixed-size latitude/longitude grid; lookups only visit the cells overlapping the search radius
+public class SpatialIndex {
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180.0;
+    private static final double CELL_DEGREES = 1.0;
+    private static final int LAT_CELLS = (int) Math.ceil(180 / CELL_DEGREES);
+    private static final int LON_CELLS = (int) Math.ceil(360 / CELL_DEGREES);
+
+    private final Map<Long, Map<String, Point>> cells = new ConcurrentHashMap<>();
+    private final Map<String, Point> points = new ConcurrentHashMap<>();
+
+    record Point(String location, double latitude, double longitude) {
+    }
+
+    public void put(String location, double latitude, double longitude) {
+        Point point = new Point(location, latitude, longitude);
+        Point previous = points.put(location, point);
+        if (previous != null) {
+            removeFromCell(previous);
+        }
+        cells.computeIfAbsent(cellKey(latIndex(latitude), lonIndex(longitude)), k -> new ConcurrentHashMap<>())
+                .put(location, point);
+    }
+
+    public void remove(String location) {
+        Point previous = points.remove(location);
+        if (previous != null) {
+            removeFromCell(previous);
+        }
+    }
+
+    public int size() {
+        return points.size();
+    }
+
+    public void clear() {
+        cells.clear();
+        points.clear();
+    }
+
+    // Closest location strictly within radiusKm, or null when there is none
+    public String nearest(double latitude, double longitude, double radiusKm) {
+        String closestLocation = null;
+        double closestDistance = radiusKm;
+        for (Map<String, Point> cell : cellsWithin(latitude, longitude, radiusKm)) {
+            for (Point point : cell.values()) {
+                double distance = distanceKm(latitude, longitude, point.latitude(), point.longitude());
+                if (distance < closestDistance) {
+                    closestDistance = distance;
+                    closestLocation = point.location();
+                }
+            }
+        }
+        return closestLocation;
+    }
+
+    public List<String> withinRadius(double latitude, double longitude, double radiusKm) {
+        List<String> result = new ArrayList<>();
+        for (Map<String, Point> cell : cellsWithin(latitude, longitude, radiusKm)) {
+            for (Point point : cell.values()) {
+                if (distanceKm(latitude, longitude, point.latitude(), point.longitude()) <= radiusKm) {
+                    result.add(point.location());
+                }
+            }
+        }
+        return result;
+    }
+
+    // Great-circle distance using the haversine formula
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double sinLat = Math.sin(dLat / 2);
+        double sinLon = Math.sin(dLon / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private List<Map<String, Point>> cellsWithin(double latitude, double longitude, double radiusKm) {
+        double latSpan = radiusKm / KM_PER_DEGREE;
+        double minLat = Math.max(-90.0, latitude - latSpan);
+        double maxLat = Math.min(90.0, latitude + latSpan);
+        // Longitude degrees shrink towards the poles, so size the box for the widest latitude it touches
+        double cosLat = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+        double lonSpan = cosLat > 0 ? radiusKm / (KM_PER_DEGREE * cosLat) : 360.0;
+
+        int firstLat = latIndex(minLat);
+        int lastLat = latIndex(maxLat);
+        int lonCellCount = lonSpan >= 180.0 ? LON_CELLS : (int) Math.ceil(2 * lonSpan / CELL_DEGREES) + 1;
+        int firstLon = lonSpan >= 180.0 ? 0 : lonIndex(longitude - lonSpan);
+
+        List<Map<String, Point>> result = new ArrayList<>();
+        for (int latIdx = firstLat; latIdx <= lastLat; latIdx++) {
+            for (int i = 0; i < Math.min(lonCellCount, LON_CELLS); i++) {
+                Map<String, Point> cell = cells.get(cellKey(latIdx, (firstLon + i) % LON_CELLS));
+                if (cell != null) {
+                    result.add(cell);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void removeFromCell(Point point) {
+        Map<String, Point> cell = cells.get(cellKey(latIndex(point.latitude()), lonIndex(point.longitude())));
+        if (cell != null) {
+            cell.remove(point.location(), point);
+        }
+    }
+
+    private static int latIndex(double latitude) {
+        return Math.min(LAT_CELLS - 1, (int) Math.floor((latitude + 90.0) / CELL_DEGREES));
+    }
+
+    private static int lonIndex(double longitude) {
+        double normalized = ((longitude + 180.0) % 360.0 + 360.0) % 360.0;
+        return Math.min(LON_CELLS - 1, (int) Math.floor(normalized / CELL_DEGREES));
+    }
+
+    private static long cellKey(int latIdx, int lonIdx) {
+        return (long) latIdx * LON_CELLS + lonIdx;
+    }
+}
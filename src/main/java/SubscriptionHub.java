@@ -0,0 +1,141 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fans provisioned weather out to the sessions that subscribed to it, through one bounded queue per session
+public class SubscriptionHub {
+    static final int QUEUE_CAPACITY = Integer.getInteger("weather.subscriber.queueSize", 256);
+    // drop-oldest keeps the newest updates for a slow subscriber, disconnect closes its session instead
+    static final boolean DISCONNECT_SLOW = "disconnect".equals(System.getProperty("weather.subscriber.overflow", "drop-oldest"));
+    // Most locations one session may follow, over all its SUBSCRIBE commands
+    static final int MAX_LOCATIONS = Integer.getInteger("weather.subscriber.maxLocations", 1000);
+
+    static class Subscriber {
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        // Normalized names, so a subscription matches the location however the client spelled it
+        final Set<String> locations = ConcurrentHashMap.newKeySet();
+        final AtomicLong dropped = new AtomicLong();
+        // Called after updates were queued, for engines that cannot block on the queue; may be null
+        final Runnable wakeup;
+        volatile double latitude;
+        volatile double longitude;
+        volatile double radiusKm = -1;
+        volatile boolean overflowed;
+
+        Subscriber(Runnable wakeup) {
+            this.wakeup = wakeup;
+        }
+    }
+
+    private final Map<String, Set<Subscriber>> byLocation = new ConcurrentHashMap<>();
+    private final Set<Subscriber> nearby = ConcurrentHashMap.newKeySet();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Subscribes to all the locations, or to none if the session would then follow more than MAX_LOCATIONS
+    public boolean subscribe(Subscriber subscriber, Collection<String> locations) {
+        Set<String> keys = new HashSet<>();
+        for (String location : locations) {
+            keys.add(LocationNameIndex.normalize(location));
+        }
+        keys.removeAll(subscriber.locations);
+        if (subscriber.locations.size() + keys.size() > MAX_LOCATIONS) {
+            return false;
+        }
+        for (String key : keys) {
+            subscriber.locations.add(key);
+            byLocation.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        return true;
+    }
+
+    public void subscribeNearby(Subscriber subscriber, double latitude, double longitude, double radiusKm) {
+        subscriber.latitude = latitude;
+        subscriber.longitude = longitude;
+        subscriber.radiusKm = radiusKm;
+        nearby.add(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        for (String location : subscriber.locations) {
+            Set<Subscriber> subscribers = byLocation.get(location);
+            if (subscribers != null) {
+                subscribers.remove(subscriber);
+                if (subscribers.isEmpty()) {
+                    byLocation.remove(location, subscribers);
+                }
+            }
+        }
+        subscriber.locations.clear();
+        subscriber.radiusKm = -1;
+        nearby.remove(subscriber);
+        subscriber.queue.clear();
+    }
+
+    // Never blocks the provisioning thread: a full queue drops or disconnects according to the overflow policy
+    public void publish(Map<String, WeatherServer.LocationWeather> changed) {
+        Set<Subscriber> touched = new HashSet<>();
+        changed.forEach((location, weather) -> {
+            byte[] message = null;
+            String key = LocationNameIndex.normalize(location);
+            Set<Subscriber> subscribers = byLocation.get(key);
+            if (subscribers != null) {
+                for (Subscriber subscriber : subscribers) {
+                    message = message != null ? message : encode(location, weather);
+                    offer(subscriber, message);
+                    touched.add(subscriber);
+                }
+            }
+            for (Subscriber subscriber : nearby) {
+                if (!subscriber.locations.contains(key) && subscriber.radiusKm >= 0
+                        && SpatialIndex.distanceKm(subscriber.latitude, subscriber.longitude,
+                        weather.latitude(), weather.longitude()) <= subscriber.radiusKm) {
+                    message = message != null ? message : encode(location, weather);
+                    offer(subscriber, message);
+                    touched.add(subscriber);
+                }
+            }
+        });
+        for (Subscriber subscriber : touched) {
+            if (subscriber.wakeup != null) {
+                subscriber.wakeup.run();
+            }
+        }
+    }
+
+    public long publishedCount() {
+        return published.get();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    private void offer(Subscriber subscriber, byte[] message) {
+        while (!subscriber.queue.offer(message)) {
+            dropped.incrementAndGet();
+            subscriber.dropped.incrementAndGet();
+            if (DISCONNECT_SLOW) {
+                subscriber.overflowed = true;
+                return;
+            }
+            subscriber.queue.poll();
+        }
+        published.incrementAndGet();
+    }
+
+    private static byte[] encode(String location, WeatherServer.LocationWeather weather) {
+        byte[] header = ("UPDATE: " + location + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] body = weather.response();
+        byte[] message = new byte[header.length + body.length];
+        System.arraycopy(header, 0, message, 0, header.length);
+        System.arraycopy(body, 0, message, header.length, body.length);
+        return message;
+    }
+}
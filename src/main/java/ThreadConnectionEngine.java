@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+public class ThreadConnectionEngine implements ConnectionEngine {
+    private final int port;
+    private final ThreadFactory threadFactory;
+    private final int maxConnections;
+    private final int idleTimeoutMs;
+    private final int drainTimeoutMs;
+    private final Set<Socket> activeSockets = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    ThreadConnectionEngine(int port, ThreadFactory threadFactory, int maxConnections, int idleTimeoutMs, int drainTimeoutMs) {
+        this.port = port;
+        this.threadFactory = threadFactory;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.drainTimeoutMs = drainTimeoutMs;
+    }
+
+    @Override
+    public void serve() throws IOException {
+        try (ServerSocket listener = new ServerSocket(port)) {
+            serverSocket = listener;
+            Log.info("Server is running on port {}", port);
+            while (running) {
+                try {
+                    Socket clientSocket = listener.accept();
+                    if (activeSockets.size() >= maxConnections) {
+                        reject(clientSocket);
+                        continue;
+                    }
+                    clientSocket.setSoTimeout(idleTimeoutMs);
+                    activeSockets.add(clientSocket);
+                    threadFactory.newThread(() -> {
+                        try {
+                            new WeatherServer.ClientHandler(clientSocket).run();
+                        } finally {
+                            activeSockets.remove(clientSocket);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    if (!running) {
+                        Log.info("Server has been stopped.");
+                    } else {
+                        Log.error("Error accepting client: {}", e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            drain();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        ServerSocket listener = serverSocket;
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                Log.error("Error closing server socket: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public int activeConnections() {
+        return activeSockets.size();
+    }
+
+    private void reject(Socket clientSocket) {
+        try (clientSocket; PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+            out.println("ERROR: Server busy.");
+        } catch (IOException e) {
+            Log.error("Error rejecting client: {}", e.getMessage());
+        }
+    }
+
+    private void drain() {
+        long deadline = System.currentTimeMillis() + drainTimeoutMs;
+        while (!activeSockets.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Socket socket : activeSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.error("Error closing client: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+// Allows bursts of up to capacity commands and refills at ratePerSecond; a rate of 0 or less disables the limit
+public class TokenBucket {
+    private final double ratePerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    // A cost above the capacity is charged as a full bucket
+    public synchronized boolean tryAcquire(double cost) {
+        if (!available(cost)) {
+            return false;
+        }
+        take(cost);
+        return true;
+    }
+
+    // Takes cost from both buckets or from neither. own is the caller's bucket, which no other thread holds while
+    // taking shared, so the two locks are never taken in the opposite order.
+    public static boolean tryAcquire(TokenBucket own, TokenBucket shared, double cost) {
+        synchronized (own) {
+            synchronized (shared) {
+                if (!own.available(cost) || !shared.available(cost)) {
+                    return false;
+                }
+                own.take(cost);
+                shared.take(cost);
+                return true;
+            }
+        }
+    }
+
+    // Called with the lock held
+    private boolean available(double cost) {
+        if (ratePerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * ratePerSecond);
+        lastRefill = now;
+        return tokens >= Math.min(cost, capacity);
+    }
+
+    private void take(double cost) {
+        if (ratePerSecond > 0) {
+            tokens -= Math.min(cost, capacity);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+
+// Per-request access to the users table through the shared pool
+public class UserRepository {
+
+    private static final String FIND_SQL = "SELECT username, password, role FROM users WHERE username = ?";
+    static final String UPSERT_SQL = "INSERT INTO users (username, password, role) VALUES (?, ?, ?) "
+            + "ON CONFLICT (username) DO UPDATE SET password = EXCLUDED.password, role = EXCLUDED.role";
+
+    public static Optional<WeatherServer.User> findByUsername(String username) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = Database.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(FIND_SQL)) {
+            stmt.setString(1, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                return Optional.of(new WeatherServer.User(rs.getString("username"), rs.getString("password"), rs.getString("role")));
+            }
+        } finally {
+            Metrics.DB_USER_FIND.record(System.nanoTime() - start);
+        }
+    }
+
+    public static void save(WeatherServer.User user) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = Database.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(UPSERT_SQL)) {
+            stmt.setString(1, user.username());
+            stmt.setString(2, user.passwordHash());
+            stmt.setString(3, user.role());
+            stmt.executeUpdate();
+        } finally {
+            Metrics.DB_USER_SAVE.record(System.nanoTime() - start);
+        }
+    }
+}
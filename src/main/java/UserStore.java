@@ -0,0 +1,231 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// Users held in memory, persisted as a snapshot file plus an append-only log of username,passwordHash,role lines.
+// Registrations only append; concurrent appends share one write and fsync (group commit).
+public class UserStore {
+    static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("weather.users.fsync", "true"));
+
+    private static final class PendingRecord {
+        final WeatherServer.User user;
+        boolean written;
+        IOException failure;
+
+        PendingRecord(WeatherServer.User user) {
+            this.user = user;
+        }
+    }
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final int compactThreshold;
+    private final Map<String, WeatherServer.User> users = new ConcurrentHashMap<>();
+    // The users as the snapshot and log hold them: a record only gets here once its write succeeded, so compaction
+    // never puts a rolled-back registration into the snapshot. Guarded by writeLock once loaded.
+    private final Map<String, WeatherServer.User> persisted = new HashMap<>();
+    private final Queue<PendingRecord> pending = new ConcurrentLinkedQueue<>();
+    // Held by the thread writing the current group; records queued meanwhile go out with the next group
+    private final Object writeLock = new Object();
+    private FileChannel log;
+    private int recordsSinceCompaction;
+
+    public UserStore(Path snapshotFile, Path logFile, int compactThreshold) {
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFile;
+        this.compactThreshold = compactThreshold;
+    }
+
+    // Reads the snapshot and the log on top of it; plaintext passwords from older files are hashed and compacted away
+    public void load() throws IOException {
+        readLines(snapshotFile, this::apply);
+        recordsSinceCompaction = readLines(logFile, this::apply);
+        boolean migrated = false;
+        for (WeatherServer.User user : users.values()) {
+            if (!PasswordHasher.isHashed(user.passwordHash())) {
+                WeatherServer.User hashed = new WeatherServer.User(user.username(), PasswordHasher.hash(user.passwordHash()), user.role());
+                users.put(user.username(), hashed);
+                persisted.put(user.username(), hashed);
+                migrated = true;
+            }
+        }
+        if (migrated || recordsSinceCompaction >= compactThreshold) {
+            synchronized (writeLock) {
+                compact();
+            }
+        }
+    }
+
+    public WeatherServer.User get(String username) {
+        return users.get(username);
+    }
+
+    public Collection<WeatherServer.User> values() {
+        return users.values();
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    // Returns false when the username is taken; returns once the user is on disk
+    public boolean register(WeatherServer.User user) throws IOException {
+        if (users.putIfAbsent(user.username(), user) != null) {
+            return false;
+        }
+        try {
+            append(user);
+        } catch (IOException e) {
+            // Not on disk, so it must not be able to log in either; the name is free for another attempt
+            users.remove(user.username(), user);
+            throw e;
+        }
+        return true;
+    }
+
+    public boolean contains(String username) {
+        return users.containsKey(username);
+    }
+
+    // Swaps expected for updated unless the user changed in between; returns once the change is on disk
+    public boolean replace(WeatherServer.User expected, WeatherServer.User updated) throws IOException {
+        if (!users.replace(expected.username(), expected, updated)) {
+            return false;
+        }
+        try {
+            append(updated);
+        } catch (IOException e) {
+            users.replace(expected.username(), updated, expected);
+            throw e;
+        }
+        return true;
+    }
+
+    private void append(WeatherServer.User user) throws IOException {
+        PendingRecord record = new PendingRecord(user);
+        pending.add(record);
+        synchronized (writeLock) {
+            if (!record.written) {
+                writeGroup();
+            }
+        }
+        if (record.failure != null) {
+            throw record.failure;
+        }
+    }
+
+    // Writes every queued record with a single write and fsync; called with writeLock held
+    private void writeGroup() {
+        List<PendingRecord> group = new ArrayList<>();
+        StringBuilder lines = new StringBuilder();
+        PendingRecord next;
+        while ((next = pending.poll()) != null) {
+            group.add(next);
+            lines.append(line(next.user)).append('\n');
+        }
+        IOException failure = null;
+        try {
+            if (log == null) {
+                log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            if (FSYNC) {
+                log.force(false);
+            }
+            recordsSinceCompaction += group.size();
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (PendingRecord record : group) {
+            if (failure == null) {
+                persisted.put(record.user.username(), record.user);
+            }
+            record.failure = failure;
+            record.written = true;
+        }
+        if (failure == null && recordsSinceCompaction >= compactThreshold) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // The log still holds every record, so the next attempt can compact it
+                Log.error("Error compacting users: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Writes every user whose records reached the log next to the snapshot, renames it over the old one, then starts
+    // an empty log. Users still waiting for their own group are left to it, so a failed append is never compacted in.
+    private void compact() throws IOException {
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+            for (WeatherServer.User user : persisted.values()) {
+                writer.write(line(user));
+                writer.newLine();
+            }
+            writer.flush();
+            channel.force(true);
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+        Files.deleteIfExists(logFile);
+        recordsSinceCompaction = 0;
+    }
+
+    private static String line(WeatherServer.User user) {
+        return user.username() + "," + user.passwordHash() + "," + user.role();
+    }
+
+    private void apply(String line) {
+        String[] parts = line.split(",");
+        if (parts.length == 3) {
+            WeatherServer.User user = new WeatherServer.User(parts[0], parts[1], parts[2]);
+            users.put(parts[0], user);
+            persisted.put(parts[0], user);
+        } else {
+            Log.warn("Invalid user data format: {}", line);
+        }
+    }
+
+    private static int readLines(Path file, Consumer<String> consumer) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A crash can leave a partially written last log line, which the format check reports and skips
+                if (!line.isBlank()) {
+                    consumer.accept(line);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
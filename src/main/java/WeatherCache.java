@@ -0,0 +1,138 @@
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Read-through LRU cache in front of the weather table, bounded by estimated size and entry age
+public class WeatherCache {
+
+    public interface Loader {
+        Optional<WeatherServer.LocationWeather> load(String location) throws SQLException;
+    }
+
+    private record Entry(Optional<WeatherServer.LocationWeather> weather, long expiresAt, long bytes) {
+    }
+
+    // A database read in progress, shared by the misses for its location
+    private static final class Load {
+        final CompletableFuture<Optional<WeatherServer.LocationWeather>> result = new CompletableFuture<>();
+        // Set under the entries lock when the location is invalidated while the read runs: it may have seen the row
+        // from before the change, so its result is handed to the waiting misses but not cached
+        boolean invalidated;
+    }
+
+    record Stats(long hits, long misses, long loads, long loadFailures, long evictions, int size, long bytes) {
+    }
+
+    private final Loader loader;
+    private final long maxBytes;
+    private final long ttlNanos;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Load> inFlight = new ConcurrentHashMap<>();
+    private long currentBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public WeatherCache(Loader loader, long maxBytes, long ttlMillis) {
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttlMillis * 1_000_000;
+    }
+
+    // Cached or freshly loaded weather; unknown locations are cached as empty too, so they do not hit the database each time
+    public Optional<WeatherServer.LocationWeather> get(String location) {
+        synchronized (entries) {
+            Entry entry = entries.get(location);
+            if (entry != null && entry.expiresAt() - System.nanoTime() > 0) {
+                hits.incrementAndGet();
+                return entry.weather();
+            }
+        }
+        misses.incrementAndGet();
+
+        // Concurrent misses for the same location share a single database query
+        Load load = new Load();
+        Load existing = inFlight.putIfAbsent(location, load);
+        if (existing != null) {
+            return existing.result.join();
+        }
+        try {
+            loads.incrementAndGet();
+            Optional<WeatherServer.LocationWeather> weather = loader.load(location);
+            put(location, weather, load);
+            load.result.complete(weather);
+            return weather;
+        } catch (SQLException e) {
+            loadFailures.incrementAndGet();
+            Log.error("Error loading weather for {}: {}", location, e.getMessage());
+            load.result.complete(Optional.empty());
+            return Optional.empty();
+        } finally {
+            inFlight.remove(location, load);
+        }
+    }
+
+    // Called once the new weather is committed; a read already running may still return the old row
+    public void invalidate(String location) {
+        synchronized (entries) {
+            Entry removed = entries.remove(location);
+            if (removed != null) {
+                currentBytes -= removed.bytes();
+            }
+            // Later misses start a read of their own instead of joining the one that may be stale
+            Load running = inFlight.remove(location);
+            if (running != null) {
+                running.invalidated = true;
+            }
+        }
+    }
+
+    public Stats stats() {
+        synchronized (entries) {
+            return new Stats(hits.get(), misses.get(), loads.get(), loadFailures.get(), evictions.get(), entries.size(), currentBytes);
+        }
+    }
+
+    private void put(String location, Optional<WeatherServer.LocationWeather> weather, Load load) {
+        Entry entry = new Entry(weather, System.nanoTime() + ttlNanos, estimateBytes(location, weather));
+        synchronized (entries) {
+            if (load.invalidated) {
+                return;
+            }
+            Entry previous = entries.put(location, entry);
+            if (previous != null) {
+                currentBytes -= previous.bytes();
+            }
+            currentBytes += entry.bytes();
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> evicted = eldest.next();
+                if (evicted.getKey().equals(location)) {
+                    continue;
+                }
+                currentBytes -= evicted.getValue().bytes();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // Rough heap footprint: object headers, references and UTF-16 string contents; a cached LocationWeather
+    // has a chunk of its own, and its names are shared with the store
+    private static long estimateBytes(String location, Optional<WeatherServer.LocationWeather> weather) {
+        long bytes = 96 + 2L * location.length();
+        if (weather.isPresent()) {
+            bytes += 200 + 4L * weather.get().forecastDays();
+        }
+        return bytes;
+    }
+}
@@ -5,11 +5,11 @@ import java.util.*;
 public class WeatherClient {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 12345;
+    // -Dweather.protocol=binary switches to the length-prefixed binary framing
+    private static final boolean BINARY_PROTOCOL = "binary".equals(System.getProperty("weather.protocol"));
 
     public static void main(String[] args) {
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        try (WeatherConnection connection = WeatherConnection.open(SERVER_ADDRESS, SERVER_PORT, BINARY_PROTOCOL);
              Scanner scanner = new Scanner(System.in)) {
 
             System.out.println("Connected to the weather server.");
@@ -28,9 +28,9 @@ public class WeatherClient {
                         // Login
                         String username = promptForInput(scanner, "Enter your username: ");
                         String password = promptForInput(scanner, "Enter your password: ");
-                        out.println("LOGIN:" + username + ":" + password);
+                        connection.send("LOGIN:" + username + ":" + password);
 
-                        String response = in.readLine();
+                        String response = connection.readLine();
                         if (response == null || response.startsWith("ERROR")) {
                             System.out.println("Error: " + response);
 
@@ -39,7 +39,7 @@ public class WeatherClient {
                             String role = response.trim();
 
                             System.out.println("Successfully logged in as: " + role);
-                            handleUserSession(scanner, in, out, role);
+                            handleUserSession(scanner, connection, role);
                         }
                         break;
                     }
@@ -47,10 +47,10 @@ public class WeatherClient {
                         // Register
                         String username = promptForInput(scanner, "Enter your desired username: ");
                         String password = promptForInput(scanner, "Enter your desired password: ");
-                        String role = promptForInput(scanner, "Enter your role (admin/user): ");
-                        out.println("REGISTER:" + username + ":" + password + ":" + role);
+                        // Registered users get the user role; admins are set up in users.txt
+                        connection.send("REGISTER:" + username + ":" + password);
 
-                        String response = in.readLine();
+                        String response = connection.readLine();
                         System.out.println(response);
                         break;
                     }
@@ -68,16 +68,15 @@ public class WeatherClient {
         }
     }
 
-    private static void provisionWeatherData(Scanner scanner, PrintWriter out, BufferedReader in) {
+    private static void provisionWeatherData(Scanner scanner, WeatherConnection connection) {
         System.out.print("Enter path to JSON file: ");
         String filePath = scanner.nextLine();
 
-        //Send command to server
-        out.println("PROVISION WEATHER DATA:" + filePath);
-
         try {
+            //Send command to server
+            connection.send("PROVISION WEATHER DATA:" + filePath);
 
-            String response = in.readLine();
+            String response = connection.readLine();
             System.out.println(response);
         } catch (IOException e) {
             System.out.println("Error reading server response: " + e.getMessage());
@@ -85,13 +84,26 @@ public class WeatherClient {
     }
 
 
+    private static boolean setLocation(Scanner scanner, WeatherConnection connection) throws IOException {
+        String location = promptForInput(scanner, "Enter location (city name): ");
+        String latitude = promptForInput(scanner, "Enter latitude: ");
+        String longitude = promptForInput(scanner, "Enter longitude: ");
+        try {
+            connection.setLocation(location, Double.parseDouble(latitude), Double.parseDouble(longitude));
+            return true;
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid coordinates. Try again.");
+            return false;
+        }
+    }
+
     private static String promptForInput(Scanner scanner, String prompt) {
         System.out.print(prompt);
         return scanner.nextLine();
     }
 
 
-    private static void handleUserSession(Scanner scanner, BufferedReader in, PrintWriter out, String role) throws IOException {
+    private static void handleUserSession(Scanner scanner, WeatherConnection connection, String role) throws IOException {
         while (true) {
             if (role.equalsIgnoreCase("user")) {
 
@@ -105,13 +117,12 @@ public class WeatherClient {
 
                 switch (choice) {
                     case "1":
-                        String location = promptForInput(scanner, "Enter location (city name): ");
-                        String latitude = promptForInput(scanner, "Enter latitude: ");
-                        String longitude = promptForInput(scanner, "Enter longitude: ");
-                        out.println("SET_LOCATION:" + location + ":" + latitude + ":" + longitude);
+                        if (!setLocation(scanner, connection)) {
+                            continue;
+                        }
                         break;
                     case "2":
-                        out.println("GET_WEATHER");
+                        connection.getWeather();
                         break;
                     case "3":
                         System.out.println("Logging out...");
@@ -133,19 +144,18 @@ public class WeatherClient {
 
                 switch (choice) {
                     case "1":
-                        String location = promptForInput(scanner, "Enter location (city name): ");
-                        String latitude = promptForInput(scanner, "Enter latitude: ");
-                        String longitude = promptForInput(scanner, "Enter longitude: ");
-                        out.println("SET_LOCATION:" + location + ":" + latitude + ":" + longitude);
+                        if (!setLocation(scanner, connection)) {
+                            continue;
+                        }
                         break;
                     case "2":
-                        out.println("GET_WEATHER");
+                        connection.getWeather();
                         break;
                     case "3":
-                        provisionWeatherData(scanner, out, in);
+                        provisionWeatherData(scanner, connection);
                         break;
                     case "4":
-                        out.println("STOP");
+                        connection.send("STOP");
                         System.out.println("Stopping server...");
                         return;
                     case "5":
@@ -161,7 +171,7 @@ public class WeatherClient {
 
           // Read response from server
             String response;
-            while ((response = in.readLine()) != null && !response.isEmpty()) {
+            while ((response = connection.readLine()) != null && !response.isEmpty()) {
                 System.out.println(response);
             }
         }
@@ -0,0 +1,821 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.json.JSONObject;
+
+// Cluster mode: the locations are spread over several server nodes, each holding only the ones it owns. Owners
+// are picked by consistent hashing of the normalized name on a ring with many points per node, so every spelling
+// of a name lands on the same node, and adding a node moves only the locations it takes over. Any node accepts
+// clients: a lookup is forwarded to the owner, while nearest-location queries and SEARCH go to every node and
+// the best answers are merged, since neighbouring stations can live on any of them. Nodes talk over a port of
+// their own with BinaryProtocol frames on pooled persistent connections.
+//
+// Configured with weather.cluster.nodes, the cluster addresses of all nodes in the same order on every node, and
+// weather.cluster.self, the position of this node in that list. Without them the server runs alone. Every node
+// also needs the same weather.cluster.secret: a connection is only served once the connecting node has answered a
+// random challenge with its HMAC under that secret, so nothing else on the network can provision through a node.
+public class WeatherCluster {
+    // Requests between nodes
+    static final int OP_WEATHER = 1;
+    static final int OP_NEAREST = 2;
+    static final int OP_SEARCH = 3;
+    static final int OP_PROVISION = 4;
+    static final int OP_PUBLISH = 5;
+    static final int OP_HISTORY = 6;
+    // Handshake: the serving node sends CHALLENGE with random bytes, the connecting node answers AUTH with their HMAC
+    static final int OP_CHALLENGE = 7;
+    static final int OP_AUTH = 8;
+
+    // Replies; ERROR carries a UTF message
+    static final int STATUS_OK = 0;
+    static final int STATUS_NOT_FOUND = 1;
+    static final int STATUS_ERROR = 2;
+
+    // Points per node on the ring; more of them spread the locations more evenly
+    private static final int VIRTUAL_NODES = 128;
+    private static final int TIMEOUT_MS = Integer.getInteger("weather.cluster.timeoutMs", 2_000);
+    // Owners write a provision to their journal and database before they answer
+    private static final int PROVISION_TIMEOUT_MS = Integer.getInteger("weather.cluster.provisionTimeoutMs", 60_000);
+    // Connections open to each peer at once, and how many of them are kept open while idle
+    private static final int MAX_CONNECTIONS = Integer.getInteger("weather.cluster.maxConnections", 64);
+    private static final int POOLED_CONNECTIONS = Math.min(MAX_CONNECTIONS, Integer.getInteger("weather.cluster.connections", 32));
+    // A peer that failed is skipped for this long; then one request tries it again
+    private static final long RETRY_MS = Long.getLong("weather.cluster.retryMs", 1_000L);
+    private static final int CHALLENGE_BYTES = 32;
+    private static final SecureRandom random = new SecureRandom();
+    // Batched requests are cut well below the frame limit
+    private static final int BATCH_BYTES = BinaryProtocol.MAX_FRAME_SIZE / 2;
+
+    record Node(String host, int port) {
+        static Node parse(String address) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid cluster node, expected host:port: " + address);
+            }
+            return new Node(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final int self;
+    // Ring points in increasing hash order and the node each belongs to
+    private final long[] ringHashes;
+    private final int[] ringNodes;
+    private final Peer[] peers;
+    private final byte[] secret;
+    private final AtomicLong failures = new AtomicLong();
+    private volatile ServerSocket server;
+    private volatile ThreadPoolExecutor servers;
+
+    WeatherCluster(List<Node> nodes, int self, byte[] secret) {
+        if (!nodes.isEmpty() && (self < 0 || self >= nodes.size())) {
+            throw new IllegalArgumentException("weather.cluster.self must be between 0 and " + (nodes.size() - 1));
+        }
+        if (!nodes.isEmpty() && secret.length == 0) {
+            throw new IllegalArgumentException("weather.cluster.secret must be set in cluster mode");
+        }
+        this.nodes = List.copyOf(nodes);
+        this.self = self;
+        this.secret = secret.clone();
+        long[][] points = new long[nodes.size() * VIRTUAL_NODES][];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points[node * VIRTUAL_NODES + i] = new long[]{hash(nodes.get(node) + "#" + i), node};
+            }
+        }
+        Arrays.sort(points, Comparator.comparingLong(point -> point[0]));
+        ringHashes = new long[points.length];
+        ringNodes = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ringHashes[i] = points[i][0];
+            ringNodes[i] = (int) points[i][1];
+        }
+        peers = new Peer[nodes.size()];
+        for (int node = 0; node < nodes.size(); node++) {
+            peers[node] = node == self ? null : new Peer(node, nodes.get(node), this.secret);
+        }
+    }
+
+    static WeatherCluster fromProperties() {
+        String addresses = System.getProperty("weather.cluster.nodes", "").trim();
+        List<Node> nodes = new ArrayList<>();
+        if (!addresses.isEmpty()) {
+            for (String address : addresses.split(",")) {
+                nodes.add(Node.parse(address));
+            }
+        }
+        return new WeatherCluster(nodes, Integer.getInteger("weather.cluster.self", 0),
+                System.getProperty("weather.cluster.secret", "").getBytes(StandardCharsets.UTF_8));
+    }
+
+    boolean isClustered() {
+        return !nodes.isEmpty();
+    }
+
+    int self() {
+        return self;
+    }
+
+    Node node(int index) {
+        return nodes.get(index);
+    }
+
+    long failureCount() {
+        return failures.get();
+    }
+
+    // Peers currently marked down
+    long downCount() {
+        return Arrays.stream(peers).filter(peer -> peer != null && peer.down).count();
+    }
+
+    // Names this node's layout, so state saved under one layout is not mistaken for another's
+    String layoutId() {
+        return "node" + self + "-" + Long.toHexString(hash(nodes.toString()));
+    }
+
+    // The node owning the location; always this one outside cluster mode
+    int owner(String location) {
+        if (nodes.size() <= 1) {
+            return self;
+        }
+        long hash = hash(LocationNameIndex.normalize(location));
+        int point = Arrays.binarySearch(ringHashes, hash);
+        if (point < 0) {
+            point = -point - 1;
+        }
+        return ringNodes[point == ringHashes.length ? 0 : point];
+    }
+
+    boolean isLocal(String location) {
+        return owner(location) == self;
+    }
+
+    // FNV-1a over the characters, then the MurmurHash3 finalizer, which spreads similar names over the whole ring
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ hash >>> 33;
+    }
+
+    // Serves the other nodes on this node's cluster address, one platform thread per connection. A virtual thread
+    // could be starved by client sessions pinned to every carrier, while such a session may itself be waiting on a
+    // peer that needs this node to answer first. Each peer opens at most MAX_CONNECTIONS; the pool leaves room for
+    // as many again, as a connection a peer has closed is only let go once its thread reads the end of it, and
+    // refuses connections beyond that.
+    void start() throws IOException {
+        if (!isClustered()) {
+            return;
+        }
+        Node address = nodes.get(self);
+        ServerSocket socket = new ServerSocket();
+        socket.bind(new InetSocketAddress(address.host(), address.port()));
+        server = socket;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Math.max(1, 2 * MAX_CONNECTIONS * (nodes.size() - 1)), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), Thread.ofPlatform().name("cluster-serve-", 0).daemon().factory());
+        servers = pool;
+        Thread.ofPlatform().name("cluster-accept").daemon().start(() -> {
+            while (!socket.isClosed()) {
+                try {
+                    Socket peer = socket.accept();
+                    peer.setTcpNoDelay(true);
+                    try {
+                        pool.execute(() -> serve(peer));
+                    } catch (RejectedExecutionException e) {
+                        Log.warn("Cluster connection from {} refused, {} already served", peer.getRemoteSocketAddress(), pool.getActiveCount());
+                        peer.close();
+                    }
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        Log.error("Cluster accept error: {}", e.getMessage());
+                    }
+                }
+            }
+        });
+        Log.info("Cluster node {} of {} listening on {}", self, nodes.size(), nodes.get(self));
+    }
+
+    void stop() {
+        ServerSocket socket = server;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.error("Error closing cluster port: {}", e.getMessage());
+            }
+        }
+        ThreadPoolExecutor pool = servers;
+        if (pool != null) {
+            pool.shutdown();
+        }
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.close();
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            if (!authenticate(socket, in, out)) {
+                Log.warn("Cluster connection from {} refused: failed the handshake", socket.getRemoteSocketAddress());
+                return;
+            }
+            while (true) {
+                byte[] frame = BinaryProtocol.readFrame(in);
+                DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                int status;
+                try {
+                    status = handle(frame[0] & 0xFF, request, new DataOutputStream(reply));
+                } catch (RuntimeException | IOException e) {
+                    // A request this node could not parse or apply; the connection stays usable
+                    Log.error("Cluster request failed: {}", e.getMessage());
+                    reply.reset();
+                    new DataOutputStream(reply).writeUTF(String.valueOf(e.getMessage()));
+                    status = STATUS_ERROR;
+                }
+                BinaryProtocol.writeFrame(out, status, reply.toByteArray());
+                out.flush();
+            }
+        } catch (EOFException | SocketException e) {
+            // Peer closed the connection between requests
+        } catch (IOException e) {
+            Log.error("Cluster connection error: {}", e.getMessage());
+        }
+    }
+
+    // Challenges the connecting node to prove it holds the cluster secret
+    private boolean authenticate(Socket socket, DataInputStream in, OutputStream out) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        socket.setSoTimeout(TIMEOUT_MS);
+        BinaryProtocol.writeFrame(out, OP_CHALLENGE, challenge);
+        out.flush();
+        byte[] answer = BinaryProtocol.readFrame(in);
+        socket.setSoTimeout(0);
+        return (answer[0] & 0xFF) == OP_AUTH
+                && MessageDigest.isEqual(Arrays.copyOfRange(answer, 1, answer.length), hmac(secret, challenge));
+    }
+
+    private static byte[] hmac(byte[] key, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Answers a request of another node from this node's own data
+    private int handle(int opcode, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (opcode) {
+            case OP_WEATHER -> {
+                WeatherServer.LocationWeather weather = WeatherServer.localWeather(in.readUTF());
+                if (weather == null) {
+                    return STATUS_NOT_FOUND;
+                }
+                writeWeather(out, weather);
+            }
+            case OP_NEAREST -> {
+                Nearest nearest = localNearest(in.readDouble(), in.readDouble(), in.readDouble());
+                if (nearest == null) {
+                    return STATUS_NOT_FOUND;
+                }
+                out.writeUTF(nearest.location());
+                out.writeDouble(nearest.distanceKm());
+            }
+            case OP_SEARCH -> {
+                String query = in.readUTF();
+                for (LocationNameIndex.Match match : WeatherServer.localSearch(query, in.readInt())) {
+                    out.writeUTF(match.location());
+                    out.writeInt(match.distance());
+                }
+            }
+            case OP_PROVISION -> {
+                List<JSONObject> entries = new ArrayList<>();
+                while (in.available() > 0) {
+                    byte[] json = new byte[in.readInt()];
+                    in.readFully(json);
+                    entries.add(new JSONObject(new String(json, StandardCharsets.UTF_8)));
+                }
+                WeatherServer.provisionLocal(entries);
+            }
+            case OP_PUBLISH -> {
+                Map<String, WeatherServer.LocationWeather> changed = new LinkedHashMap<>();
+                while (in.available() > 0) {
+                    changed.put(in.readUTF(), readWeather(in));
+                }
+                WeatherServer.publishLocal(changed);
+            }
+            case OP_HISTORY -> {
+                String location = in.readUTF();
+                WeatherHistory.Resolution resolution = WeatherHistory.Resolution.values()[in.readUnsignedByte()];
+                List<WeatherHistory.Point> points = WeatherServer.localHistory(location, resolution,
+                        in.readLong(), in.readLong(), in.readInt());
+                if (points == null) {
+                    return STATUS_NOT_FOUND;
+                }
+                for (WeatherHistory.Point point : points) {
+                    out.writeLong(point.time());
+                    out.writeDouble(point.min());
+                    out.writeDouble(point.max());
+                    out.writeDouble(point.sum());
+                    out.writeInt(point.count());
+                    out.writeUTF(point.condition() != null ? point.condition() : "");
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown cluster request: " + opcode);
+        }
+        return STATUS_OK;
+    }
+
+    // The weather of a location owned by another node, or null when it has none or cannot be reached
+    WeatherServer.LocationWeather weather(String location) {
+        try {
+            DataInputStream reply = call(owner(location), OP_WEATHER, utf(location));
+            return reply != null ? readWeather(reply) : null;
+        } catch (IOException e) {
+            failed(owner(location), e);
+            return null;
+        }
+    }
+
+    private record Nearest(String location, double distanceKm) {
+    }
+
+    // Asks every node for its closest station and keeps the closest of those; nodes that cannot be reached are
+    // left out rather than failing the query
+    String nearest(double latitude, double longitude, double radiusKm) {
+        byte[] request = payload(out -> {
+            out.writeDouble(latitude);
+            out.writeDouble(longitude);
+            out.writeDouble(radiusKm);
+        });
+        List<Exchange> pending = scatter(OP_NEAREST, request);
+        Nearest best = localNearest(latitude, longitude, radiusKm);
+        for (DataInputStream reply : gather(pending)) {
+            try {
+                Nearest candidate = new Nearest(reply.readUTF(), reply.readDouble());
+                if (best == null || candidate.distanceKm() < best.distanceKm()
+                        || (candidate.distanceKm() == best.distanceKm() && candidate.location().compareTo(best.location()) < 0)) {
+                    best = candidate;
+                }
+            } catch (IOException e) {
+                Log.error("Invalid nearest reply: {}", e.getMessage());
+            }
+        }
+        return best != null ? best.location() : null;
+    }
+
+    private static Nearest localNearest(double latitude, double longitude, double radiusKm) {
+        String location = WeatherServer.localNearest(latitude, longitude, radiusKm);
+        WeatherServer.LocationWeather weather = location != null ? WeatherServer.localWeather(location) : null;
+        if (weather == null) {
+            return null;
+        }
+        return new Nearest(location, SpatialIndex.distanceKm(latitude, longitude, weather.latitude(), weather.longitude()));
+    }
+
+    // Every node's best limit matches, merged in the order a single index would give them
+    List<LocationNameIndex.Match> search(String query, int limit) {
+        List<Exchange> pending = scatter(OP_SEARCH, payload(out -> {
+            out.writeUTF(query);
+            out.writeInt(limit);
+        }));
+        List<LocationNameIndex.Match> merged = new ArrayList<>(WeatherServer.localSearch(query, limit));
+        for (DataInputStream reply : gather(pending)) {
+            try {
+                while (reply.available() > 0) {
+                    merged.add(new LocationNameIndex.Match(reply.readUTF(), reply.readInt()));
+                }
+            } catch (IOException e) {
+                Log.error("Invalid search reply: {}", e.getMessage());
+            }
+        }
+        merged.sort(Comparator.comparingInt(LocationNameIndex.Match::distance)
+                .thenComparing(match -> LocationNameIndex.normalize(match.location()))
+                .thenComparing(LocationNameIndex.Match::location));
+        return merged.size() > limit ? List.copyOf(merged.subList(0, limit)) : merged;
+    }
+
+    // Hands validated entries to their owner, which applies them as a provision of its own
+    void provision(int node, List<JSONObject> entries) throws IOException {
+        List<byte[]> items = new ArrayList<>(entries.size());
+        for (JSONObject entry : entries) {
+            byte[] json = entry.toString().getBytes(StandardCharsets.UTF_8);
+            items.add(payload(out -> {
+                out.writeInt(json.length);
+                out.write(json);
+            }));
+        }
+        for (byte[] batch : batches(items)) {
+            call(node, OP_PROVISION, batch);
+        }
+    }
+
+    // Tells the other nodes about changed locations, so their subscribers hear about them too. Every batch goes to
+    // all nodes at once; a node that fails is left out until it is back.
+    void publish(Map<String, WeatherServer.LocationWeather> changed) {
+        if (!isClustered() || changed.isEmpty()) {
+            return;
+        }
+        List<byte[]> items = new ArrayList<>(changed.size());
+        changed.forEach((location, weather) -> items.add(payload(out -> {
+            out.writeUTF(location);
+            writeWeather(out, weather);
+        })));
+        for (byte[] batch : batches(items)) {
+            gather(scatter(OP_PUBLISH, batch));
+        }
+    }
+
+    // Points of a location owned by another node; null when they are not available there or it cannot be reached
+    List<WeatherHistory.Point> history(String location, WeatherHistory.Resolution resolution, long from, long to, int limit) {
+        try {
+            DataInputStream reply = call(owner(location), OP_HISTORY, payload(out -> {
+                out.writeUTF(location);
+                out.writeByte(resolution.ordinal());
+                out.writeLong(from);
+                out.writeLong(to);
+                out.writeInt(limit);
+            }));
+            if (reply == null) {
+                return null;
+            }
+            List<WeatherHistory.Point> points = new ArrayList<>();
+            while (reply.available() > 0) {
+                long time = reply.readLong();
+                double min = reply.readDouble();
+                double max = reply.readDouble();
+                double sum = reply.readDouble();
+                int count = reply.readInt();
+                String condition = reply.readUTF();
+                points.add(new WeatherHistory.Point(time, min, max, sum, count, condition.isEmpty() ? null : condition));
+            }
+            return points;
+        } catch (IOException e) {
+            failed(owner(location), e);
+            return null;
+        }
+    }
+
+    // Sends the request to every other node before any reply is read, so the nodes work on it at the same time
+    // while the caller works on its own part. No thread waits for another: a client session may hold a monitor,
+    // and a virtual thread pinned by it would keep the carrier a helper thread needs.
+    private List<Exchange> scatter(int opcode, byte[] request) {
+        List<Exchange> pending = new ArrayList<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            if (node != self) {
+                try {
+                    pending.add(peers[node].send(opcode, request));
+                } catch (IOException e) {
+                    failed(node, e);
+                }
+            }
+        }
+        return pending;
+    }
+
+    // The replies that carry a result; nodes that failed are logged and left out
+    private List<DataInputStream> gather(List<Exchange> pending) {
+        List<DataInputStream> replies = new ArrayList<>();
+        for (Exchange exchange : pending) {
+            try {
+                DataInputStream reply = receive(exchange);
+                if (reply != null) {
+                    replies.add(reply);
+                }
+            } catch (IOException e) {
+                failed(exchange.node(), e);
+            }
+        }
+        return replies;
+    }
+
+    // Items are split over as many requests as it takes to keep every frame well under the size limit
+    private static List<byte[]> batches(List<byte[]> items) {
+        List<byte[]> batches = new ArrayList<>();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (byte[] item : items) {
+            if (batch.size() > 0 && batch.size() + item.length > BATCH_BYTES) {
+                batches.add(batch.toByteArray());
+                batch.reset();
+            }
+            batch.write(item, 0, item.length);
+        }
+        if (batch.size() > 0) {
+            batches.add(batch.toByteArray());
+        }
+        return batches;
+    }
+
+    private DataInputStream call(int node, int opcode, byte[] request) throws IOException {
+        return receive(peers[node].send(opcode, request));
+    }
+
+    // The reply payload, or null when the node has no result; an ERROR reply is thrown
+    private DataInputStream receive(Exchange exchange) throws IOException {
+        try {
+            byte[] frame = peers[exchange.node()].receive(exchange);
+            DataInputStream reply = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+            return switch (frame[0] & 0xFF) {
+                case STATUS_OK -> reply;
+                case STATUS_NOT_FOUND -> null;
+                default -> throw new IOException(nodes.get(exchange.node()) + " failed: " + reply.readUTF());
+            };
+        } finally {
+            Metrics.CLUSTER_CALL.record(System.nanoTime() - exchange.sentAt());
+        }
+    }
+
+    private void failed(int node, Throwable e) {
+        failures.incrementAndGet();
+        // A node marked down was logged when it went down, not again for every request skipping it
+        if (!peers[node].down) {
+            Log.warn("Cluster node {} unavailable: {}", nodes.get(node), e.getMessage());
+        }
+    }
+
+    // condition, temperature, latitude, longitude, forecast count, then day and temperature per forecast entry
+    private static void writeWeather(DataOutputStream out, WeatherServer.LocationWeather weather) throws IOException {
+        out.writeUTF(weather.currentWeather());
+        out.writeDouble(weather.temperature());
+        out.writeDouble(weather.latitude());
+        out.writeDouble(weather.longitude());
+        out.writeShort(weather.forecastDays());
+        for (int day = 0; day < weather.forecastDays(); day++) {
+            out.writeUTF(weather.forecastDay(day));
+            out.writeInt(weather.forecastTemperature(day));
+        }
+    }
+
+    private static WeatherServer.LocationWeather readWeather(DataInputStream in) throws IOException {
+        String condition = in.readUTF();
+        double temperature = in.readDouble();
+        double latitude = in.readDouble();
+        double longitude = in.readDouble();
+        int days = in.readUnsignedShort();
+        List<WeatherServer.Pair<String, Integer>> forecast = new ArrayList<>(days);
+        for (int day = 0; day < days; day++) {
+            forecast.add(new WeatherServer.Pair<>(in.readUTF(), in.readInt()));
+        }
+        return new WeatherServer.LocationWeather(condition, temperature, forecast, latitude, longitude);
+    }
+
+    private interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] payload(PayloadWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] utf(String value) {
+        return payload(out -> out.writeUTF(value));
+    }
+
+    // A request written to a connection whose reply has not been read yet
+    private record Exchange(int node, int opcode, byte[] request, Connection connection, boolean reused, long sentAt) {
+    }
+
+    // Persistent connections to one other node. A request takes an idle connection or opens a new one, up to
+    // MAX_CONNECTIONS in flight; at most POOLED_CONNECTIONS are kept once they are done. A node that cannot be
+    // reached is marked down: requests fail at once instead of each waiting for a connect timeout, and one request
+    // per RETRY_MS tries it again.
+    private static final class Peer implements Closeable {
+        private final int index;
+        private final Node node;
+        private final byte[] secret;
+        private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final Semaphore inFlight = new Semaphore(MAX_CONNECTIONS);
+        private final AtomicLong retryAt = new AtomicLong();
+        volatile boolean down;
+
+        Peer(int index, Node node, byte[] secret) {
+            this.index = index;
+            this.node = node;
+            this.secret = secret;
+        }
+
+        // Every exchange returned must be passed to receive, which frees its place
+        Exchange send(int opcode, byte[] request) throws IOException {
+            long start = System.nanoTime();
+            checkUp();
+            try {
+                if (!inFlight.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException(MAX_CONNECTIONS + " requests already in flight");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + node);
+            }
+            Connection connection = idle.poll();
+            boolean reused = connection != null;
+            try {
+                if (reused) {
+                    idleCount.decrementAndGet();
+                } else {
+                    connection = new Connection(node, secret);
+                }
+                try {
+                    connection.send(opcode, request);
+                } catch (IOException e) {
+                    connection.close();
+                    if (!reused) {
+                        throw e;
+                    }
+                    connection = new Connection(node, secret);
+                    connection.send(opcode, request);
+                    reused = false;
+                }
+            } catch (IOException e) {
+                inFlight.release();
+                markDown(e);
+                throw e;
+            }
+            return new Exchange(index, opcode, request, connection, reused, start);
+        }
+
+        byte[] receive(Exchange exchange) throws IOException {
+            try {
+                byte[] reply = receiveOrRetry(exchange);
+                markUp();
+                return reply;
+            } catch (IOException e) {
+                markDown(e);
+                throw e;
+            } finally {
+                inFlight.release();
+            }
+        }
+
+        private byte[] receiveOrRetry(Exchange exchange) throws IOException {
+            try {
+                byte[] reply = exchange.connection().receive();
+                release(exchange.connection());
+                return reply;
+            } catch (IOException e) {
+                exchange.connection().close();
+                // A pooled connection may have been closed by a peer that restarted since; reads are safe to repeat
+                if (!exchange.reused() || exchange.opcode() == OP_PROVISION || exchange.opcode() == OP_PUBLISH) {
+                    throw e;
+                }
+                Connection fresh = new Connection(node, secret);
+                try {
+                    fresh.send(exchange.opcode(), exchange.request());
+                    byte[] reply = fresh.receive();
+                    release(fresh);
+                    return reply;
+                } catch (IOException retryError) {
+                    fresh.close();
+                    throw retryError;
+                }
+            }
+        }
+
+        // While the node is down only the first request after each RETRY_MS gets through, to see if it is back
+        private void checkUp() throws IOException {
+            if (!down) {
+                return;
+            }
+            long at = retryAt.get();
+            long now = System.nanoTime();
+            if (now - at < 0 || !retryAt.compareAndSet(at, now + TimeUnit.MILLISECONDS.toNanos(RETRY_MS))) {
+                throw new IOException("marked down, retried every " + RETRY_MS + " ms");
+            }
+        }
+
+        private void markDown(IOException e) {
+            retryAt.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MS));
+            if (!down) {
+                down = true;
+                Log.warn("Cluster node {} marked down: {}", node, e.getMessage());
+            }
+        }
+
+        private void markUp() {
+            if (down) {
+                down = false;
+                Log.info("Cluster node {} is back", node);
+            }
+        }
+
+        private void release(Connection connection) {
+            if (idleCount.incrementAndGet() <= POOLED_CONNECTIONS) {
+                idle.add(connection);
+            } else {
+                idleCount.decrementAndGet();
+                connection.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        // Connects and answers the node's challenge
+        Connection(Node node, byte[] secret) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(node.host(), node.port()), TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(TIMEOUT_MS);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new BufferedOutputStream(socket.getOutputStream());
+                byte[] challenge = BinaryProtocol.readFrame(in);
+                if ((challenge[0] & 0xFF) != OP_CHALLENGE) {
+                    throw new IOException(node + " did not start the handshake");
+                }
+                BinaryProtocol.writeFrame(out, OP_AUTH, hmac(secret, Arrays.copyOfRange(challenge, 1, challenge.length)));
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void send(int opcode, byte[] request) throws IOException {
+            socket.setSoTimeout(opcode == OP_PROVISION ? PROVISION_TIMEOUT_MS : TIMEOUT_MS);
+            BinaryProtocol.writeFrame(out, opcode, request);
+            out.flush();
+        }
+
+        byte[] receive() throws IOException {
+            return BinaryProtocol.readFrame(in);
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Columnar storage behind LocationWeather. Stations are appended to chunks of parallel primitive arrays; a forecast
+// day is packed into one int, the code of its day name in the high half and its temperature in the low half.
+// Condition and day names are stored as codes into one shared dictionary, so each distinct name exists once.
+// A slot is never modified after it has been written, so readers need no locks: an update appends a new slot,
+// and a chunk is garbage collected once no LocationWeather points into it any more.
+final class WeatherColumns {
+    static final int CHUNK_SLOTS = 4096;
+    // Room for seven forecast days per station on average before a chunk fills up
+    private static final int CHUNK_FORECAST_DAYS = CHUNK_SLOTS * 7;
+    private static final int MAX_NAMES = 1 << 16;
+
+    private static final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    // Grown by the writers under the dictionary lock and republished after every addition
+    private static volatile String[] names = new String[64];
+    // The same names encoded once, for the text replies
+    private static volatile byte[][] utf8 = new byte[64][];
+    private static int nameCount;
+
+    static final class Chunk {
+        private final double[] temperature;
+        private final double[] latitude;
+        private final double[] longitude;
+        private final char[] condition;
+        // The forecast of slot i is forecast[forecastStart[i]] up to forecast[forecastStart[i + 1]]
+        private final int[] forecastStart;
+        private final int[] forecast;
+        // Writer only
+        private int slots;
+
+        private Chunk(int slots, int forecastDays) {
+            temperature = new double[slots];
+            latitude = new double[slots];
+            longitude = new double[slots];
+            condition = new char[slots];
+            forecastStart = new int[slots + 1];
+            forecast = new int[forecastDays];
+        }
+
+        // A full chunk over columns read elsewhere, such as from a WeatherSnapshot
+        Chunk(char[] condition, double[] temperature, double[] latitude, double[] longitude,
+              int[] forecastStart, int[] forecast) {
+            this.condition = condition;
+            this.temperature = temperature;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.forecastStart = forecastStart;
+            this.forecast = forecast;
+            this.slots = condition.length;
+        }
+
+        private boolean fits(int forecastDays) {
+            return slots < condition.length && forecastStart[slots] + forecastDays <= forecast.length;
+        }
+
+        // Returns the slot written
+        private int add(char conditionCode, double temperature, double latitude, double longitude,
+                        int[] forecast, int from, int to) {
+            int slot = slots++;
+            this.condition[slot] = conditionCode;
+            this.temperature[slot] = temperature;
+            this.latitude[slot] = latitude;
+            this.longitude[slot] = longitude;
+            int start = forecastStart[slot];
+            System.arraycopy(forecast, from, this.forecast, start, to - from);
+            forecastStart[slot + 1] = start + to - from;
+            return slot;
+        }
+
+        String condition(int slot) {
+            return name(condition[slot]);
+        }
+
+        byte[] conditionBytes(int slot) {
+            return utf8[condition[slot]];
+        }
+
+        char conditionCode(int slot) {
+            return condition[slot];
+        }
+
+        double temperature(int slot) {
+            return temperature[slot];
+        }
+
+        double latitude(int slot) {
+            return latitude[slot];
+        }
+
+        double longitude(int slot) {
+            return longitude[slot];
+        }
+
+        int forecastDays(int slot) {
+            return forecastStart[slot + 1] - forecastStart[slot];
+        }
+
+        String forecastDay(int slot, int day) {
+            return name(forecast[forecastStart[slot] + day] >>> 16);
+        }
+
+        byte[] forecastDayBytes(int slot, int day) {
+            return utf8[forecast[forecastStart[slot] + day] >>> 16];
+        }
+
+        // The day name code and temperature of a forecast day, as packed by WeatherColumns
+        int forecastPacked(int slot, int day) {
+            return forecast[forecastStart[slot] + day];
+        }
+
+        int forecastTemperature(int slot, int day) {
+            return (short) forecast[forecastStart[slot] + day];
+        }
+
+        boolean sameForecast(int slot, Chunk other, int otherSlot) {
+            return Arrays.equals(forecast, forecastStart[slot], forecastStart[slot + 1],
+                    other.forecast, other.forecastStart[otherSlot], other.forecastStart[otherSlot + 1]);
+        }
+    }
+
+    // Chunk being filled; writers must be serialized by the caller
+    private Chunk current;
+
+    // A station that is not part of any store yet, in a chunk of its own
+    static WeatherServer.LocationWeather single(String condition, double temperature, List<WeatherServer.Pair<String, Integer>> forecast,
+                                                double latitude, double longitude) {
+        int[] packed = new int[forecast.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = pack(forecast.get(i).first(), forecast.get(i).second());
+        }
+        Chunk chunk = new Chunk(1, packed.length);
+        chunk.add(code(condition), temperature, latitude, longitude, packed, 0, packed.length);
+        return new WeatherServer.LocationWeather(chunk, 0);
+    }
+
+    // Copies the station into the current chunk and returns the copy
+    WeatherServer.LocationWeather append(WeatherServer.LocationWeather weather) {
+        Chunk source = weather.chunk();
+        int slot = weather.slot();
+        int days = source.forecastDays(slot);
+        if (current == null || !current.fits(days)) {
+            current = new Chunk(CHUNK_SLOTS, Math.max(CHUNK_FORECAST_DAYS, days));
+        }
+        int from = source.forecastStart[slot];
+        int copy = current.add(source.condition[slot], source.temperature[slot], source.latitude[slot],
+                source.longitude[slot], source.forecast, from, from + days);
+        return new WeatherServer.LocationWeather(current, copy);
+    }
+
+    // Later appends go to a fresh chunk, so the old ones can be collected once nothing refers to them
+    void startNewChunk() {
+        current = null;
+    }
+
+    static boolean isValidTemperature(int temperature) {
+        return temperature >= Short.MIN_VALUE && temperature <= Short.MAX_VALUE;
+    }
+
+    private static int pack(String day, int temperature) {
+        if (!isValidTemperature(temperature)) {
+            throw new IllegalArgumentException("Forecast temperature out of range: " + temperature);
+        }
+        return code(day) << 16 | (temperature & 0xFFFF);
+    }
+
+    // Every name by code, in code order
+    static String[] dictionary() {
+        synchronized (codes) {
+            return Arrays.copyOf(names, nameCount);
+        }
+    }
+
+    static String name(int code) {
+        return names[code];
+    }
+
+    // Throws IllegalStateException once MAX_NAMES distinct names are in use; names are never reclaimed
+    static char code(String name) {
+        Integer code = codes.get(name);
+        if (code != null) {
+            return (char) code.intValue();
+        }
+        synchronized (codes) {
+            code = codes.get(name);
+            if (code == null) {
+                if (nameCount == MAX_NAMES) {
+                    throw new IllegalStateException("No room for the name \"" + name + "\", the dictionary already holds "
+                            + MAX_NAMES + " distinct condition and day names");
+                }
+                String[] table = names;
+                byte[][] encoded = utf8;
+                if (nameCount == table.length) {
+                    table = Arrays.copyOf(table, table.length * 2);
+                    encoded = Arrays.copyOf(encoded, encoded.length * 2);
+                }
+                code = nameCount++;
+                table[code] = name;
+                encoded[code] = name.getBytes(StandardCharsets.UTF_8);
+                // Publishes the entry before the code can be seen anywhere
+                names = table;
+                utf8 = encoded;
+                codes.put(name, code);
+            }
+            return (char) code.intValue();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+// Client side of the server protocol; both variants hand replies back as the lines of the text protocol
+public abstract class WeatherConnection implements Closeable {
+    protected final Socket socket;
+
+    protected WeatherConnection(Socket socket) {
+        this.socket = socket;
+    }
+
+    public static WeatherConnection open(String host, int port, boolean binary) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        return binary ? new Binary(socket) : new Text(socket);
+    }
+
+    // Sends a command line such as LOGIN:user:password
+    public abstract void send(String command) throws IOException;
+
+    // Tagged commands may be sent back to back; each reply starts with "#<id> <line count>"
+    public void sendTagged(long requestId, String command) throws IOException {
+        send("#" + requestId + " " + command);
+    }
+
+    // One round-trip for many locations; entries are names, optionally suffixed with @latitude,longitude.
+    // The reply is a "Batch: <n>" line followed by one "Location: <name>" line and weather block per entry.
+    public void getWeatherBatch(List<String> entries) throws IOException {
+        send("GET_WEATHER_BATCH:" + String.join("|", entries));
+    }
+
+    public abstract void setLocation(String location, double latitude, double longitude) throws IOException;
+
+    public abstract void getWeather() throws IOException;
+
+    // Next reply line, or null once the server has closed the connection
+    public abstract String readLine() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    static class Text extends WeatherConnection {
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Text(Socket socket) throws IOException {
+            super(socket);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(socket.getOutputStream()), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void send(String command) {
+            out.println(command);
+            out.flush();
+        }
+
+        @Override
+        public void setLocation(String location, double latitude, double longitude) {
+            send("SET_LOCATION:" + location + ":" + latitude + ":" + longitude);
+        }
+
+        @Override
+        public void getWeather() {
+            send("GET_WEATHER");
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            return in.readLine();
+        }
+    }
+
+    static class Binary extends WeatherConnection {
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Queue<String> lines = new ArrayDeque<>();
+
+        Binary(Socket socket) throws IOException {
+            super(socket);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(BinaryProtocol.MAGIC);
+        }
+
+        @Override
+        public void send(String command) throws IOException {
+            BinaryProtocol.writeFrame(out, BinaryProtocol.OP_TEXT, command.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        @Override
+        public void setLocation(String location, double latitude, double longitude) throws IOException {
+            BinaryProtocol.writeFrame(out, BinaryProtocol.OP_SET_LOCATION, BinaryProtocol.setLocationPayload(location, latitude, longitude));
+            out.flush();
+        }
+
+        @Override
+        public void getWeather() throws IOException {
+            BinaryProtocol.writeFrame(out, BinaryProtocol.OP_GET_WEATHER);
+            out.flush();
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            while (lines.isEmpty()) {
+                byte[] frame;
+                try {
+                    frame = BinaryProtocol.readFrame(in);
+                } catch (EOFException e) {
+                    return null;
+                }
+                lines.addAll(BinaryProtocol.decodeReply(frame));
+            }
+            return lines.poll();
+        }
+    }
+}
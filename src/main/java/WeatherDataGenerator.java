@@ -0,0 +1,61 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Writes a synthetic weather_data.json of any size for benchmarks and load tests:
+//   java WeatherDataGenerator <locations> <output file> [seed]
+// Locations are named Station-<n>, spread over the inhabited latitudes; the same seed gives the same file.
+public class WeatherDataGenerator {
+    private static final String[] CONDITIONS = {"Sunny", "Cloudy", "Rainy", "Snowy", "Windy", "Foggy", "Stormy", "Partly cloudy"};
+    private static final String[] DAYS = {"Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java WeatherDataGenerator <locations> <output file> [seed]");
+            return;
+        }
+        int locations = Integer.parseInt(args[0]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        generate(Path.of(args[1]), locations, seed);
+        System.out.println("Wrote " + locations + " locations to " + args[1]);
+    }
+
+    static void generate(Path file, int locations, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("[\n");
+            for (int i = 0; i < locations; i++) {
+                if (i > 0) {
+                    writer.write(",\n");
+                }
+                writer.write(entry("Station-" + i, random).toString());
+            }
+            writer.write("\n]\n");
+        }
+    }
+
+    static JSONObject entry(String location, Random random) {
+        double temperature = Math.round((random.nextDouble() * 50 - 15) * 10) / 10.0;
+        JSONArray forecast = new JSONArray();
+        int days = 3 + random.nextInt(5);
+        int firstDay = random.nextInt(DAYS.length);
+        for (int d = 0; d < days; d++) {
+            forecast.put(new JSONObject()
+                    .put("day", DAYS[(firstDay + d) % DAYS.length])
+                    .put("temperature", (int) Math.round(temperature + random.nextGaussian() * 4)));
+        }
+        return new JSONObject()
+                .put("location", location)
+                .put("currentWeather", CONDITIONS[random.nextInt(CONDITIONS.length)])
+                .put("temperature", temperature)
+                .put("latitude", Math.round((random.nextDouble() * 130 - 60) * 10_000) / 10_000.0)
+                .put("longitude", Math.round((random.nextDouble() * 360 - 180) * 10_000) / 10_000.0)
+                .put("forecast", forecast);
+    }
+}
@@ -0,0 +1,61 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+// Reads a JSON array of weather entries one object at a time instead of building the whole array in memory
+public class WeatherDataReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private final JSONTokener tokener;
+    private boolean started;
+    private boolean finished;
+
+    public WeatherDataReader(String filePath) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(filePath), StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.tokener = new JSONTokener(reader);
+    }
+
+    // Next entry of the array, or null once the closing bracket has been read
+    public JSONObject next() throws JSONException {
+        if (finished) {
+            return null;
+        }
+        char c = tokener.nextClean();
+        if (!started) {
+            started = true;
+            if (c != '[') {
+                throw tokener.syntaxError("A JSONArray text must start with '['");
+            }
+            c = tokener.nextClean();
+            if (c != ']') {
+                tokener.back();
+            }
+        } else if (c != ']' && c != ',') {
+            throw tokener.syntaxError("Expected a ',' or ']'");
+        }
+        if (c == ']') {
+            finished = true;
+            return null;
+        }
+
+        Object value = tokener.nextValue();
+        if (!(value instanceof JSONObject entry)) {
+            throw tokener.syntaxError("Expected a weather entry object");
+        }
+        return entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Recent observations per location at three resolutions: the raw readings and their hourly and daily rollups.
+// Each resolution is a ring of bounded size, so memory per location and the cost of a query stay capped however
+// long the server runs; ranges older than what the rings hold are read from the database (HistoryRepository).
+public class WeatherHistory {
+    private static final int INITIAL_SLOTS = 8;
+
+    enum Resolution {
+        RAW(0), HOUR(3_600_000L), DAY(86_400_000L);
+
+        final long millis;
+
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+
+        // Start of the bucket holding the time; raw readings are their own bucket
+        long bucket(long time) {
+            return millis == 0 ? time : Math.floorDiv(time, millis) * millis;
+        }
+
+        long next(long bucket) {
+            return bucket + Math.max(millis, 1);
+        }
+
+        static Resolution parse(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    record Observation(String location, long time, double temperature, String condition) {
+    }
+
+    // One reading, or the readings of a bucket folded together; only raw points carry a condition
+    record Point(long time, double min, double max, double sum, int count, String condition) {
+        double average() {
+            return sum / count;
+        }
+    }
+
+    private final Map<String, Series[]> series = new ConcurrentHashMap<>();
+    private final int[] capacity;
+    // Everything observed since then is in memory until a ring evicts it
+    private final long since = System.currentTimeMillis();
+
+    public WeatherHistory(int rawSize, int hours, int days) {
+        this.capacity = new int[]{rawSize, hours, days};
+    }
+
+    public void record(Observation observation) {
+        Series[] rings = series.computeIfAbsent(observation.location(), location -> {
+            Series[] created = new Series[Resolution.values().length];
+            for (Resolution resolution : Resolution.values()) {
+                created[resolution.ordinal()] = new Series(resolution, capacity[resolution.ordinal()], since);
+            }
+            return created;
+        });
+        char code = WeatherColumns.code(observation.condition());
+        for (Series ring : rings) {
+            ring.add(observation.time(), observation.temperature(), code);
+        }
+    }
+
+    // Points of [from, to) in time order, at most limit + 1 of them so callers can tell the range was cut short;
+    // null when part of the range is no longer in memory
+    public List<Point> find(String location, Resolution resolution, long from, long to, int limit) {
+        Series[] rings = series.get(location);
+        if (rings == null) {
+            return resolution.bucket(from) >= since ? List.of() : null;
+        }
+        return rings[resolution.ordinal()].find(from, to, limit);
+    }
+
+    public int locations() {
+        return series.size();
+    }
+
+    // Points ordered by bucket in a circular buffer, grown on demand up to the capacity
+    private static final class Series {
+        private final Resolution resolution;
+        private final int capacity;
+        private long[] time;
+        private double[] min;
+        private double[] max;
+        private double[] sum;
+        private int[] count;
+        private char[] condition;
+        private int first;
+        private int size;
+        // Buckets starting here or later are all held; raised as old ones are evicted
+        private long coveredFrom;
+
+        Series(Resolution resolution, int capacity, long coveredFrom) {
+            this.resolution = resolution;
+            this.capacity = capacity;
+            this.coveredFrom = coveredFrom;
+            allocate(Math.min(INITIAL_SLOTS, capacity));
+        }
+
+        synchronized void add(long observedAt, double temperature, char conditionCode) {
+            long bucket = resolution.bucket(observedAt);
+            // Readings nearly always arrive in order, so the search starts at the newest point
+            int position = size;
+            while (position > 0 && time[index(position - 1)] > bucket) {
+                position--;
+            }
+            if (position > 0 && time[index(position - 1)] == bucket) {
+                int slot = index(position - 1);
+                min[slot] = Math.min(min[slot], temperature);
+                max[slot] = Math.max(max[slot], temperature);
+                sum[slot] += temperature;
+                count[slot]++;
+                condition[slot] = conditionCode;
+                return;
+            }
+            if (size == capacity) {
+                if (position == 0) {
+                    // Older than everything held
+                    coveredFrom = Math.max(coveredFrom, resolution.next(bucket));
+                    return;
+                }
+                coveredFrom = Math.max(coveredFrom, resolution.next(time[first]));
+                first = index(1);
+                size--;
+                position--;
+            } else if (size == time.length) {
+                grow();
+            }
+            for (int i = size; i > position; i--) {
+                move(index(i - 1), index(i));
+            }
+            int slot = index(position);
+            time[slot] = bucket;
+            min[slot] = temperature;
+            max[slot] = temperature;
+            sum[slot] = temperature;
+            count[slot] = 1;
+            condition[slot] = conditionCode;
+            size++;
+        }
+
+        synchronized List<Point> find(long from, long to, int limit) {
+            long start = resolution.bucket(from);
+            if (start < coveredFrom) {
+                return null;
+            }
+            List<Point> points = new ArrayList<>();
+            for (int i = 0; i < size && points.size() <= limit; i++) {
+                int slot = index(i);
+                if (time[slot] >= start && time[slot] < to) {
+                    String name = resolution == Resolution.RAW ? WeatherColumns.name(condition[slot]) : null;
+                    points.add(new Point(time[slot], min[slot], max[slot], sum[slot], count[slot], name));
+                }
+            }
+            return points;
+        }
+
+        private int index(int i) {
+            return (first + i) % time.length;
+        }
+
+        private void move(int from, int to) {
+            time[to] = time[from];
+            min[to] = min[from];
+            max[to] = max[from];
+            sum[to] = sum[from];
+            count[to] = count[from];
+            condition[to] = condition[from];
+        }
+
+        private void allocate(int slots) {
+            time = new long[slots];
+            min = new double[slots];
+            max = new double[slots];
+            sum = new double[slots];
+            count = new int[slots];
+            condition = new char[slots];
+        }
+
+        // Copies the points into larger arrays, oldest first
+        private void grow() {
+            long[] oldTime = time;
+            double[] oldMin = min;
+            double[] oldMax = max;
+            double[] oldSum = sum;
+            int[] oldCount = count;
+            char[] oldCondition = condition;
+            allocate(Math.min(oldTime.length * 2, capacity));
+            for (int i = 0; i < size; i++) {
+                int slot = (first + i) % oldTime.length;
+                time[i] = oldTime[slot];
+                min[i] = oldMin[slot];
+                max[i] = oldMax[slot];
+                sum[i] = oldSum[slot];
+                count[i] = oldCount[slot];
+                condition[i] = oldCondition[slot];
+            }
+            first = 0;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+// JSON over HTTP, served from the same in-memory store as the socket protocol:
+//   GET /weather/{location}               current weather and forecast
+//   GET /forecast/{location}              forecast only
+//   GET /nearest?lat=..&lon=..[&radiusKm=..]  closest station and its weather
+//   GET /batch?locations=a,b,c            weather for several locations at once
+//   GET /search?q=..[&limit=..]           location names matching a prefix or close to it, best first
+//   GET /metrics                          the STATS text, one "name value" line per metric; admins only, with
+//                                         HTTP Basic credentials as for LOGIN
+// Requests pass the same admission control as socket commands: a token bucket per client address at the
+// per-connection rate (429 when empty) and an AdmissionGate on how many are served at once (503 when full).
+// Successful JSON replies carry a weak ETag made from the store versions of the locations they show, so a repeat poll
+// with If-None-Match costs a bodyless 304 without the JSON being built.
+public class WeatherHttpServer {
+    static final int PORT = Integer.getInteger("weather.httpPort", 8080);
+    // Smaller bodies are sent as is, gzip would barely shrink them
+    private static final int GZIP_MIN_BYTES = 512;
+    // Rate buckets kept for this many client addresses; past it they are all forgotten, which only grants a fresh burst
+    private static final int MAX_TRACKED_CLIENTS = 10_000;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AdmissionGate requestGate = new AdmissionGate(Integer.getInteger("weather.http.maxConcurrent", 64),
+            Integer.getInteger("weather.http.maxWaiting", 256), Long.getLong("weather.http.waitTimeoutMs", 1_000L));
+    private final Map<String, TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+    private final AtomicLong throttled = new AtomicLong();
+    // Store versions start over when the server restarts, so every tag also names the run that issued it
+    private static final String RUN = Long.toHexString(new SecureRandom().nextLong());
+
+    WeatherHttpServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/weather/", exchange -> handle(exchange, 1, () -> weather(pathParameter(exchange, "/weather/"), false)));
+        server.createContext("/forecast/", exchange -> handle(exchange, 1, () -> weather(pathParameter(exchange, "/forecast/"), true)));
+        server.createContext("/nearest", exchange -> handle(exchange, 1, () -> nearest(queryParameters(exchange))));
+        server.createContext("/batch", exchange -> {
+            Map<String, String> parameters = queryParameters(exchange);
+            // One token per location, like GET_WEATHER_BATCH
+            handle(exchange, batchLocations(parameters).length, () -> batch(parameters));
+        });
+        server.createContext("/search", exchange -> handle(exchange, 1, () -> search(queryParameters(exchange))));
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (admit(exchange, 1)) {
+                    try {
+                        if (isAdmin(exchange)) {
+                            metrics(exchange);
+                        } else {
+                            exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"weather\", charset=\"UTF-8\"");
+                            send(exchange, error(401, "Admin login required."));
+                        }
+                    } finally {
+                        requestGate.exit();
+                    }
+                }
+            }
+        });
+        Metrics.gauge("http.throttled", throttled::get);
+        Metrics.gauge("http.rejected", requestGate::rejectedCount);
+    }
+
+    void start() {
+        server.start();
+        Log.info("HTTP server is running on port {}", server.getAddress().getPort());
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    // The validator is the newest store version among the locations the body is rendered from, so a matching
+    // If-None-Match is answered before the JSON is built. Error replies, and data without a version, have none (-1).
+    private record Reply(int status, long validator, Supplier<JSONObject> body) {
+    }
+
+    // Weather and its version, read as of one write
+    private record Lookup(String location, WeatherServer.LocationWeather weather, long version) {
+        static Lookup of(String location) {
+            return WeatherServer.readConsistently(() -> new Lookup(location, WeatherServer.lookupWeather(location),
+                    WeatherServer.weatherVersion(location)));
+        }
+    }
+
+    private interface ReplySource {
+        Reply get();
+    }
+
+    private static Reply weather(String location, boolean forecastOnly) {
+        Lookup lookup = Lookup.of(location);
+        if (lookup.weather() == null) {
+            return notFound("No data available for location: " + location);
+        }
+        return new Reply(200, lookup.version(), () -> weatherJson(location, lookup.weather(), forecastOnly));
+    }
+
+    private static JSONObject weatherJson(String location, WeatherServer.LocationWeather weather, boolean forecastOnly) {
+        JSONObject body = new JSONObject().put("location", location).put("forecast", forecastJson(weather));
+        if (!forecastOnly) {
+            body.put("currentWeather", weather.currentWeather())
+                    .put("temperature", weather.temperature())
+                    .put("latitude", weather.latitude())
+                    .put("longitude", weather.longitude());
+        }
+        return body;
+    }
+
+    private static Reply nearest(Map<String, String> parameters) {
+        double latitude;
+        double longitude;
+        double radiusKm;
+        try {
+            latitude = Double.parseDouble(parameters.get("lat"));
+            longitude = Double.parseDouble(parameters.get("lon"));
+            radiusKm = parameters.containsKey("radiusKm")
+                    ? Double.parseDouble(parameters.get("radiusKm"))
+                    : WeatherServer.NEARBY_RADIUS_KM;
+        } catch (NullPointerException | NumberFormatException e) {
+            return badRequest("Expected lat, lon and optionally radiusKm.");
+        }
+        String location = WeatherServer.findClosestLocation(latitude, longitude, radiusKm);
+        if (location == null) {
+            return notFound("No location within " + radiusKm + " km.");
+        }
+        Lookup lookup = Lookup.of(location);
+        WeatherServer.LocationWeather weather = lookup.weather();
+        if (weather == null) {
+            return notFound("No data available for location: " + location);
+        }
+        // Another station only becomes the closest by being added, under a version newer than any before. The distance
+        // follows from the request's coordinates, which are part of the URL the validator belongs to.
+        return new Reply(200, lookup.version(), () -> weatherJson(location, weather, false)
+                .put("distanceKm", SpatialIndex.distanceKm(latitude, longitude, weather.latitude(), weather.longitude())));
+    }
+
+    private static String[] batchLocations(Map<String, String> parameters) {
+        String locations = parameters.get("locations");
+        return locations == null || locations.isBlank() ? new String[0] : locations.split(",");
+    }
+
+    private static Reply batch(Map<String, String> parameters) {
+        String[] locations = batchLocations(parameters);
+        if (locations.length == 0) {
+            return badRequest("Expected locations=name,name,...");
+        }
+        // Looked up as of one write, so the results never mix locations before and after a provision
+        Map<String, Lookup> found = WeatherServer.readConsistently(() -> {
+            Map<String, Lookup> lookups = new LinkedHashMap<>();
+            for (String location : locations) {
+                lookups.put(location, Lookup.of(location));
+            }
+            return lookups;
+        });
+        long validator = 0;
+        for (Lookup lookup : found.values()) {
+            validator = newest(validator, lookup.version());
+        }
+        return new Reply(200, validator, () -> {
+            JSONObject results = new JSONObject();
+            found.forEach((location, lookup) -> results.put(location,
+                    lookup.weather() != null ? weatherJson(location, lookup.weather(), false) : JSONObject.NULL));
+            return new JSONObject().put("results", results);
+        });
+    }
+
+    private static Reply search(Map<String, String> parameters) {
+        String query = parameters.get("q");
+        int limit;
+        try {
+            limit = parameters.containsKey("limit") ? Integer.parseInt(parameters.get("limit")) : WeatherServer.SEARCH_LIMIT;
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+        if (query == null || limit < 0) {
+            return badRequest("Expected q and optionally limit.");
+        }
+        int candidates = limit;
+        // A name only enters the matches by being added, under a version newer than any before
+        return WeatherServer.readConsistently(() -> {
+            List<LocationNameIndex.Match> matches = WeatherServer.searchLocations(query, candidates);
+            long validator = 0;
+            for (LocationNameIndex.Match match : matches) {
+                validator = newest(validator, WeatherServer.weatherVersion(match.location()));
+            }
+            return new Reply(200, validator, () -> matchesJson(matches));
+        });
+    }
+
+    private static JSONObject matchesJson(List<LocationNameIndex.Match> matches) {
+        JSONArray array = new JSONArray();
+        for (LocationNameIndex.Match match : matches) {
+            array.put(new JSONObject().put("location", match.location()).put("distance", match.distance()));
+        }
+        return new JSONObject().put("matches", array);
+    }
+
+    // Basic credentials of an admin user; anything malformed counts as no credentials
+    private static boolean isAdmin(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return false;
+        }
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        int colon = credentials.indexOf(':');
+        return colon > 0 && WeatherServer.isAdminLogin(credentials.substring(0, colon), credentials.substring(colon + 1));
+    }
+
+    private static void metrics(HttpExchange exchange) throws IOException {
+        byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Reply notFound(String message) {
+        return error(404, message);
+    }
+
+    private static Reply badRequest(String message) {
+        return error(400, message);
+    }
+
+    private static Reply error(int status, String message) {
+        return new Reply(status, -1, () -> new JSONObject().put("error", message));
+    }
+
+    // The newer of two validators, or none if either is missing
+    private static long newest(long validator, long version) {
+        return validator < 0 || version < 0 ? -1 : Math.max(validator, version);
+    }
+
+    private static JSONArray forecastJson(WeatherServer.LocationWeather weather) {
+        JSONArray forecast = new JSONArray();
+        for (WeatherServer.Pair<String, Integer> pair : weather.forecast()) {
+            forecast.put(new JSONObject().put("day", pair.first()).put("temperature", pair.second()));
+        }
+        return forecast;
+    }
+
+    private void handle(HttpExchange exchange, int cost, ReplySource source) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (cost > WeatherServer.BATCH_MAX_LOCATIONS) {
+                // Turned away before it is charged, so an oversized batch does not use up the client's rate
+                send(exchange, badRequest("Batch too large, at most " + WeatherServer.BATCH_MAX_LOCATIONS + " locations."));
+                return;
+            }
+            if (!admit(exchange, cost)) {
+                return;
+            }
+            Reply reply;
+            try {
+                reply = source.get();
+            } catch (RuntimeException e) {
+                Log.error("HTTP error: {}", e.getMessage());
+                reply = error(500, "Internal server error.");
+            } finally {
+                requestGate.exit();
+            }
+            send(exchange, reply);
+        }
+    }
+
+    // Charges the client's bucket and enters the request gate, or answers 429 or 503 and returns false. A true
+    // return must be paired with requestGate.exit(); the caller closes the exchange either way.
+    private boolean admit(HttpExchange exchange, int cost) throws IOException {
+        if (clientBuckets.size() >= MAX_TRACKED_CLIENTS) {
+            clientBuckets.clear();
+        }
+        String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+        TokenBucket bucket = clientBuckets.computeIfAbsent(client,
+                address -> new TokenBucket(WeatherServer.CONNECTION_RATE, 2 * WeatherServer.CONNECTION_RATE));
+        if (!bucket.tryAcquire(cost)) {
+            throttled.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, error(429, "Rate limit exceeded, slow down."));
+            return false;
+        }
+        if (!requestGate.tryEnter()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, error(503, "Server busy, try again later."));
+            return false;
+        }
+        return true;
+    }
+
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+        var headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/json; charset=utf-8");
+        headers.set("Cache-Control", "no-cache");
+        headers.set("Vary", "Accept-Encoding");
+        if (reply.status() == 200 && reply.validator() >= 0) {
+            String etag = etag(reply.validator());
+            headers.set("ETag", etag);
+            if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+        }
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(reply.status(), -1);
+            return;
+        }
+
+        byte[] body = reply.body().get().toString().getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (body.length >= GZIP_MIN_BYTES && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(body);
+            }
+            body = compressed.toByteArray();
+            headers.set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(reply.status(), body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // Weak: the gzip and the identity body are the same JSON but not the same bytes
+    private static String etag(long validator) {
+        return "W/\"" + RUN + "-" + Long.toHexString(validator) + "\"";
+    }
+
+    // If-None-Match uses the weak comparison, so a tag the client sends with or without W/ matches
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.substring(2);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String pathParameter(HttpExchange exchange, String prefix) {
+        String path = exchange.getRequestURI().getPath();
+        return path.length() > prefix.length() ? path.substring(prefix.length()) : "";
+    }
+
+    private static Map<String, String> queryParameters(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+}
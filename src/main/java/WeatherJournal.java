@@ -0,0 +1,90 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Append-only log of provisioned weather entries, one JSON object per line, replayed on top of the data file
+public class WeatherJournal {
+    private final Path logFile;
+    private final int compactThreshold;
+    private int entriesSinceCompaction;
+
+    public WeatherJournal(Path logFile, int compactThreshold) {
+        this.logFile = logFile;
+        this.compactThreshold = compactThreshold;
+    }
+
+    public synchronized void replay(Consumer<JSONObject> consumer) throws IOException {
+        entriesSinceCompaction = 0;
+        if (!Files.exists(logFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    consumer.accept(new JSONObject(line));
+                    entriesSinceCompaction++;
+                } catch (JSONException e) {
+                    // A crash can leave a partially written last line behind; everything before it is intact
+                    Log.warn("Skipping corrupt journal entry: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    public synchronized void append(List<JSONObject> entries) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (JSONObject entry : entries) {
+                writer.write(entry.toString());
+                writer.newLine();
+            }
+        }
+        entriesSinceCompaction += entries.size();
+    }
+
+    public synchronized int entriesSinceCompaction() {
+        return entriesSinceCompaction;
+    }
+
+    // Instead of a replay, when the entries were loaded from a WeatherSnapshot
+    public synchronized void restore(int entriesSinceCompaction) {
+        this.entriesSinceCompaction = entriesSinceCompaction;
+    }
+
+    public synchronized boolean needsCompaction() {
+        return entriesSinceCompaction >= compactThreshold;
+    }
+
+    // Replaces the data file with a full snapshot and truncates the log; the rename keeps the old file until the new one is complete.
+    // Entries are written as the snapshot yields them, so the data set is never held as JSON all at once.
+    public synchronized void compact(Iterable<JSONObject> snapshot, Path dataFile) throws IOException {
+        Path tempFile = dataFile.resolveSibling(dataFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write("[");
+            boolean first = true;
+            for (JSONObject entry : snapshot) {
+                writer.write(first ? "\n    " : ",\n    ");
+                entry.write(writer, 4, 4);
+                first = false;
+            }
+            writer.write(first ? "]" : "\n]");
+        }
+        Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(logFile);
+        entriesSinceCompaction = 0;
+    }
+}
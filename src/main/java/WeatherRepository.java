@@ -0,0 +1,98 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// Per-request access to the weather and forecast tables through the shared pool
+public class WeatherRepository {
+
+    private static final String FIND_SQL = "SELECT w.currentWeather, w.temperature, w.latitude, w.longitude, "
+            + "f.day, f.temperature AS forecastTemperature "
+            + "FROM weather w LEFT JOIN forecast f ON f.weather_id = w.id "
+            + "WHERE w.location = ? ORDER BY f.id";
+    private static final String UPSERT_WEATHER_SQL = "INSERT INTO weather (location, currentWeather, temperature, latitude, longitude) "
+            + "VALUES (?, ?, ?, ?, ?) "
+            + "ON CONFLICT (location) DO UPDATE SET currentWeather = EXCLUDED.currentWeather, "
+            + "temperature = EXCLUDED.temperature, latitude = EXCLUDED.latitude, longitude = EXCLUDED.longitude "
+            + "RETURNING id";
+    private static final String UPSERT_FORECAST_SQL = "INSERT INTO forecast (weather_id, day, temperature) VALUES (?, ?, ?) "
+            + "ON CONFLICT (weather_id, day) DO UPDATE SET temperature = EXCLUDED.temperature";
+    private static final String DELETE_FORECAST_SQL = "DELETE FROM forecast WHERE weather_id = ?";
+
+    public static Optional<WeatherServer.LocationWeather> findByLocation(String location) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = Database.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(FIND_SQL)) {
+            stmt.setString(1, location);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                String currentWeather = rs.getString("currentWeather");
+                double temperature = rs.getDouble("temperature");
+                double latitude = rs.getDouble("latitude");
+                double longitude = rs.getDouble("longitude");
+                List<WeatherServer.Pair<String, Integer>> forecast = new ArrayList<>();
+                do {
+                    String day = rs.getString("day");
+                    if (day != null) {
+                        forecast.add(new WeatherServer.Pair<>(day, rs.getInt("forecastTemperature")));
+                    }
+                } while (rs.next());
+                return Optional.of(new WeatherServer.LocationWeather(currentWeather, temperature, forecast, latitude, longitude));
+            }
+        } finally {
+            Metrics.DB_WEATHER_FIND.record(System.nanoTime() - start);
+        }
+    }
+
+    public static void save(String location, WeatherServer.LocationWeather weather) throws SQLException {
+        saveAll(Map.of(location, weather));
+    }
+
+    // Replaces each location and its whole forecast; the batch is applied in one transaction
+    public static void saveAll(Map<String, WeatherServer.LocationWeather> batch) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = Database.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement weatherStmt = connection.prepareStatement(UPSERT_WEATHER_SQL);
+                 PreparedStatement deleteStmt = connection.prepareStatement(DELETE_FORECAST_SQL);
+                 PreparedStatement forecastStmt = connection.prepareStatement(UPSERT_FORECAST_SQL)) {
+                for (Map.Entry<String, WeatherServer.LocationWeather> entry : batch.entrySet()) {
+                    WeatherServer.LocationWeather weather = entry.getValue();
+                    weatherStmt.setString(1, entry.getKey());
+                    weatherStmt.setString(2, weather.currentWeather());
+                    weatherStmt.setDouble(3, weather.temperature());
+                    weatherStmt.setDouble(4, weather.latitude());
+                    weatherStmt.setDouble(5, weather.longitude());
+                    int weatherId;
+                    try (ResultSet rs = weatherStmt.executeQuery()) {
+                        rs.next();
+                        weatherId = rs.getInt(1);
+                    }
+
+                    deleteStmt.setInt(1, weatherId);
+                    deleteStmt.addBatch();
+                    for (WeatherServer.Pair<String, Integer> pair : weather.forecast()) {
+                        forecastStmt.setInt(1, weatherId);
+                        forecastStmt.setString(2, pair.first());
+                        forecastStmt.setInt(3, pair.second());
+                        forecastStmt.addBatch();
+                    }
+                }
+                deleteStmt.executeBatch();
+                forecastStmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } finally {
+            Metrics.DB_WEATHER_SAVE.record(System.nanoTime() - start);
+        }
+    }
+}
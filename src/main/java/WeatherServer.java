@@ -1,85 +1,242 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import org.json.*;
 
 public class WeatherServer {
-    private static final int PORT = 12345;
-    private static final String DATA_FILE = "src/weather_data.json";
-    private static final String USERS_FILE = "src/users.txt";
-    private static final Map<String, LocationWeather> weatherData = new HashMap<>();
-    private static final Map<String, User> users = loadUsers();
-    private static boolean isRunning = true;
+    static final int PORT = Integer.getInteger("weather.port", 12345);
+    // Directory holding the data, users and log files
+    private static final String DATA_DIR = System.getProperty("weather.dataDir", "src");
+    // The other nodes and which locations this one owns; a server without weather.cluster.nodes owns them all
+    private static final WeatherCluster cluster = WeatherCluster.fromProperties();
+    static final String DATA_FILE = DATA_DIR + "/weather_data.json";
+    private static final String USERS_FILE = DATA_DIR + "/users.txt";
+    private static final String USERS_LOG_FILE = DATA_DIR + "/users.log";
+    private static final int USERS_COMPACT_THRESHOLD = Integer.getInteger("weather.users.compactThreshold", 1_000);
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+    static final double NEARBY_RADIUS_KM = 100.0;
+    private static final String JOURNAL_FILE = DATA_DIR + "/weather_data.log";
+    // Binary image of the store, used at startup while the data file and journal are unchanged. A cluster node
+    // holds only its share, so its snapshot is named after the layout it was taken under.
+    private static final String SNAPSHOT_FILE = DATA_DIR + "/weather_data"
+            + (cluster.isClustered() ? "." + cluster.layoutId() : "") + ".snapshot";
+    private static final boolean SNAPSHOT_ENABLED = Boolean.parseBoolean(System.getProperty("weather.snapshot.enabled", "true"));
+    private static final int JOURNAL_COMPACT_THRESHOLD = Integer.getInteger("weather.journalCompactThreshold", 10_000);
+    private static final WeatherStore weatherData = new WeatherStore();
+    private static final boolean DB_READ_THROUGH = Boolean.getBoolean("weather.cache.enabled");
+    private static final WeatherCache weatherCache = new WeatherCache(WeatherRepository::findByLocation,
+            Long.getLong("weather.cache.maxBytes", 64L * 1024 * 1024), Long.getLong("weather.cache.ttlMs", 60_000L));
+    private static final SubscriptionHub subscriptions = new SubscriptionHub();
+    // Recent observations per location: raw readings, hours and days kept in memory before HISTORY asks the database
+    private static final WeatherHistory history = new WeatherHistory(Integer.getInteger("weather.history.rawSize", 64),
+            Integer.getInteger("weather.history.hours", 48), Integer.getInteger("weather.history.days", 31));
+    // Most points one HISTORY reply holds, at any resolution
+    private static final int HISTORY_MAX_POINTS = Integer.getInteger("weather.history.maxPoints", 1000);
+    // Candidates SEARCH returns unless the request asks for another number, and the most it may ask for
+    static final int SEARCH_LIMIT = Integer.getInteger("weather.search.limit", 10);
+    static final int SEARCH_MAX_LIMIT = 100;
+    // Commands per second per connection and per logged-in user by role; bursts of twice the rate are allowed
+    static final double CONNECTION_RATE = Double.parseDouble(System.getProperty("weather.rateLimit.connection", "200"));
+    private static final double USER_RATE = Double.parseDouble(System.getProperty("weather.rateLimit.user", "100"));
+    private static final double ADMIN_RATE = Double.parseDouble(System.getProperty("weather.rateLimit.admin", "1000"));
+    private static final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private static final AtomicLong throttledCommands = new AtomicLong();
+    // Most locations one GET_WEATHER_BATCH, SUBSCRIBE or HTTP /batch request may ask for
+    static final int BATCH_MAX_LOCATIONS = Integer.getInteger("weather.batch.maxLocations", 100);
+    // Longest text request line either engine reads before closing the connection; binary frames are bounded by
+    // BinaryProtocol.MAX_FRAME_SIZE
+    static final int MAX_LINE_BYTES = Integer.getInteger("weather.maxLineBytes", 8192);
+    private static final AdmissionGate provisionGate = new AdmissionGate(Integer.getInteger("weather.provision.maxConcurrent", 1),
+            Integer.getInteger("weather.provision.maxWaiting", 4), Long.getLong("weather.provision.waitTimeoutMs", 10_000L));
+    // LOGIN and REGISTER hash passwords, which is CPU-bound; more than one per core only adds latency
+    private static final AdmissionGate passwordGate = new AdmissionGate(
+            Integer.getInteger("weather.password.maxConcurrent", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("weather.password.maxWaiting", 256), Long.getLong("weather.password.waitTimeoutMs", 5_000L));
+    private static final WeatherJournal journal = new WeatherJournal(Path.of(JOURNAL_FILE), JOURNAL_COMPACT_THRESHOLD);
+    private static final UserStore users = loadUsers();
+    private static final LoginCache loginCache = new LoginCache(Integer.getInteger("weather.login.cacheSize", 10_000),
+            Long.getLong("weather.login.cacheTtlMs", 600_000L));
+    private static volatile boolean isRunning = true;
+    // Whether the database has every location of the store; cleared when a provision could not be saved there
+    private static volatile boolean databaseInSync;
+    private static ConnectionEngine engine;
+    private static WeatherHttpServer httpServer;
 
     public static void main(String[] args) {
         DatabaseHelper.createTables();
-        loadWeatherData();
-        DatabaseHelper.loadWeatherDataIntoDatabase();
-        DatabaseHelper.loadUsersFromTextFileToDatabase();
+        boolean fromSnapshot = loadWeatherData();
+        // A snapshot taken while the database held all of its data makes the bulk load unnecessary
+        if (!databaseInSync) {
+            databaseInSync = DatabaseHelper.loadWeatherDataIntoDatabase(weatherData.view());
+        }
+        if (!fromSnapshot) {
+            saveSnapshot();
+        }
+        DatabaseHelper.loadUsersIntoDatabase(users.values());
+        try {
+            cluster.start();
+        } catch (IOException e) {
+            Log.error("Error starting cluster port: {}", e.getMessage());
+        }
+        engine = ConnectionEngine.create(System.getProperty("weather.engine", "virtual"), PORT);
+        registerMetrics();
+        // A negative weather.httpPort turns the HTTP front-end off
+        if (WeatherHttpServer.PORT >= 0) {
+            try {
+                httpServer = new WeatherHttpServer(WeatherHttpServer.PORT);
+                httpServer.start();
+            } catch (IOException e) {
+                Log.error("Error starting HTTP server: {}", e.getMessage());
+            }
+        }
         Thread serverThread = new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-                System.out.println("Server is running on port " + PORT);
-                while (isRunning) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        new Thread(new ClientHandler(clientSocket)).start();
-                    } catch (IOException e) {
-                        if (!isRunning) {
-                            System.out.println("Server has been stopped.");
-                        } else {
-                            System.err.println("Error accepting client: " + e.getMessage());
-                        }
-                    }
-                }
+            try {
+                engine.serve();
             } catch (IOException e) {
-                System.err.println("Server error: " + e.getMessage());
+                Log.error("Server error: {}", e.getMessage());
             } finally {
-                System.out.println("Server has been shut down.");
+                Log.info("Server has been shut down.");
             }
         });
 
         serverThread.start();
     }
 
-    private static String provisionWeatherData(String filePath) {
-        try {
-            JSONArray existingData = getObjects();
+    private static void registerMetrics() {
+        Metrics.gauge("connections.active", engine::activeConnections);
+        Metrics.gauge("store.locations", weatherData::size);
+        Metrics.gauge("users", users::size);
+        Metrics.gauge("cache.hits", () -> weatherCache.stats().hits());
+        Metrics.gauge("cache.misses", () -> weatherCache.stats().misses());
+        Metrics.gauge("cache.evictions", () -> weatherCache.stats().evictions());
+        Metrics.gauge("cache.entries", () -> weatherCache.stats().size());
+        Metrics.gauge("cache.bytes", () -> weatherCache.stats().bytes());
+        Metrics.gauge("login.cache.hits", () -> loginCache.stats().hits());
+        Metrics.gauge("login.cache.misses", () -> loginCache.stats().misses());
+        Metrics.gauge("db.pool.active", () -> Database.poolStats().active());
+        Metrics.gauge("db.pool.idle", () -> Database.poolStats().idle());
+        Metrics.gauge("db.pool.waiting", () -> Database.poolStats().waiting());
+        Metrics.gauge("db.pool.averageWaitMicros", () -> Database.poolStats().averageWaitMicros());
+        Metrics.gauge("history.locations", history::locations);
+        Metrics.gauge("subscriptions.published", subscriptions::publishedCount);
+        Metrics.gauge("subscriptions.dropped", subscriptions::droppedCount);
+        Metrics.gauge("rateLimit.throttled", throttledCommands::get);
+        Metrics.gauge("provision.rejected", provisionGate::rejectedCount);
+        Metrics.gauge("password.rejected", passwordGate::rejectedCount);
+        Metrics.gauge("log.dropped", Log::droppedCount);
+        Metrics.gauge("cluster.failures", cluster::failureCount);
+        Metrics.gauge("cluster.down", cluster::downCount);
+        Metrics.registerMBean();
+    }
 
-            StringBuilder newJsonContent = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    newJsonContent.append(line);
-                }
+    static void stopServer() {
+        isRunning = false;
+        if (engine != null) {
+            engine.stop();
+        }
+        if (httpServer != null) {
+            httpServer.stop();
+        }
+        cluster.stop();
+        saveSnapshot();
+    }
+
+    // Records the store together with the data files it now reflects, so the next start can skip the JSON
+    static void saveSnapshot() {
+        if (!SNAPSHOT_ENABLED) {
+            return;
+        }
+        long start = System.nanoTime();
+        // Provisions change the store and the journal under this lock, so both are seen at the same point
+        synchronized (journal) {
+            try {
+                WeatherSnapshot.write(Path.of(SNAPSHOT_FILE), WeatherSnapshot.Source.of(Path.of(DATA_FILE), Path.of(JOURNAL_FILE)),
+                        journal.entriesSinceCompaction(), databaseInSync, weatherData.view());
+            } catch (IOException e) {
+                Log.error("Error writing weather snapshot: {}", e.getMessage());
+                return;
             }
+        }
+        Log.info("Wrote {} locations to {} in {} ms", weatherData.size(), SNAPSHOT_FILE, (System.nanoTime() - start) / 1_000_000);
+    }
 
-            JSONArray newData = new JSONArray(newJsonContent.toString());
+    // Entries of a provision as read from the file, their parsed weather and the readings they record
+    private record ProvisionBatch(List<JSONObject> entries, Map<String, LocationWeather> weather,
+                                  List<WeatherHistory.Observation> observations) {
+        ProvisionBatch() {
+            this(new ArrayList<>(), new LinkedHashMap<>(), new ArrayList<>());
+        }
 
-            // Validate and add new 
-            for (int i = 0; i < newData.length(); i++) {
-                JSONObject weatherEntry = newData.getJSONObject(i);
+        // Every entry is a reading, including repeats of a location within the batch
+        void add(JSONObject entry, long now) {
+            String location = entry.getString("location");
+            LocationWeather parsed;
+            try {
+                parsed = parseLocationWeather(entry);
+            } catch (JSONException e) {
+                throw new JSONException(location + ": " + e.getMessage());
+            }
+            entries.add(entry);
+            weather.put(location, parsed);
+            observations.add(new WeatherHistory.Observation(location, observedAt(entry, now),
+                    parsed.temperature(), parsed.currentWeather()));
+        }
+    }
 
-                // Validate
-                if (!weatherEntry.has("location") || !weatherEntry.has("currentWeather") ||
-                        !weatherEntry.has("temperature") || !weatherEntry.has("latitude") ||
-                        !weatherEntry.has("longitude") || !weatherEntry.has("forecast")) {
-                    throw new JSONException("Missing required fields in weather data.");
-                }
+    private static String provisionWeatherData(String filePath) {
+        try {
+            // Validate the whole batch before anything is applied; in cluster mode it is split by owning node
+            Map<Integer, ProvisionBatch> parts = new TreeMap<>();
+            long now = System.currentTimeMillis();
+            try (WeatherDataReader reader = new WeatherDataReader(filePath)) {
+                JSONObject weatherEntry;
+                while ((weatherEntry = reader.next()) != null) {
+                    // Validate
+                    if (!weatherEntry.has("location") || !weatherEntry.has("currentWeather") ||
+                            !weatherEntry.has("temperature") || !weatherEntry.has("latitude") ||
+                            !weatherEntry.has("longitude") || !weatherEntry.has("forecast")) {
+                        throw new JSONException("Missing required fields in weather data.");
+                    }
 
-                // Validate forecast
-                JSONArray forecastArray = weatherEntry.getJSONArray("forecast");
-                for (int j = 0; j < forecastArray.length(); j++) {
-                    JSONObject forecast = forecastArray.getJSONObject(j);
-                    if (!forecast.has("day") || !forecast.has("temperature")) {
-                        throw new JSONException("Invalid forecast format.");
+                    // Validate forecast
+                    JSONArray forecastArray = weatherEntry.getJSONArray("forecast");
+                    for (int j = 0; j < forecastArray.length(); j++) {
+                        JSONObject forecast = forecastArray.getJSONObject(j);
+                        if (!forecast.has("day") || !forecast.has("temperature")) {
+                            throw new JSONException("Invalid forecast format.");
+                        }
                     }
-                }
 
-                existingData.put(weatherEntry);
+                    parts.computeIfAbsent(cluster.owner(weatherEntry.getString("location")), node -> new ProvisionBatch())
+                            .add(weatherEntry, now);
+                }
             }
 
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(DATA_FILE))) {
-                writer.write(existingData.toString(4));  
+            // Each owner applies its share on its own, so a node that cannot be reached does not hold up the others
+            List<String> unreachable = new ArrayList<>();
+            for (Map.Entry<Integer, ProvisionBatch> part : parts.entrySet()) {
+                if (part.getKey() == cluster.self()) {
+                    applyProvision(part.getValue());
+                    continue;
+                }
+                try {
+                    cluster.provision(part.getKey(), part.getValue().entries());
+                } catch (IOException e) {
+                    Log.error("Error provisioning weather data on {}: {}", cluster.node(part.getKey()), e.getMessage());
+                    unreachable.add(part.getValue().weather().size() + " locations of " + cluster.node(part.getKey()));
+                }
+            }
+            if (!unreachable.isEmpty()) {
+                return "Error provisioning weather data: not applied to " + String.join(", ", unreachable) + ".";
             }
 
             return "Weather data provisioned successfully.";  
@@ -89,255 +246,1158 @@ public class WeatherServer {
         }
     }
 
-    private static JSONArray getObjects() throws IOException {
-        JSONArray existingData = new JSONArray();
-        File weatherFile = new File(DATA_FILE);
-        if (weatherFile.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(weatherFile))) {
-                StringBuilder jsonContent = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    jsonContent.append(line);
+    // Entries sent by the node that read and validated the provision; all of them belong to this node
+    static void provisionLocal(List<JSONObject> entries) throws IOException {
+        ProvisionBatch batch = new ProvisionBatch();
+        long now = System.currentTimeMillis();
+        for (JSONObject entry : entries) {
+            batch.add(entry, now);
+        }
+        applyProvision(batch);
+    }
+
+    private static void applyProvision(ProvisionBatch provision) throws IOException {
+        Map<String, LocationWeather> batch = provision.weather();
+        Map<String, LocationWeather> changed = new LinkedHashMap<>();
+        // Only the batch is written; the journal lock also keeps compaction from running in between
+        synchronized (journal) {
+            journal.append(provision.entries());
+            batch.forEach((location, weather) -> {
+                if (!weather.sameAs(weatherData.get(location))) {
+                    changed.put(location, weather);
                 }
-                existingData = new JSONArray(jsonContent.toString());
+            });
+            weatherData.putAll(batch);
+            provision.observations().forEach(history::record);
+            subscriptions.publish(changed);
+            if (journal.needsCompaction()) {
+                Map<String, LocationWeather> snapshot = weatherData.view();
+                journal.compact(() -> snapshot.entrySet().stream().map(entry -> toJson(entry.getKey(), entry.getValue())).iterator(),
+                        Path.of(DATA_FILE));
             }
         }
-        return existingData;
+        // Subscribers of these locations may be connected to any node
+        cluster.publish(changed);
+        try {
+            WeatherRepository.saveAll(batch);
+        } catch (SQLException e) {
+            databaseInSync = false;
+            Log.error("Error saving provisioned weather data: {}", e.getMessage());
+        }
+        // Only after the commit: a read between an earlier invalidation and the commit would cache the old row again
+        batch.keySet().forEach(weatherCache::invalidate);
+        try {
+            HistoryRepository.saveAll(provision.observations());
+        } catch (SQLException e) {
+            Log.error("Error saving weather history: {}", e.getMessage());
+        }
     }
 
+    // Changes applied on another node, for the subscribers connected to this one
+    static void publishLocal(Map<String, LocationWeather> changed) {
+        subscriptions.publish(changed);
+    }
 
-    private static Map<String, User> loadUsers() {
-        Map<String, User> users = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(USERS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 3) {
-                    users.put(parts[0], new User(parts[0], parts[1], parts[2]));
-                } else {
-                    System.err.println("Invalid user data format: " + line);
-                }
+    // A provisioned entry may carry the ISO-8601 time it was observed at; otherwise it is observed now
+    private static long observedAt(JSONObject entry, long now) {
+        if (!entry.has("observedAt")) {
+            return now;
+        }
+        try {
+            return Instant.parse(entry.getString("observedAt")).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new JSONException("Invalid observedAt: " + entry.get("observedAt"));
+        }
+    }
+
+    // Asked of the node owning the location, which records its observations
+    static List<WeatherHistory.Point> findHistory(String location, WeatherHistory.Resolution resolution,
+                                                  long from, long to, int limit) {
+        if (!cluster.isLocal(location)) {
+            return cluster.history(location, resolution, from, to, limit);
+        }
+        return localHistory(location, resolution, from, to, limit);
+    }
+
+    // From memory while the rings hold the whole range, else from the database; null when the database fails.
+    // At most limit + 1 points, so callers can tell the range was cut short.
+    static List<WeatherHistory.Point> localHistory(String location, WeatherHistory.Resolution resolution,
+                                                   long from, long to, int limit) {
+        List<WeatherHistory.Point> points = history.find(location, resolution, from, to, limit);
+        if (points != null) {
+            return points;
+        }
+        try {
+            return HistoryRepository.find(location, resolution, from, to, limit + 1);
+        } catch (SQLException e) {
+            Log.error("Error reading weather history: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    static LocationWeather parseLocationWeather(JSONObject obj) {
+        String currentWeather = obj.getString("currentWeather");
+        double temperature = obj.getDouble("temperature");
+        double latitude = obj.getDouble("latitude");
+        double longitude = obj.getDouble("longitude");
+        List<Pair<String, Integer>> forecast = new ArrayList<>();
+
+        JSONArray forecastArray = obj.getJSONArray("forecast");
+        for (int k = 0; k < forecastArray.length(); k++) {
+            JSONObject forecastObj = forecastArray.getJSONObject(k);
+            String day = forecastObj.getString("day");
+            int temp = forecastObj.getInt("temperature");
+            if (!WeatherColumns.isValidTemperature(temp)) {
+                throw new JSONException("Forecast temperature out of range: " + temp);
             }
-            System.out.println("Loaded users: " + users.keySet()); // Debug
+            forecast.add(new Pair<>(day, temp));
+        }
+
+        try {
+            return new LocationWeather(currentWeather, temperature, forecast, latitude, longitude);
+        } catch (IllegalStateException e) {
+            // The name dictionary is full; reported as bad data of this location, like any other invalid entry
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private static JSONObject toJson(String location, LocationWeather weather) {
+        JSONArray forecastArray = new JSONArray();
+        for (Pair<String, Integer> pair : weather.forecast()) {
+            forecastArray.put(new JSONObject().put("day", pair.first()).put("temperature", pair.second()));
+        }
+        return new JSONObject()
+                .put("location", location)
+                .put("currentWeather", weather.currentWeather())
+                .put("temperature", weather.temperature())
+                .put("latitude", weather.latitude())
+                .put("longitude", weather.longitude())
+                .put("forecast", forecastArray);
+    }
+
+    private static UserStore loadUsers() {
+        UserStore users = new UserStore(Path.of(USERS_FILE), Path.of(USERS_LOG_FILE), USERS_COMPACT_THRESHOLD);
+        try {
+            users.load();
+            Log.info("Loaded users: {}", users.size());
         } catch (IOException e) {
-            System.err.println("Error loading users: " + e.getMessage());
+            Log.error("Error loading users: {}", e.getMessage());
         }
         return users;
     }
-    private static void loadWeatherData() {
-        try (FileReader reader = new FileReader(DATA_FILE)) {
-            StringBuilder jsonBuilder = new StringBuilder();
-            int i;
-            while ((i = reader.read()) != -1) {
-                jsonBuilder.append((char) i);
+
+    // Returns true when the store was loaded from the snapshot instead of the data file and journal
+    private static boolean loadWeatherData() {
+        if (SNAPSHOT_ENABLED && loadSnapshot()) {
+            return true;
+        }
+        try (WeatherDataReader reader = new WeatherDataReader(DATA_FILE)) {
+            Map<String, LocationWeather> loaded = new LinkedHashMap<>();
+            JSONObject obj;
+            while ((obj = reader.next()) != null) {
+                loadEntry(loaded, obj);
             }
+            // Entries provisioned since the last compaction override the data file
+            journal.replay(entry -> loadEntry(loaded, entry));
+            weatherData.putAll(loaded);
+        } catch (IOException | JSONException e) {
+            Log.error("Error loading weather data: {}", e.getMessage());
+        }
+        return false;
+    }
 
-            JSONArray jsonArray = new JSONArray(jsonBuilder.toString());
-            for (int j = 0; j < jsonArray.length(); j++) {
-                JSONObject obj = jsonArray.getJSONObject(j);
-                String location = obj.getString("location");
-                String currentWeather = obj.getString("currentWeather");
-                double temperature = obj.getDouble("temperature");
-                double latitude = obj.getDouble("latitude");
-                double longitude = obj.getDouble("longitude");
-                List<Pair<String, Integer>> forecast = new ArrayList<>();
+    // A cluster node keeps only the locations it owns. An entry that cannot be stored is left out with an error of its
+    // own, so one bad location does not cost the rest of the file.
+    private static void loadEntry(Map<String, LocationWeather> loaded, JSONObject entry) {
+        String location = entry.getString("location");
+        if (!cluster.isLocal(location)) {
+            return;
+        }
+        try {
+            loaded.put(location, parseLocationWeather(entry));
+        } catch (JSONException e) {
+            Log.error("Error loading weather data of {}: {}", location, e.getMessage());
+        }
+    }
 
-                JSONArray forecastArray = obj.getJSONArray("forecast");
-                for (int k = 0; k < forecastArray.length(); k++) {
-                    JSONObject forecastObj = forecastArray.getJSONObject(k);
-                    String day = forecastObj.getString("day");
-                    int temp = forecastObj.getInt("temperature");
-                    forecast.add(new Pair<>(day, temp));
-                }
+    // Empties the store, so the next loadWeatherData measures a cold start
+    static void clearWeatherData() {
+        weatherData.clear();
+    }
 
-                weatherData.put(location, new LocationWeather(currentWeather, temperature, forecast, latitude, longitude));
+    private static boolean loadSnapshot() {
+        long start = System.nanoTime();
+        try {
+            WeatherSnapshot.Loaded snapshot = WeatherSnapshot.read(Path.of(SNAPSHOT_FILE),
+                    WeatherSnapshot.Source.of(Path.of(DATA_FILE), Path.of(JOURNAL_FILE)));
+            if (snapshot == null) {
+                return false;
             }
-        } catch (IOException | JSONException e) {
-            System.err.println("Error loading weather data: " + e.getMessage());
+            weatherData.adoptAll(snapshot.entries());
+            journal.restore(snapshot.journalEntries());
+            databaseInSync = snapshot.databaseInSync();
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Error reading weather snapshot, loading the data file instead: {}", e.getMessage());
+            return false;
         }
+        Log.info("Loaded {} locations from {} in {} ms", weatherData.size(), SNAPSHOT_FILE, (System.nanoTime() - start) / 1_000_000);
+        return true;
     }
 
     static class ClientHandler implements Runnable {
+        private static final String RATE_LIMITED = "ERROR: Rate limit exceeded, slow down.";
+        private static final String SERVER_BUSY = "ERROR: Server busy, try again later.";
+        private static final String ADMIN_REQUIRED = "ERROR: Admin login required.";
+        private static final String BATCH_TOO_LARGE = "ERROR: Batch too large, at most " + BATCH_MAX_LOCATIONS + " locations.";
         private final Socket socket;
+        private final Runnable pushWakeup;
+        // Not a monitor: a command forwarded to another node blocks while holding it, and a virtual thread blocked
+        // inside synchronized would keep its carrier thread from serving anyone else
+        private final ReentrantLock lock = new ReentrantLock();
+        private SubscriptionHub.Subscriber subscriber;
+        private Thread pushThread;
+        // Read timeout of the socket before it subscribed, put back once it has no subscriptions left
+        private int idleTimeoutMs = -1;
+        private boolean binary;
+        private OutputStream rawOut;
+        private PrintWriter out;
+        private String clientLocation = "";
+        private double clientLat = 0.0;
+        private double clientLon = 0.0;
+        private final TokenBucket connectionBucket = new TokenBucket(CONNECTION_RATE, 2 * CONNECTION_RATE);
+        // Set by a successful LOGIN; STOP and PROVISION need the admin role
+        private User sessionUser;
 
         ClientHandler(Socket socket) {
             this.socket = socket;
+            this.pushWakeup = null;
+        }
+
+        // Session without a socket of its own, driven by the NIO engine, which drains pushed updates after pushWakeup
+        ClientHandler(OutputStream output, Runnable pushWakeup) {
+            this.socket = null;
+            this.pushWakeup = pushWakeup;
+            bind(output);
+        }
+
+        private void bind(OutputStream output) {
+            this.rawOut = output;
+            this.out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
         }
 
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-                String clientLocation = "";
-                double clientLat = 0.0;
-                double clientLon = 0.0;
-                String input;
-                while ((input = in.readLine()) != null) {
-                    if (input.startsWith("REGISTER:")) {
-                        System.out.println("Processing REGISTER command: " + input); // 
-
-                        String[] parts = input.split(":", 4);
-                        if (parts.length != 4) {
-                            out.println("ERROR: Invalid register format. Expected: REGISTER:username:password:role");
-                            continue;
-                        }
+            try (socket;
+                 BufferedInputStream input = new BufferedInputStream(socket.getInputStream())) {
+                // Replies are buffered and flushed once per command instead of once per line
+                bind(new BufferedOutputStream(socket.getOutputStream(), RESPONSE_BUFFER_SIZE));
 
-                        String username = parts[1];
-                        String password = parts[2];
-                        String role = parts[3];
-
-                        synchronized (users) {
-                            if (users.containsKey(username)) {
-                                out.println("ERROR: Username already exists.");
-                            } else {
-                                User newUser = new User(username, password, role);
-                                users.put(username, newUser);
-                                saveUsers(); 
-                                out.println("SUCCESS: User registered.");
-                            }
-                        }
-                    }else if (input.startsWith("LOGIN:")) {
-                    //Login process
-                        String[] parts = input.split(":", 3);
-                        if (parts.length != 3) {
-                            out.println("ERROR: Invalid login format. Expected: LOGIN:username:password");
-                            continue;
-                        }
+                input.mark(1);
+                if (input.read() == BinaryProtocol.MAGIC) {
+                    runBinary(new DataInputStream(input));
+                } else {
+                    input.reset();
+                    runText(new LineReader(input, MAX_LINE_BYTES));
+                }
+            } catch (SocketTimeoutException e) {
+                Log.info("Closing idle client: {}", socket.getRemoteSocketAddress());
+            } catch (EOFException e) {
+                // Binary client closed the connection between frames
+            } catch (IOException e) {
+                Log.error("Client error: {}", e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        // Releases the subscription of a finished session
+        void close() {
+            if (subscriber != null) {
+                subscriptions.unsubscribe(subscriber);
+            }
+            if (pushThread != null) {
+                pushThread.interrupt();
+            }
+        }
 
-                        String username = parts[1];
-                        String password = parts[2];
+        boolean isSubscribed() {
+            return subscriber != null && (!subscriber.locations.isEmpty() || subscriber.radiusKm >= 0);
+        }
 
-                        Optional<User> userOpt = Optional.ofNullable(users.get(username));
+        // Writes first (if any) and the queued updates; returns false when the session overflowed its queue and has to be closed
+        boolean drainPushes(byte[] first) throws IOException {
+            if (subscriber == null) {
+                return true;
+            }
+            lock.lock();
+            try {
+                byte[] message = first != null ? first : subscriber.queue.poll();
+                while (message != null) {
+                    if (binary) {
+                        out.flush();
+                        BinaryProtocol.writeFrame(rawOut, BinaryProtocol.STATUS_TEXT, message);
+                    } else {
+                        write(message);
+                    }
+                    message = subscriber.queue.poll();
+                }
+                flush();
+                return !subscriber.overflowed;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                        userOpt.filter(user -> user.password().equals(password))
-                                .filter(user -> user.role() != null && (user.role().equals("admin") || user.role().equals("user")))
-                                .ifPresentOrElse(
-                                        user -> out.println(user.role()),
-                                        () -> out.println("ERROR: Invalid credentials or role.")
-                                );
+        private void pushLoop() {
+            try {
+                while (true) {
+                    if (!drainPushes(subscriber.queue.take())) {
+                        Log.info("Disconnecting slow subscriber: {}", socket.getRemoteSocketAddress());
+                        socket.close();
+                        return;
                     }
-                        else if (input.startsWith("PROVISION WEATHER DATA:")) {
-                            //Processing Provision command
-                            String filePath = input.substring("PROVISION WEATHER DATA:".length()).trim(); 
-                            String resultMessage = provisionWeatherData(filePath); 
-                            out.println(resultMessage);
-                            out.println();
-                    } else if (input.equalsIgnoreCase("STOP")) {
-                        synchronized (WeatherServer.class) {
-                            isRunning = false;
-                        }
-                        out.println("SERVER_STOPPED");
-                        break;
+                }
+            } catch (InterruptedException | IOException e) {
+                // Session closed while waiting for updates
+            }
+        }
+
+        private void runText(LineReader in) throws IOException {
+            String input;
+            while ((input = in.readLine()) != null) {
+                boolean keepOpen;
+                // Locked against the push thread, so a pushed update never lands inside a reply
+                lock.lock();
+                try {
+                    keepOpen = handleCommand(input);
+                    // Pipelined requests already waiting are answered before the replies are flushed together
+                    if (!keepOpen || !in.ready()) {
+                        flush();
                     }
-                    else if (input.startsWith("SET_LOCATION:")) {
-                        String[] parts = input.split(":", 4);
-                        clientLocation = parts[1];
-                        clientLat = Double.parseDouble(parts[2]);
-                        clientLon = Double.parseDouble(parts[3]);
-                        out.println("Location updated to: " + clientLocation);
-                        out.println();
-                    } else if (input.equals("GET_WEATHER")) {
-                        if (weatherData.containsKey(clientLocation)) {
-                            LocationWeather weather = weatherData.get(clientLocation);
-                            out.println("Current weather: " + weather.currentWeather);
-                            out.println("Temperature: " + weather.temperature + "°C");
-                            out.println("Forecast:");
-                            for (Pair<String, Integer> pair : weather.forecast) {
-                                out.println(" - " + pair.first() + ": " + pair.second() + "°C");
-                            }
-                            out.println();
-                        }else {
-                            double radius = 100.0;
-                            String closestLocation = findClosestLocation(clientLocation, clientLat, clientLon, radius);
-                            if (closestLocation != null) {
-                                LocationWeather weather = weatherData.get(closestLocation);
-                                out.println("Closest location: " + closestLocation);
-                                out.println("Current weather: " + weather.currentWeather);
-                                out.println("Temperature: " + weather.temperature);
-                                out.println("Forecast:");
-                                for (Pair<String, Integer> pair : weather.forecast) {
-                                    out.println(" - " + pair.first() + ": " + pair.second() + "°C");
-                                }
-                                out.println();
-                            } else {
-                                out.println("No data available for this location or nearby.");
-                            }
-                        }
+                } finally {
+                    lock.unlock();
+                }
+                if (!keepOpen) {
+                    break;
+                }
+            }
+        }
+
+        private void runBinary(DataInputStream in) throws IOException {
+            while (true) {
+                byte[] frame = BinaryProtocol.readFrame(in);
+                boolean keepOpen;
+                lock.lock();
+                try {
+                    keepOpen = handleFrame(frame);
+                    if (!keepOpen || in.available() == 0) {
+                        flush();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (!keepOpen) {
+                    break;
+                }
+            }
+        }
+
+        // Updates are pushed as "UPDATE: <location>" followed by the GET_WEATHER reply for it
+        private SubscriptionHub.Subscriber ensureSubscriber() {
+            if (subscriber == null) {
+                subscriber = new SubscriptionHub.Subscriber(pushWakeup);
+                if (pushWakeup == null) {
+                    pushThread = Thread.ofVirtual().name("push-" + socket.getRemoteSocketAddress()).start(this::pushLoop);
+                }
+            }
+            return subscriber;
+        }
+
+        // Subscribers are expected to sit idle between pushed updates, so the blocking engines' read timeout is lifted
+        // while the session is subscribed; the NIO engine checks isSubscribed() itself
+        private void updateIdleTimeout() throws SocketException {
+            if (socket == null) {
+                return;
+            }
+            if (isSubscribed() && idleTimeoutMs < 0) {
+                idleTimeoutMs = socket.getSoTimeout();
+                socket.setSoTimeout(0);
+            } else if (!isSubscribed() && idleTimeoutMs >= 0) {
+                socket.setSoTimeout(idleTimeoutMs);
+                idleTimeoutMs = -1;
+            }
+        }
+
+        // Weather for the location, or for the closest station within range of the coordinates; NaN coordinates skip the fallback
+        private void writeWeather(String location, double latitude, double longitude) throws IOException {
+            writeWeather(resolveWeather(location, latitude, longitude));
+        }
+
+        private void writeWeather(Resolved resolved) throws IOException {
+            if (resolved.weather() == null) {
+                out.println("No data available for this location or nearby.");
+                out.println();
+                return;
+            }
+            if (resolved.closestLocation() != null) {
+                out.println("Closest location: " + resolved.closestLocation());
+            }
+            write(resolved.weather().response());
+        }
+
+        // HISTORY:<location>:<raw|hour|day>:<from>:<to> with Unix times in seconds, read from the end like SET_LOCATION.
+        // Raw points are "<time> <temperature> <condition>", rollups "<bucket> min .. avg .. max .. readings ..".
+        private void writeHistory(String input) {
+            int toSeparator = input.lastIndexOf(':');
+            int fromSeparator = input.lastIndexOf(':', toSeparator - 1);
+            int resolutionSeparator = input.lastIndexOf(':', fromSeparator - 1);
+            WeatherHistory.Resolution resolution = null;
+            long from = 0;
+            long to = 0;
+            if (resolutionSeparator >= "HISTORY:".length()) {
+                resolution = WeatherHistory.Resolution.parse(input.substring(resolutionSeparator + 1, fromSeparator));
+                try {
+                    from = Long.parseLong(input.substring(fromSeparator + 1, toSeparator)) * 1000;
+                    to = Long.parseLong(input.substring(toSeparator + 1)) * 1000;
+                } catch (NumberFormatException e) {
+                    resolution = null;
+                }
+            }
+            if (resolution == null) {
+                out.println("ERROR: Invalid history format. Expected: HISTORY:location:raw|hour|day:fromUnixSeconds:toUnixSeconds");
+                out.println();
+                return;
+            }
+            String location = input.substring("HISTORY:".length(), resolutionSeparator);
+            List<WeatherHistory.Point> points = findHistory(location, resolution, from, to, HISTORY_MAX_POINTS);
+            if (points == null) {
+                out.println("ERROR: History for this range is not available right now.");
+                out.println();
+                return;
+            }
+            int shown = Math.min(points.size(), HISTORY_MAX_POINTS);
+            out.println("History: " + location + " (" + resolution.name().toLowerCase(Locale.ROOT) + "), " + shown + " points");
+            for (WeatherHistory.Point point : points.subList(0, shown)) {
+                String time = Instant.ofEpochMilli(point.time()).toString();
+                if (resolution == WeatherHistory.Resolution.RAW) {
+                    out.println(time + " " + point.max() + " " + point.condition());
+                } else {
+                    out.println(time + " min " + point.min() + " avg " + Math.round(point.average() * 10) / 10.0
+                            + " max " + point.max() + " readings " + point.count());
+                }
+            }
+            if (points.size() > shown) {
+                out.println("Truncated: narrow the range or use a coarser resolution.");
+            }
+            out.println();
+        }
+
+        // Processes one binary request frame (opcode byte and payload); returns false when the session should be closed
+        boolean handleFrame(byte[] frame) throws IOException {
+            binary = true;
+            int opcode = frame[0] & 0xFF;
+            if (opcode == BinaryProtocol.OP_SET_LOCATION || opcode == BinaryProtocol.OP_GET_WEATHER) {
+                Metrics.Command command = opcode == BinaryProtocol.OP_GET_WEATHER ? Metrics.Command.GET_WEATHER : Metrics.Command.SET_LOCATION;
+                long start = System.nanoTime();
+                try {
+                    if (admit(1)) {
+                        handleBinaryCommand(opcode, frame);
                     } else {
-                        out.println("Unknown command.");
+                        throttledCommands.incrementAndGet();
+                        BinaryProtocol.writeFrame(rawOut, BinaryProtocol.STATUS_TEXT, (RATE_LIMITED + "\n\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                } finally {
+                    command.latency.record(System.nanoTime() - start);
+                }
+                return true;
+            }
+
+            // Every other command travels as its text line and gets its text reply back in one frame
+            String command = opcode == BinaryProtocol.OP_TEXT
+                    ? new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8)
+                    : "";
+            CapturedReply reply = capture(command);
+            BinaryProtocol.writeFrame(rawOut, BinaryProtocol.STATUS_TEXT, reply.bytes());
+            return reply.keepOpen();
+        }
+
+        // SET_LOCATION and GET_WEATHER, the commands with a binary encoding of their own
+        private void handleBinaryCommand(int opcode, byte[] frame) throws IOException {
+            if (opcode == BinaryProtocol.OP_SET_LOCATION) {
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+                clientLat = payload.readDouble();
+                clientLon = payload.readDouble();
+                clientLocation = new String(payload.readAllBytes(), StandardCharsets.UTF_8);
+                BinaryProtocol.writeFrame(rawOut, BinaryProtocol.STATUS_TEXT,
+                        ("Location updated to: " + clientLocation + "\n\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            LocationWeather weather = lookupWeather(clientLocation);
+            if (weather != null) {
+                BinaryProtocol.writeFrame(rawOut, BinaryProtocol.STATUS_WEATHER, weather.binaryBody());
+                return;
+            }
+            String closestLocation = findClosestLocation(clientLat, clientLon, NEARBY_RADIUS_KM);
+            LocationWeather closestWeather = closestLocation != null ? lookupWeather(closestLocation) : null;
+            if (closestWeather != null) {
+                BinaryProtocol.writeFrame(rawOut, BinaryProtocol.STATUS_NEARBY,
+                        BinaryProtocol.encodeUtf(closestLocation), closestWeather.binaryBody());
+            } else {
+                BinaryProtocol.writeFrame(rawOut, BinaryProtocol.STATUS_NOT_FOUND);
+            }
+        }
+
+        private record CapturedReply(byte[] bytes, boolean keepOpen) {
+        }
+
+        // Runs a text command with its reply collected in memory instead of written to the client
+        private CapturedReply capture(String command) throws IOException {
+            OutputStream target = rawOut;
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            bind(reply);
+            try {
+                boolean keepOpen = handleCommand(command);
+                out.flush();
+                return new CapturedReply(reply.toByteArray(), keepOpen);
+            } finally {
+                bind(target);
+            }
+        }
+
+        // "#<id> <command>" is answered with a "#<id> <line count>" header followed by exactly that many reply lines,
+        // so a client that pipelines requests can match every reply without relying on blank-line terminators
+        private boolean handleTaggedCommand(String input) throws IOException {
+            int space = input.indexOf(' ');
+            String requestId = space < 0 ? input.substring(1) : input.substring(1, space);
+            String command = space < 0 ? "" : input.substring(space + 1);
+            CapturedReply reply = capture(command);
+            int lines = 0;
+            for (byte b : reply.bytes()) {
+                if (b == '\n') {
+                    lines++;
+                }
+            }
+            out.println("#" + requestId + " " + lines);
+            write(reply.bytes());
+            return reply.keepOpen();
+        }
+
+        void flush() throws IOException {
+            out.flush();
+            rawOut.flush();
+        }
+
+        private void write(byte[] response) throws IOException {
+            out.flush();
+            rawOut.write(response);
+        }
+
+        private static boolean isValidUserField(String value) {
+            return !value.isEmpty() && value.indexOf(',') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+        }
+
+        private boolean isAdmin() {
+            return sessionUser != null && "admin".equals(sessionUser.role());
+        }
+
+        // Takes the command's cost from this connection's bucket and, once logged in, from the user's shared bucket;
+        // a command turned away by either bucket costs nothing
+        private boolean admit(int cost) {
+            if (sessionUser == null) {
+                return connectionBucket.tryAcquire(cost);
+            }
+            double rate = "admin".equals(sessionUser.role()) ? ADMIN_RATE : USER_RATE;
+            TokenBucket userBucket = userBuckets.computeIfAbsent(sessionUser.username(), name -> new TokenBucket(rate, 2 * rate));
+            return TokenBucket.tryAcquire(connectionBucket, userBucket, cost);
+        }
+
+        // A batch or subscription costs one token per location, so it cannot be used to get around the limit; at most
+        // a full bucket, so the largest batch allowed can always get through
+        private static int commandCost(String input) {
+            if (!input.startsWith("GET_WEATHER_BATCH:") && !input.startsWith("SUBSCRIBE:")) {
+                return 1;
+            }
+            int cost = 1;
+            for (int i = 0; i < input.length(); i++) {
+                if (input.charAt(i) == '|') {
+                    cost++;
+                }
+            }
+            return cost;
+        }
+
+        // LOGIN and REGISTER answer with a single line, every other command ends its reply with a blank line
+        private void reply(String input, String message) {
+            out.println(message);
+            if (!input.startsWith("LOGIN:") && !input.startsWith("REGISTER:")) {
+                out.println();
+            }
+        }
+
+        // Processes one protocol line; returns false when the session should be closed
+        boolean handleCommand(String input) throws IOException {
+            if (input.startsWith("#")) {
+                return handleTaggedCommand(input);
+            }
+            Metrics.Command command = Metrics.Command.of(input);
+            long start = System.nanoTime();
+            try {
+                return executeCommand(input);
+            } finally {
+                command.latency.record(System.nanoTime() - start);
+            }
+        }
+
+        private boolean executeCommand(String input) throws IOException {
+            int cost = commandCost(input);
+            if (cost > BATCH_MAX_LOCATIONS) {
+                reply(input, BATCH_TOO_LARGE);
+                return true;
+            }
+            if (!admit(cost)) {
+                throttledCommands.incrementAndGet();
+                reply(input, RATE_LIMITED);
+                return true;
+            }
+            if (input.startsWith("REGISTER:")) {
+                String[] parts = input.split(":", 4);
+                if (parts.length < 3) {
+                    out.println("ERROR: Invalid register format. Expected: REGISTER:username:password");
+                    return true;
+                }
+                // Self-registration only creates users; admins are set up in users.txt
+                if (parts.length == 4 && !parts[3].equals("user")) {
+                    out.println("ERROR: Only the user role can be registered.");
+                    return true;
+                }
+
+                String username = parts[1];
+                // Users are stored as username,passwordHash,role lines
+                if (!isValidUserField(username)) {
+                    out.println("ERROR: Username must not be empty or contain commas or line breaks.");
+                    return true;
+                }
+                // Checked again when the user is added; this only spares a taken name the password hashing
+                if (users.contains(username)) {
+                    out.println("ERROR: Username already exists.");
+                    return true;
+                }
+                if (!passwordGate.tryEnter()) {
+                    out.println(SERVER_BUSY);
+                    return true;
+                }
+                String passwordHash;
+                try {
+                    passwordHash = PasswordHasher.hash(parts[2]);
+                } finally {
+                    passwordGate.exit();
+                }
+
+                User newUser = new User(username, passwordHash, "user");
+                try {
+                    if (!users.register(newUser)) {
+                        out.println("ERROR: Username already exists.");
+                        return true;
+                    }
+                } catch (IOException e) {
+                    Log.error("Error saving user: {}", e.getMessage());
+                    out.println("ERROR: Could not save user.");
+                    return true;
+                }
+                try {
+                    UserRepository.save(newUser);
+                } catch (SQLException e) {
+                    Log.error("Error saving user to database: {}", e.getMessage());
+                }
+                out.println("SUCCESS: User registered.");
+            }else if (input.startsWith("LOGIN:")) {
+                //Login process
+                String[] parts = input.split(":", 3);
+                if (parts.length != 3) {
+                    out.println("ERROR: Invalid login format. Expected: LOGIN:username:password");
+                    return true;
+                }
+
+                String username = parts[1];
+                String password = parts[2];
+
+                Optional<User> userOpt = Optional.ofNullable(users.get(username));
+
+                if (!passwordGate.tryEnter()) {
+                    out.println(SERVER_BUSY);
+                    return true;
+                }
+                try {
+                    userOpt.filter(user -> loginCache.verify(username, password, user.passwordHash()))
+                            .filter(user -> user.role() != null && (user.role().equals("admin") || user.role().equals("user")))
+                            .ifPresentOrElse(
+                                    user -> {
+                                        if (PasswordHasher.needsRehash(user.passwordHash())) {
+                                            rehashPassword(user, password);
+                                        }
+                                        sessionUser = user;
+                                        out.println(user.role());
+                                    },
+                                    () -> out.println("ERROR: Invalid credentials or role.")
+                            );
+                } finally {
+                    passwordGate.exit();
+                }
+            }
+            else if (input.startsWith("PROVISION WEATHER DATA:")) {
+                //Processing Provision command
+                if (!isAdmin()) {
+                    out.println(ADMIN_REQUIRED);
+                    out.println();
+                    return true;
+                }
+                if (!provisionGate.tryEnter()) {
+                    out.println(SERVER_BUSY);
+                    out.println();
+                    return true;
+                }
+                try {
+                    String filePath = input.substring("PROVISION WEATHER DATA:".length()).trim();
+                    String resultMessage = provisionWeatherData(filePath);
+                    out.println(resultMessage);
+                    out.println();
+                } finally {
+                    provisionGate.exit();
+                }
+            } else if (input.equalsIgnoreCase("STOP")) {
+                if (!isAdmin()) {
+                    out.println(ADMIN_REQUIRED);
+                    out.println();
+                    return true;
+                }
+                stopServer();
+                out.println("SERVER_STOPPED");
+                return false;
+            }
+            else if (input.startsWith("SET_LOCATION:")) {
+                // Coordinates are taken from the end, so the name itself may contain ':'
+                int lonSeparator = input.lastIndexOf(':');
+                int latSeparator = input.lastIndexOf(':', lonSeparator - 1);
+                if (latSeparator < "SET_LOCATION:".length()) {
+                    out.println("ERROR: Invalid location format. Expected: SET_LOCATION:name:latitude:longitude");
+                    out.println();
+                    return true;
+                }
+                try {
+                    clientLat = Double.parseDouble(input.substring(latSeparator + 1, lonSeparator));
+                    clientLon = Double.parseDouble(input.substring(lonSeparator + 1));
+                } catch (NumberFormatException e) {
+                    out.println("ERROR: Invalid coordinates.");
+                    out.println();
+                    return true;
+                }
+                clientLocation = input.substring("SET_LOCATION:".length(), latSeparator);
+                out.println("Location updated to: " + clientLocation);
+                out.println();
+            } else if (input.equals("GET_WEATHER")) {
+                writeWeather(clientLocation, clientLat, clientLon);
+            } else if (input.startsWith("GET_WEATHER_BATCH:")) {
+                // Entries are separated by '|'; each is a name, optionally followed by @latitude,longitude for the nearby fallback
+                String[] entries = input.substring("GET_WEATHER_BATCH:".length()).split("\\|");
+                String[] locations = new String[entries.length];
+                double[] latitudes = new double[entries.length];
+                double[] longitudes = new double[entries.length];
+                for (int i = 0; i < entries.length; i++) {
+                    String entry = entries[i];
+                    int at = entry.lastIndexOf('@');
+                    locations[i] = at < 0 ? entry : entry.substring(0, at);
+                    latitudes[i] = Double.NaN;
+                    longitudes[i] = Double.NaN;
+                    if (at >= 0) {
+                        String[] coordinates = entry.substring(at + 1).split(",", 2);
+                        try {
+                            latitudes[i] = Double.parseDouble(coordinates[0]);
+                            longitudes[i] = Double.parseDouble(coordinates[1]);
+                        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            latitudes[i] = Double.NaN;
+                        }
+                    }
+                }
+                // All looked up as of one write, so the reply never mixes locations before and after a provision
+                Resolved[] resolved = readConsistently(() -> {
+                    Resolved[] found = new Resolved[entries.length];
+                    for (int i = 0; i < entries.length; i++) {
+                        found[i] = resolveWeather(locations[i], latitudes[i], longitudes[i]);
+                    }
+                    return found;
+                });
+                out.println("Batch: " + entries.length);
+                for (int i = 0; i < entries.length; i++) {
+                    out.println("Location: " + locations[i]);
+                    writeWeather(resolved[i]);
+                }
+            } else if (input.startsWith("SUBSCRIBE:")) {
+                List<String> locations = List.of(input.substring("SUBSCRIBE:".length()).split("\\|"));
+                if (!subscriptions.subscribe(ensureSubscriber(), locations)) {
+                    out.println("ERROR: Too many subscriptions, at most " + SubscriptionHub.MAX_LOCATIONS + " locations per session.");
+                    out.println();
+                    return true;
+                }
+                updateIdleTimeout();
+                out.println("Subscribed to " + locations.size() + " locations.");
+                out.println();
+            } else if (input.startsWith("SUBSCRIBE_NEARBY:")) {
+                String[] parts = input.split(":", 4);
+                try {
+                    double latitude = Double.parseDouble(parts[1]);
+                    double longitude = Double.parseDouble(parts[2]);
+                    double radiusKm = Double.parseDouble(parts[3]);
+                    subscriptions.subscribeNearby(ensureSubscriber(), latitude, longitude, radiusKm);
+                    updateIdleTimeout();
+                    out.println("Subscribed to locations within " + radiusKm + " km.");
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    out.println("ERROR: Invalid subscribe format. Expected: SUBSCRIBE_NEARBY:latitude:longitude:radiusKm");
+                }
+                out.println();
+            } else if (input.startsWith("HISTORY:")) {
+                writeHistory(input);
+            } else if (input.startsWith("SEARCH:")) {
+                // SEARCH:<query>, optionally followed by |<number of candidates>
+                String query = input.substring("SEARCH:".length());
+                int limit = SEARCH_LIMIT;
+                int bar = query.lastIndexOf('|');
+                if (bar >= 0) {
+                    try {
+                        limit = Integer.parseInt(query.substring(bar + 1).trim());
+                        query = query.substring(0, bar);
+                    } catch (NumberFormatException e) {
+                        out.println("ERROR: Invalid search format. Expected: SEARCH:query or SEARCH:query|limit");
                         out.println();
+                        return true;
                     }
                 }
-            } catch (IOException e) {
-                System.err.println("Client error: " + e.getMessage());
+                List<LocationNameIndex.Match> matches = searchLocations(query, limit);
+                // One "<edit distance> <location>" line per candidate, best first
+                out.println("Matches: " + matches.size());
+                for (LocationNameIndex.Match match : matches) {
+                    out.println(match.distance() + " " + match.location());
+                }
+                out.println();
+            } else if (input.equals("STATS")) {
+                if (!isAdmin()) {
+                    out.println(ADMIN_REQUIRED);
+                    out.println();
+                    return true;
+                }
+                out.print(Metrics.render());
+                out.println();
+            } else if (input.equals("UNSUBSCRIBE")) {
+                if (subscriber != null) {
+                    subscriptions.unsubscribe(subscriber);
+                    updateIdleTimeout();
+                }
+                out.println("Unsubscribed.");
+                out.println();
+            } else {
+                out.println("Unknown command.");
+                out.println();
             }
+            return true;
+        }
+    }
+
+    // Whether the credentials are an admin's, for front-ends without a session such as GET /metrics. Hashing shares
+    // the LOGIN gate; when it is full the check fails and the client asks again.
+    static boolean isAdminLogin(String username, String password) {
+        User user = users.get(username);
+        if (user == null || !"admin".equals(user.role()) || !passwordGate.tryEnter()) {
+            return false;
+        }
+        try {
+            return loginCache.verify(username, password, user.passwordHash());
+        } finally {
+            passwordGate.exit();
         }
     }
 
-    private static void saveUsers() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(USERS_FILE))) {
-            for (User user : users.values()) {
-                writer.write(user.username() + "," + user.password() + "," + user.role());
-                writer.newLine();
+    // Brings a user hashed with an older cost up to the configured one, once their password is known to be right
+    private static void rehashPassword(User user, String password) {
+        User rehashed = new User(user.username(), PasswordHasher.hash(password), user.role());
+        try {
+            if (!users.replace(user, rehashed)) {
+                return;
             }
-            System.out.println("Users saved successfully to " + USERS_FILE); 
         } catch (IOException e) {
-            System.err.println("Error saving users: " + e.getMessage());
+            Log.error("Error saving user: {}", e.getMessage());
+            return;
+        }
+        loginCache.invalidate(user.username());
+        try {
+            UserRepository.save(rehashed);
+        } catch (SQLException e) {
+            Log.error("Error saving user to database: {}", e.getMessage());
         }
     }
-    private static double calculateDistance(double lat1, double lon1, double lat2, double lon2) {
-        return Math.sqrt(Math.pow(lat2 - lat1, 2) + Math.pow(lon2 - lon1, 2));
+
+    // The weather found for a requested location: its own, or that of closestLocation when it had none
+    record Resolved(String closestLocation, LocationWeather weather) {
     }
 
-    private static String findClosestLocation(String clientLocation, double clientLat, double clientLon, double radius) {
-        double closestDistance = radius;
-        String closestLocation = clientLocation;
+    // Lookups against the local store as of a single write; see WeatherStore.readConsistently
+    static <T> T readConsistently(Supplier<T> reads) {
+        return weatherData.readConsistently(reads);
+    }
 
-        for (Map.Entry<String, LocationWeather> entry : weatherData.entrySet()) {
-            LocationWeather locationWeather = entry.getValue();
-            double distance = calculateDistance(clientLat, clientLon, locationWeather.latitude, locationWeather.longitude);
-            if (distance < closestDistance) {
-                closestDistance = distance;
-                closestLocation = entry.getKey();
-            }
+    // NaN coordinates skip the nearby fallback
+    static Resolved resolveWeather(String location, double latitude, double longitude) {
+        LocationWeather weather = lookupWeather(location);
+        if (weather != null || Double.isNaN(latitude)) {
+            return new Resolved(null, weather);
         }
+        String closestLocation = findClosestLocation(latitude, longitude, NEARBY_RADIUS_KM);
+        LocationWeather closestWeather = closestLocation != null ? lookupWeather(closestLocation) : null;
+        return closestWeather != null ? new Resolved(closestLocation, closestWeather) : new Resolved(null, null);
+    }
 
-        return closestLocation;
+    // Answered by the node owning the location
+    static LocationWeather lookupWeather(String location) {
+        if (!cluster.isLocal(location)) {
+            return cluster.weather(location);
+        }
+        return localWeather(location);
     }
 
-    static class LocationWeather {
-        String currentWeather;
-        double temperature;
-        List<Pair<String, Integer>> forecast;
-        double latitude;
-        double longitude;
+    // Served from memory first; with weather.cache.enabled, other locations are read through the cache from the database
+    static LocationWeather localWeather(String location) {
+        LocationWeather weather = weatherData.get(location);
+        if (weather == null) {
+            // "cluj-napoca " finds "Cluj-Napoca"
+            String canonical = weatherData.canonicalName(location);
+            weather = canonical != null ? weatherData.get(canonical) : null;
+        }
+        if (weather == null && DB_READ_THROUGH && !location.isBlank()) {
+            weather = weatherCache.get(location).orElse(null);
+        }
+        return weather;
+    }
 
-        LocationWeather(String currentWeather, double temperature, List<Pair<String, Integer>> forecast, double latitude, double longitude) {
-            this.currentWeather = currentWeather;
-            this.temperature = temperature;
-            this.forecast = forecast;
-            this.latitude = latitude;
-            this.longitude = longitude;
+    // Version in this node's store of the weather lookupWeather finds: 0 when there is none, -1 when it may come
+    // from another node or the database, which keep no version
+    static long weatherVersion(String location) {
+        if (!cluster.isLocal(location)) {
+            return -1;
         }
+        long version = weatherData.versionOf(location);
+        if (version == 0) {
+            String canonical = weatherData.canonicalName(location);
+            version = canonical != null ? weatherData.versionOf(canonical) : 0;
+        }
+        return version == 0 && DB_READ_THROUGH && !location.isBlank() ? -1 : version;
     }
 
-    record Pair<F, S>(F first, S second) {
+    static List<LocationNameIndex.Match> searchLocations(String query, int limit) {
+        int capped = Math.min(limit, SEARCH_MAX_LIMIT);
+        return cluster.isClustered() ? cluster.search(query, capped) : localSearch(query, capped);
     }
 
-    record User(String username, String password, String role) {
+    static List<LocationNameIndex.Match> localSearch(String query, int limit) {
+        return weatherData.search(query, limit);
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(username, password, role);
+    // Stations near a shard boundary may be owned by any node, so in cluster mode every node is asked
+    static String findClosestLocation(double clientLat, double clientLon, double radiusKm) {
+        long start = System.nanoTime();
+        try {
+            return cluster.isClustered() ? cluster.nearest(clientLat, clientLon, radiusKm) : localNearest(clientLat, clientLon, radiusKm);
+        } finally {
+            Metrics.SPATIAL_LOOKUP.record(System.nanoTime() - start);
         }
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            User user = (User) obj;
-            return username.equals(user.username) && password.equals(user.password) && role.equals(user.role);
+    static String localNearest(double latitude, double longitude, double radiusKm) {
+        return weatherData.nearest(latitude, longitude, radiusKm);
+    }
+
+    // One station's weather: a slot in a WeatherColumns chunk, which never changes once written.
+    // GET_WEATHER replies are encoded from the columns on demand; only recently served ones are kept.
+    static final class LocationWeather {
+        // Direct-mapped and sized by weather.replyCache.size (0 turns it off): a station's entry is picked by its
+        // identity, so a hit is one array read and a colliding station simply takes the entry over. An update
+        // creates a new LocationWeather, which can never hit the entry of the old one.
+        private static final int REPLY_CACHE_SIZE = Integer.highestOneBit(Math.max(0, Integer.getInteger("weather.replyCache.size", 65_536)));
+        private static final Encoded[] textReplies = new Encoded[REPLY_CACHE_SIZE];
+        private static final Encoded[] binaryReplies = new Encoded[REPLY_CACHE_SIZE];
+        private static final byte[] CURRENT_WEATHER = "Current weather: ".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] TEMPERATURE = "Temperature: ".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] FORECAST = "Forecast:\n".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] DEGREES = "°C\n".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] DAY = " - ".getBytes(StandardCharsets.UTF_8);
+
+        private final WeatherColumns.Chunk chunk;
+        private final int slot;
+
+        LocationWeather(String currentWeather, double temperature, List<Pair<String, Integer>> forecast,
+                        double latitude, double longitude) {
+            this(WeatherColumns.single(currentWeather, temperature, forecast, latitude, longitude));
+        }
+
+        private LocationWeather(LocationWeather single) {
+            this(single.chunk, single.slot);
+        }
+
+        LocationWeather(WeatherColumns.Chunk chunk, int slot) {
+            this.chunk = chunk;
+            this.slot = slot;
+        }
+
+        WeatherColumns.Chunk chunk() {
+            return chunk;
+        }
+
+        int slot() {
+            return slot;
+        }
+
+        String currentWeather() {
+            return chunk.condition(slot);
+        }
+
+        double temperature() {
+            return chunk.temperature(slot);
+        }
+
+        double latitude() {
+            return chunk.latitude(slot);
+        }
+
+        double longitude() {
+            return chunk.longitude(slot);
+        }
+
+        int forecastDays() {
+            return chunk.forecastDays(slot);
+        }
+
+        String forecastDay(int day) {
+            return chunk.forecastDay(slot, day);
+        }
+
+        int forecastTemperature(int day) {
+            return chunk.forecastTemperature(slot, day);
+        }
+
+        // Unpacked into a new list on every call; the hot paths use forecastDay and forecastTemperature
+        List<Pair<String, Integer>> forecast() {
+            List<Pair<String, Integer>> forecast = new ArrayList<>(forecastDays());
+            for (int day = 0; day < forecastDays(); day++) {
+                forecast.add(new Pair<>(forecastDay(day), forecastTemperature(day)));
+            }
+            return forecast;
+        }
+
+        private record Encoded(LocationWeather weather, byte[] bytes) {
+        }
+
+        // The text reply block, ending with a blank line. Shared by every session, callers must not modify it
+        byte[] response() {
+            Encoded cached = cachedReply(textReplies);
+            if (cached != null) {
+                return cached.bytes();
+            }
+            return cacheReply(textReplies, encodeResponse());
+        }
+
+        byte[] binaryBody() {
+            Encoded cached = cachedReply(binaryReplies);
+            if (cached != null) {
+                return cached.bytes();
+            }
+            return cacheReply(binaryReplies, BinaryProtocol.encodeWeatherBody(this));
+        }
+
+        private Encoded cachedReply(Encoded[] cache) {
+            if (REPLY_CACHE_SIZE == 0) {
+                return null;
+            }
+            Encoded cached = cache[System.identityHashCode(this) & (REPLY_CACHE_SIZE - 1)];
+            return cached != null && cached.weather() == this ? cached : null;
+        }
+
+        private byte[] cacheReply(Encoded[] cache, byte[] reply) {
+            if (REPLY_CACHE_SIZE > 0) {
+                cache[System.identityHashCode(this) & (REPLY_CACHE_SIZE - 1)] = new Encoded(this, reply);
+            }
+            return reply;
         }
+
+        private byte[] encodeResponse() {
+            String temperature = Double.toString(temperature());
+            byte[] condition = chunk.conditionBytes(slot);
+            int days = forecastDays();
+            int length = CURRENT_WEATHER.length + condition.length + 1 + TEMPERATURE.length + temperature.length()
+                    + DEGREES.length + FORECAST.length + 1;
+            for (int day = 0; day < days; day++) {
+                length += DAY.length + chunk.forecastDayBytes(slot, day).length + 2
+                        + digits(forecastTemperature(day)) + DEGREES.length;
+            }
+            byte[] reply = new byte[length];
+            int at = put(reply, 0, CURRENT_WEATHER);
+            at = put(reply, at, condition);
+            reply[at++] = '\n';
+            at = put(reply, at, TEMPERATURE);
+            for (int i = 0; i < temperature.length(); i++) {
+                reply[at++] = (byte) temperature.charAt(i);
+            }
+            at = put(reply, at, DEGREES);
+            at = put(reply, at, FORECAST);
+            for (int day = 0; day < days; day++) {
+                at = put(reply, at, DAY);
+                at = put(reply, at, chunk.forecastDayBytes(slot, day));
+                reply[at++] = ':';
+                reply[at++] = ' ';
+                at = putInt(reply, at, forecastTemperature(day));
+                at = put(reply, at, DEGREES);
+            }
+            reply[at] = '\n';
+            return reply;
+        }
+
+        // Same reported weather and position, so subscribers have nothing new to hear about
+        boolean sameAs(LocationWeather other) {
+            return other != null && latitude() == other.latitude() && longitude() == other.longitude()
+                    && temperature() == other.temperature()
+                    && chunk.conditionCode(slot) == other.chunk.conditionCode(other.slot)
+                    && chunk.sameForecast(slot, other.chunk, other.slot);
+        }
+
+        private static int put(byte[] target, int at, byte[] bytes) {
+            System.arraycopy(bytes, 0, target, at, bytes.length);
+            return at + bytes.length;
+        }
+
+        private static int digits(int value) {
+            int digits = value < 0 ? 2 : 1;
+            for (int rest = Math.abs(value) / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            return digits;
+        }
+
+        // Forecast temperatures fit in a short, so Math.abs cannot overflow
+        private static int putInt(byte[] target, int at, int value) {
+            int end = at + digits(value);
+            if (value < 0) {
+                target[at] = '-';
+            }
+            int rest = Math.abs(value);
+            int i = end;
+            do {
+                target[--i] = (byte) ('0' + rest % 10);
+                rest /= 10;
+            } while (rest > 0);
+            return end;
+        }
+    }
+
+    record Pair<F, S>(F first, S second) {
+    }
+
+    // passwordHash is a PasswordHasher value, never the password itself
+    record User(String username, String passwordHash, String role) {
     }
 }
@@ -0,0 +1,212 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+// Binary image of the weather store, so a restart can skip parsing the data file and replaying the journal.
+// The snapshot is memory-mapped and its columns are copied straight into WeatherColumns chunks. Its header
+// records the size and modification time of the data file and journal it reflects; a snapshot that does not
+// match them, has another format version or fails its CRC32C is ignored, and the JSON is parsed as before.
+//
+// Layout, big-endian: magic, version, source (four longs), journal entries since compaction, whether the database
+// held every station when the snapshot was taken, the dictionary
+// (count, then length and UTF-8 bytes per name), the station count, the location names (length and UTF-8 bytes
+// each), then one column after the other: condition codes, temperatures, latitudes, longitudes, forecast starts
+// (count + 1) and packed forecast days. The CRC32C of everything before it comes last.
+public class WeatherSnapshot {
+    private static final int MAGIC = 0x57534E50; // "WSNP"
+    private static final int VERSION = 1;
+
+    // What the snapshot was built from; a missing journal has size -1
+    record Source(long dataSize, long dataModified, long journalSize, long journalModified) {
+        static Source of(Path dataFile, Path journalFile) throws IOException {
+            BasicFileAttributes data = Files.readAttributes(dataFile, BasicFileAttributes.class);
+            long journalSize = -1;
+            long journalModified = 0;
+            if (Files.exists(journalFile)) {
+                BasicFileAttributes journal = Files.readAttributes(journalFile, BasicFileAttributes.class);
+                journalSize = journal.size();
+                journalModified = journal.lastModifiedTime().toMillis();
+            }
+            return new Source(data.size(), data.lastModifiedTime().toMillis(), journalSize, journalModified);
+        }
+    }
+
+    record Loaded(Map<String, WeatherServer.LocationWeather> entries, int journalEntries, boolean databaseInSync) {
+    }
+
+    private WeatherSnapshot() {
+    }
+
+    // Written to a temporary file and renamed over the old snapshot, so a crash never leaves a partial one behind
+    static void write(Path file, Source source, int journalEntries, boolean databaseInSync,
+                      Map<String, WeatherServer.LocationWeather> entries) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        String[] dictionary = WeatherColumns.dictionary();
+        // The store may change while it is written out; the columns below must cover exactly these stations
+        Map<String, WeatherServer.LocationWeather> stations = new LinkedHashMap<>(entries);
+        CRC32C crc = new CRC32C();
+        try (OutputStream fileOut = Files.newOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOut, crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.dataSize());
+            out.writeLong(source.dataModified());
+            out.writeLong(source.journalSize());
+            out.writeLong(source.journalModified());
+            out.writeInt(journalEntries);
+            out.writeBoolean(databaseInSync);
+            out.writeInt(dictionary.length);
+            for (String name : dictionary) {
+                writeString(out, name);
+            }
+            out.writeInt(stations.size());
+            for (String location : stations.keySet()) {
+                writeString(out, location);
+            }
+            for (WeatherServer.LocationWeather weather : stations.values()) {
+                out.writeChar(weather.chunk().conditionCode(weather.slot()));
+            }
+            for (WeatherServer.LocationWeather weather : stations.values()) {
+                out.writeDouble(weather.temperature());
+            }
+            for (WeatherServer.LocationWeather weather : stations.values()) {
+                out.writeDouble(weather.latitude());
+            }
+            for (WeatherServer.LocationWeather weather : stations.values()) {
+                out.writeDouble(weather.longitude());
+            }
+            int forecastStart = 0;
+            out.writeInt(forecastStart);
+            for (WeatherServer.LocationWeather weather : stations.values()) {
+                forecastStart += weather.forecastDays();
+                out.writeInt(forecastStart);
+            }
+            for (WeatherServer.LocationWeather weather : stations.values()) {
+                for (int day = 0; day < weather.forecastDays(); day++) {
+                    out.writeInt(weather.chunk().forecastPacked(weather.slot(), day));
+                }
+            }
+            out.flush();
+            // Not part of the checksummed bytes
+            new DataOutputStream(fileOut).writeLong(crc.getValue());
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The stations of a snapshot built from the expected source, or null when there is no usable one
+    static Loaded read(Path file, Source expected) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < 61 || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        int checksummed = buffer.capacity() - Long.BYTES;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            Log.info("Weather snapshot {} has another format, ignoring it", file);
+            return null;
+        }
+        Source source = new Source(buffer.getLong(8), buffer.getLong(16), buffer.getLong(24), buffer.getLong(32));
+        if (!source.equals(expected)) {
+            Log.info("Weather snapshot {} does not match the data files, ignoring it", file);
+            return null;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(0, checksummed));
+        if (crc.getValue() != buffer.getLong(checksummed)) {
+            Log.warn("Weather snapshot {} is corrupt, ignoring it", file);
+            return null;
+        }
+
+        buffer.position(40);
+        int journalEntries = buffer.getInt();
+        boolean databaseInSync = buffer.get() != 0;
+        // Codes in the file belong to the dictionary of the process that wrote it
+        char[] codes = new char[buffer.getInt()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = WeatherColumns.code(readString(buffer));
+        }
+        int count = buffer.getInt();
+        String[] locations = new String[count];
+        for (int i = 0; i < count; i++) {
+            locations[i] = readString(buffer);
+        }
+        int columns = buffer.position();
+        CharBuffer conditions = buffer.slice(columns, count * Character.BYTES).asCharBuffer();
+        columns += count * Character.BYTES;
+        DoubleBuffer temperatures = buffer.slice(columns, count * Double.BYTES).asDoubleBuffer();
+        columns += count * Double.BYTES;
+        DoubleBuffer latitudes = buffer.slice(columns, count * Double.BYTES).asDoubleBuffer();
+        columns += count * Double.BYTES;
+        DoubleBuffer longitudes = buffer.slice(columns, count * Double.BYTES).asDoubleBuffer();
+        columns += count * Double.BYTES;
+        IntBuffer forecastStarts = buffer.slice(columns, (count + 1) * Integer.BYTES).asIntBuffer();
+        columns += (count + 1) * Integer.BYTES;
+        IntBuffer forecasts = buffer.slice(columns, checksummed - columns).asIntBuffer();
+
+        Map<String, WeatherServer.LocationWeather> entries = new LinkedHashMap<>(count * 4 / 3 + 1);
+        for (int first = 0; first < count; first += WeatherColumns.CHUNK_SLOTS) {
+            int slots = Math.min(WeatherColumns.CHUNK_SLOTS, count - first);
+            char[] condition = new char[slots];
+            double[] temperature = new double[slots];
+            double[] latitude = new double[slots];
+            double[] longitude = new double[slots];
+            int[] forecastStart = new int[slots + 1];
+            conditions.get(first, condition);
+            temperatures.get(first, temperature);
+            latitudes.get(first, latitude);
+            longitudes.get(first, longitude);
+            forecastStarts.get(first, forecastStart);
+            int firstDay = forecastStart[0];
+            int[] forecast = new int[forecastStart[slots] - firstDay];
+            forecasts.get(firstDay, forecast);
+            for (int i = 0; i < slots; i++) {
+                condition[i] = codes[condition[i]];
+            }
+            for (int i = 0; i <= slots; i++) {
+                forecastStart[i] -= firstDay;
+            }
+            for (int i = 0; i < forecast.length; i++) {
+                forecast[i] = codes[forecast[i] >>> 16] << 16 | (forecast[i] & 0xFFFF);
+            }
+            WeatherColumns.Chunk chunk = new WeatherColumns.Chunk(condition, temperature, latitude, longitude, forecastStart, forecast);
+            for (int i = 0; i < slots; i++) {
+                entries.put(locations[first + i], new WeatherServer.LocationWeather(chunk, i));
+            }
+        }
+        return new Loaded(entries, journalEntries, databaseInSync);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
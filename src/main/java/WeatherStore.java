@@ -0,0 +1,225 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Readers never lock: every entry is an immutable LocationWeather swapped in with a single map write.
+// Writers are serialized, and a write becomes visible as a whole: its entries are installed under the next version,
+// still linked to the weather they replace, and readers only follow them once that version is published. Readers
+// that look up several locations can pin one version with readConsistently.
+// The weather itself lives in WeatherColumns; the map only holds the chunk and slot of each location.
+public class WeatherStore {
+    private final Map<String, Versioned> entries = new ConcurrentHashMap<>();
+    private final WeatherColumns columns = new WeatherColumns();
+    // Slots holding replaced weather; writer only
+    private long deadSlots;
+    private final SpatialIndex spatialIndex = new SpatialIndex();
+    private final LocationNameIndex nameIndex = new LocationNameIndex();
+    // Last write whose entries readers see
+    private volatile long published;
+    // Entries of writes up to this one no longer link to the weather they replaced, so a reader pinned to an older
+    // version may have missed it
+    private volatile long unlinked;
+    // Locations the last write replaced, whose entries still link to the old weather; writer only
+    private List<String> linked = List.of();
+    private final ThreadLocal<Long> pinned = new ThreadLocal<>();
+    private final Object writeLock = new Object();
+
+    // A location's weather as of the write that stored it, with the entry it replaced until the next write
+    private record Versioned(WeatherServer.LocationWeather weather, long version, Versioned previous) {
+    }
+
+    public WeatherServer.LocationWeather get(String location) {
+        Versioned entry = current(location);
+        return entry != null ? entry.weather() : null;
+    }
+
+    // The write that stored the weather get() returns, 0 if there is none. Every write gets a higher version than any
+    // before it, clear() included, so a location's version changes whenever its weather does.
+    public long versionOf(String location) {
+        Versioned entry = current(location);
+        return entry != null ? entry.version() : 0;
+    }
+
+    public boolean contains(String location) {
+        return get(location) != null;
+    }
+
+    // Runs reads against the store as of one write, so a batch provisioned meanwhile shows up in all of them or in
+    // none. They run again if a later write dropped the weather they needed, so they must not have side effects.
+    public <T> T readConsistently(Supplier<T> reads) {
+        if (pinned.get() != null) {
+            return reads.get();
+        }
+        while (true) {
+            long version = published;
+            pinned.set(version);
+            try {
+                T result = reads.get();
+                if (unlinked <= version) {
+                    return result;
+                }
+            } finally {
+                pinned.remove();
+            }
+        }
+    }
+
+    public void put(String location, WeatherServer.LocationWeather weather) {
+        putAll(Map.of(location, weather));
+    }
+
+    public void putAll(Map<String, WeatherServer.LocationWeather> batch) {
+        write(batch, true);
+    }
+
+    // Takes over entries whose chunks belong to no other store, such as those of a WeatherSnapshot, without copying them
+    public void adoptAll(Map<String, WeatherServer.LocationWeather> batch) {
+        write(batch, false);
+    }
+
+    // Drops every location, so the next write starts from an empty store as at startup
+    public void clear() {
+        synchronized (writeLock) {
+            // Readers pinned before now run again and find the store empty
+            published++;
+            unlinked = published;
+            entries.clear();
+            spatialIndex.clear();
+            nameIndex.clear();
+            columns.startNewChunk();
+            deadSlots = 0;
+            linked = List.of();
+        }
+    }
+
+    // Closest location within radiusKm whose weather is available, or null
+    public String nearest(double latitude, double longitude, double radiusKm) {
+        return spatialIndex.nearest(latitude, longitude, radiusKm);
+    }
+
+    // The stored name that matches the given one apart from case, spacing and diacritics, or null
+    public String canonicalName(String location) {
+        return nameIndex.canonical(location);
+    }
+
+    public List<LocationNameIndex.Match> search(String query, int limit) {
+        return nameIndex.search(query, limit);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Incremented once per applied write, so readers can tell whether anything changed
+    public long version() {
+        return published;
+    }
+
+    // The published weather of every location, read as of the version current when iteration starts
+    public Map<String, WeatherServer.LocationWeather> view() {
+        return new AbstractMap<>() {
+            @Override
+            public WeatherServer.LocationWeather get(Object location) {
+                return location instanceof String name ? WeatherStore.this.get(name) : null;
+            }
+
+            @Override
+            public Set<Map.Entry<String, WeatherServer.LocationWeather>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public int size() {
+                        return entries.size();
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<String, WeatherServer.LocationWeather>> iterator() {
+                        long version = published;
+                        return entries.entrySet().stream()
+                                .<Map.Entry<String, WeatherServer.LocationWeather>>mapMulti((entry, visibleEntries) -> {
+                                    Versioned weather = visible(entry.getValue(), version);
+                                    if (weather != null) {
+                                        visibleEntries.accept(Map.entry(entry.getKey(), weather.weather()));
+                                    }
+                                })
+                                .iterator();
+                    }
+                };
+            }
+        };
+    }
+
+    // The entry readers see now, or as of the version this thread is pinned to
+    private Versioned current(String location) {
+        Versioned entry = entries.get(location);
+        if (entry == null) {
+            return null;
+        }
+        // Read after the entry, so an entry above it belongs to the write in progress, whose links are still in place
+        Long pin = pinned.get();
+        return visible(entry, pin != null ? pin : published);
+    }
+
+    // The entry as of the given version, or null if the location was added after it
+    private static Versioned visible(Versioned entry, long version) {
+        while (entry != null && entry.version() > version) {
+            entry = entry.previous();
+        }
+        return entry;
+    }
+
+    // Installs the batch under the next version, publishes it, then indexes it. The index is updated last, so a
+    // nearest() or name index hit can always be resolved with get().
+    private void write(Map<String, WeatherServer.LocationWeather> batch, boolean copy) {
+        synchronized (writeLock) {
+            unlinkLastWrite();
+            long version = published + 1;
+            List<String> added = new ArrayList<>();
+            List<String> replacing = new ArrayList<>();
+            for (Map.Entry<String, WeatherServer.LocationWeather> update : batch.entrySet()) {
+                WeatherServer.LocationWeather weather = copy ? columns.append(update.getValue()) : update.getValue();
+                Versioned replaced = entries.get(update.getKey());
+                entries.put(update.getKey(), new Versioned(weather, version, replaced));
+                if (replaced != null) {
+                    replacing.add(update.getKey());
+                    deadSlots++;
+                } else {
+                    added.add(update.getKey());
+                }
+            }
+            published = version;
+            linked = replacing;
+            batch.forEach((location, weather) -> spatialIndex.put(location, weather.latitude(), weather.longitude()));
+            nameIndex.addAll(added);
+            compactIfNeeded();
+        }
+    }
+
+    // Drops the weather the last write replaced, which readers only see while pinned to a version before it
+    private void unlinkLastWrite() {
+        if (linked.isEmpty()) {
+            return;
+        }
+        unlinked = published;
+        for (String location : linked) {
+            entries.computeIfPresent(location, (name, entry) -> new Versioned(entry.weather(), entry.version(), null));
+        }
+        linked = List.of();
+    }
+
+    // Once replaced weather takes more room than the live entries, copies every entry into fresh chunks. Readers
+    // holding an old LocationWeather keep a valid one; the old chunks go away with the last of them.
+    private void compactIfNeeded() {
+        if (deadSlots <= entries.size() || deadSlots < WeatherColumns.CHUNK_SLOTS) {
+            return;
+        }
+        columns.startNewChunk();
+        entries.replaceAll((location, entry) -> new Versioned(columns.append(entry.weather()), entry.version(), entry.previous()));
+        deadSlots = 0;
+    }
+}
@@ -0,0 +1,164 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Many clients read fifty locations while an admin keeps provisioning two versions of all of them in one batch. Every
+// reply has to be one whole version: a reader must never see the temperature of one and the forecast of the other, and
+// a GET_WEATHER_BATCH reply never has some locations of one version and some of the other, or of none yet.
+class ConcurrentClientsStressTest {
+    private static final int READERS = 32;
+    private static final int PROVISIONS = 40;
+    private static final List<String> LOCATIONS = IntStream.range(0, 50).mapToObj(i -> "Stress-" + i).toList();
+    private static final List<String> NO_DATA = List.of("No data available for this location or nearby.", "");
+
+    @TempDir
+    static Path dataDir;
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        port = TestServer.start(dataDir, Map.of("weather.rateLimit.connection", "0", "weather.rateLimit.user", "0",
+                "weather.rateLimit.admin", "0"));
+    }
+
+    @AfterAll
+    static void stopServer() {
+        TestServer.stop();
+    }
+
+    @Test
+    void readersNeverSeeAHalfAppliedProvision() throws Exception {
+        List<Path> versions = List.of(writeVersion("cold.json", "Snowy", -5), writeVersion("hot.json", "Sunny", 35));
+        AtomicBoolean provisioning = new AtomicBoolean(true);
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+
+        long start = System.nanoTime();
+        int reads = 0;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int i = 0; i < READERS; i++) {
+                // Text clients ask for every location in one batch; binary ones, which have no batch request, for one
+                boolean binary = i % 2 == 1;
+                readers.add(clients.submit(() -> binary ? readOne(provisioning, seen) : readBatch(provisioning, seen)));
+            }
+            Future<?> writer = clients.submit(() -> {
+                try (WeatherConnection admin = WeatherConnection.open(TestServer.HOST, port, false)) {
+                    assertEquals(List.of("admin"), TestServer.request(admin, 0, TestServer.ADMIN_LOGIN));
+                    for (int i = 1; i <= PROVISIONS; i++) {
+                        List<String> reply = TestServer.request(admin, i,
+                                "PROVISION WEATHER DATA:" + versions.get(i % 2).toAbsolutePath());
+                        assertEquals("Weather data provisioned successfully.", reply.get(0));
+                    }
+                } finally {
+                    provisioning.set(false);
+                }
+                return null;
+            });
+            writer.get();
+            for (Future<Integer> reader : readers) {
+                int count = reader.get();
+                assertTrue(count > 0, "every reader got replies");
+                reads += count;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d readers: %d locations read in %.1f s, %.0f/s, during %d provisions of %d locations%n",
+                READERS, reads, seconds, reads / seconds, PROVISIONS, LOCATIONS.size());
+        assertEquals(Set.of("Snowy", "Sunny"), seen, "readers saw both versions");
+    }
+
+    // Both return the number of locations read
+    private static Integer readOne(AtomicBoolean provisioning, Set<String> seen) throws Exception {
+        int replies = 0;
+        try (WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, true)) {
+            TestServer.request(connection, 0, "SET_LOCATION:" + LOCATIONS.get(0) + ":0:0");
+            for (long id = 1; provisioning.get() || replies == 0; id++) {
+                List<String> reply = TestServer.request(connection, id, "GET_WEATHER");
+                if (!reply.equals(NO_DATA)) {
+                    seen.add(assertWholeVersion(reply));
+                }
+                replies++;
+            }
+        }
+        return replies;
+    }
+
+    private static Integer readBatch(AtomicBoolean provisioning, Set<String> seen) throws Exception {
+        int replies = 0;
+        String request = "GET_WEATHER_BATCH:" + String.join("|", LOCATIONS);
+        try (WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, false)) {
+            for (long id = 1; provisioning.get() || replies == 0; id++) {
+                List<String> reply = TestServer.request(connection, id, request);
+                assertEquals("Batch: " + LOCATIONS.size(), reply.get(0));
+                // Each location is a "Location:" line followed by its weather, or by the no-data reply before the
+                // first provision
+                List<List<String>> blocks = new ArrayList<>();
+                int from = 1;
+                for (int i = 1; i <= reply.size(); i++) {
+                    if (i == reply.size() || reply.get(i).startsWith("Location: ")) {
+                        if (i > from) {
+                            blocks.add(reply.subList(from + 1, i));
+                        }
+                        from = i;
+                    }
+                }
+                assertEquals(LOCATIONS.size(), blocks.size());
+                if (blocks.get(0).equals(NO_DATA)) {
+                    assertTrue(blocks.stream().allMatch(NO_DATA::equals), "half-applied batch: " + reply);
+                } else {
+                    String weather = assertWholeVersion(blocks.get(0));
+                    for (List<String> block : blocks) {
+                        assertEquals(weather, assertWholeVersion(block), "half-applied batch: " + reply);
+                    }
+                    seen.add(weather);
+                }
+                replies++;
+            }
+        }
+        return replies * LOCATIONS.size();
+    }
+
+    // Returns the weather of a single location's reply, which has to be one of the two versions in full
+    private static String assertWholeVersion(List<String> reply) {
+        if (reply.get(0).equals("Current weather: Snowy")) {
+            assertEquals(version("Snowy", -5), reply, "torn read");
+            return "Snowy";
+        }
+        assertEquals(version("Sunny", 35), reply, "torn read");
+        return "Sunny";
+    }
+
+    // The GET_WEATHER reply for a version, whose forecast days all have its temperature
+    private static List<String> version(String weather, int temperature) {
+        return List.of("Current weather: " + weather, "Temperature: " + (double) temperature + "°C", "Forecast:",
+                " - Monday: " + temperature + "°C", " - Tuesday: " + temperature + "°C",
+                " - Wednesday: " + temperature + "°C", "");
+    }
+
+    private static Path writeVersion(String name, String weather, int temperature) throws Exception {
+        String forecast = "[{\"day\": \"Monday\", \"temperature\": " + temperature + "}, {\"day\": \"Tuesday\", \"temperature\": "
+                + temperature + "}, {\"day\": \"Wednesday\", \"temperature\": " + temperature + "}]";
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < LOCATIONS.size(); i++) {
+            entries.add("{\"location\": \"" + LOCATIONS.get(i) + "\", \"latitude\": " + i + ", \"longitude\": " + i
+                    + ", \"currentWeather\": \"" + weather + "\", \"temperature\": " + temperature + ", \"forecast\": " + forecast + "}");
+        }
+        return Files.writeString(dataDir.resolve(name), "[" + String.join(", ", entries) + "]");
+    }
+}
@@ -0,0 +1,169 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Subscribers on the virtual-thread engine, each spelling the location differently, stay connected past the idle
+// timeout and all receive the update of one provision. Thousands of subscribers get it with a bounded push latency,
+// and a session cannot follow more locations than the server allows.
+class SubscriptionFanOutTest {
+    private static final int IDLE_TIMEOUT_MS = 500;
+    private static final int SUBSCRIBERS = Integer.getInteger("test.subscribers", 3000);
+    private static final long MAX_P99_MILLIS = 5_000;
+    private static final int MAX_LOCATIONS = 150;
+    private static final List<String> SPELLINGS = List.of("Cluj", "cluj", "  CLUJ ", "Clúj");
+
+    @TempDir
+    static Path dataDir;
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        port = TestServer.start(dataDir, Map.of("weather.engine", "virtual",
+                "weather.idleTimeoutMs", String.valueOf(IDLE_TIMEOUT_MS),
+                "weather.subscriber.maxLocations", String.valueOf(MAX_LOCATIONS)));
+    }
+
+    @AfterAll
+    static void stopServer() {
+        TestServer.stop();
+    }
+
+    @Test
+    void everySubscriberGetsTheUpdateAfterIdling() throws Exception {
+        List<WeatherConnection> subscribers = new ArrayList<>();
+        try {
+            for (int i = 0; i < SPELLINGS.size() * 2; i++) {
+                WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, i % 2 == 1);
+                subscribers.add(connection);
+                assertEquals(List.of("Subscribed to 1 locations.", ""),
+                        TestServer.request(connection, 0, "SUBSCRIBE:" + SPELLINGS.get(i / 2)));
+            }
+            Thread.sleep(3L * IDLE_TIMEOUT_MS);
+
+            provision("Cluj", 46.7712, 23.6236);
+
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                for (WeatherConnection subscriber : subscribers) {
+                    assertEquals("UPDATE: Cluj", subscriber.readLine());
+                    assertEquals("Current weather: Foggy", subscriber.readLine());
+                }
+            });
+        } finally {
+            for (WeatherConnection subscriber : subscribers) {
+                subscriber.close();
+            }
+        }
+    }
+
+    // Push latency runs from sending the provision to each subscriber reading its update, so it includes applying
+    // the provision and every subscriber's wait behind the others
+    @Test
+    void thousandsOfSubscribersGetTheUpdateQuickly() throws Exception {
+        List<WeatherConnection> subscribers = new ArrayList<>();
+        try (ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < SUBSCRIBERS; i++) {
+                WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, i % 2 == 1);
+                subscribers.add(connection);
+                assertEquals(List.of("Subscribed to 1 locations.", ""), TestServer.request(connection, 0, "SUBSCRIBE:Brasov"));
+            }
+            LatencyHistogram pushLatency = new LatencyHistogram();
+            AtomicLong sent = new AtomicLong();
+            List<Future<String>> received = new ArrayList<>();
+            for (WeatherConnection subscriber : subscribers) {
+                received.add(readers.submit(() -> {
+                    String line = subscriber.readLine();
+                    pushLatency.record(System.nanoTime() - sent.get());
+                    return line;
+                }));
+            }
+
+            sent.set(System.nanoTime());
+            provision("Brasov", 45.6427, 25.5887);
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                for (Future<String> line : received) {
+                    assertEquals("UPDATE: Brasov", line.get());
+                }
+            });
+            System.out.printf("%d subscribers: push latency p50 %d ms, p99 %d ms, max %d ms%n", SUBSCRIBERS,
+                    pushLatency.percentileNanos(50) / 1_000_000, pushLatency.percentileNanos(99) / 1_000_000,
+                    pushLatency.maxNanos() / 1_000_000);
+            assertTrue(pushLatency.percentileNanos(99) <= MAX_P99_MILLIS * 1_000_000,
+                    "p99 push latency above " + MAX_P99_MILLIS + " ms");
+        } finally {
+            for (WeatherConnection subscriber : subscribers) {
+                subscriber.close();
+            }
+        }
+    }
+
+    @Test
+    void subscriptionsAreCappedPerCommandAndSession() throws Exception {
+        try (WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, false)) {
+            assertEquals(List.of("ERROR: Batch too large, at most " + WeatherServer.BATCH_MAX_LOCATIONS + " locations.", ""),
+                    TestServer.request(connection, 0, "SUBSCRIBE:" + locations(0, WeatherServer.BATCH_MAX_LOCATIONS + 1)));
+            assertEquals(List.of("Subscribed to 100 locations.", ""),
+                    TestServer.request(connection, 1, "SUBSCRIBE:" + locations(0, 100)));
+            // Going past the session's limit subscribes to none of them, while names it already follows are free
+            assertEquals(List.of("ERROR: Too many subscriptions, at most " + MAX_LOCATIONS + " locations per session.", ""),
+                    TestServer.request(connection, 2, "SUBSCRIBE:" + locations(90, 100)));
+            assertEquals(List.of("Subscribed to 100 locations.", ""),
+                    TestServer.request(connection, 3, "SUBSCRIBE:" + locations(50, 100)));
+            assertEquals(List.of("ERROR: Too many subscriptions, at most " + MAX_LOCATIONS + " locations per session.", ""),
+                    TestServer.request(connection, 4, "SUBSCRIBE:" + locations(150, 1)));
+        }
+    }
+
+    @Test
+    void idleSessionsWithoutSubscriptionsAreStillClosed() throws Exception {
+        try (WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, false)) {
+            TestServer.request(connection, 0, "SUBSCRIBE:Cluj");
+            TestServer.request(connection, 1, "UNSUBSCRIBE");
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertNull(readUntilClosed(connection)));
+        }
+    }
+
+    private static void provision(String location, double latitude, double longitude) throws IOException {
+        Path update = Files.writeString(dataDir.resolve("update.json"), "[{\"location\": \"" + location + "\", \"latitude\": "
+                + latitude + ", \"longitude\": " + longitude + ", \"currentWeather\": \"Foggy\", \"temperature\": 4, "
+                + "\"forecast\": [{\"day\": \"Monday\", \"temperature\": 5}]}]");
+        try (WeatherConnection admin = WeatherConnection.open(TestServer.HOST, port, false)) {
+            TestServer.request(admin, 0, TestServer.ADMIN_LOGIN);
+            assertEquals("Weather data provisioned successfully.",
+                    TestServer.request(admin, 1, "PROVISION WEATHER DATA:" + update.toAbsolutePath()).get(0));
+        }
+    }
+
+    // count names Place-from, Place-(from+1), ... joined for a SUBSCRIBE
+    private static String locations(int from, int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            names.add("Place-" + i);
+        }
+        return String.join("|", names);
+    }
+
+    private static String readUntilClosed(WeatherConnection connection) {
+        try {
+            return connection.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Runs the server in the test JVM on a copy of the repository's data set, on a free port, with the database left out
+// and the HTTP front-end, server log and snapshot off. The server's settings are static, so each test class starts
+// it once, before anything else touches WeatherServer, and surefire gives every test class its own JVM.
+final class TestServer {
+    static final String HOST = "localhost";
+    static final String ADMIN_LOGIN = "LOGIN:Rares:1q2w3e";
+
+    private TestServer() {
+    }
+
+    // Settings given in overrides win over the test defaults; returns the port of the socket server
+    static int start(Path dataDir, Map<String, String> overrides) throws IOException, InterruptedException {
+        Files.copy(Path.of("src", "weather_data.json"), dataDir.resolve("weather_data.json"));
+        Files.copy(Path.of("src", "users.txt"), dataDir.resolve("users.txt"));
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        System.setProperty("weather.dataDir", dataDir.toString());
+        System.setProperty("weather.port", String.valueOf(port));
+        System.setProperty("weather.httpPort", "-1");
+        System.setProperty("weather.log.level", "OFF");
+        System.setProperty("weather.snapshot.enabled", "false");
+        // No JDBC driver takes this URL, so database writes fail at once instead of waiting for a connection
+        System.setProperty("db.url", "jdbc:none:");
+        overrides.forEach(System::setProperty);
+        WeatherServer.main(new String[0]);
+        awaitServer(port);
+        return port;
+    }
+
+    static void stop() {
+        WeatherServer.stopServer();
+        Log.flush();
+    }
+
+    private static void awaitServer(int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (true) {
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // Sends a tagged command and reads its reply, whose header gives the line count on either protocol
+    static List<String> request(WeatherConnection connection, long requestId, String command) throws IOException {
+        connection.sendTagged(requestId, command);
+        return readReply(connection, requestId);
+    }
+
+    // Reads the reply to a tagged command sent earlier; replies come back in the order the commands were sent
+    static List<String> readReply(WeatherConnection connection, long requestId) throws IOException {
+        String header = connection.readLine();
+        String expected = "#" + requestId + " ";
+        if (header == null || !header.startsWith(expected)) {
+            throw new IOException("Unexpected reply header: " + header);
+        }
+        int lines = Integer.parseInt(header.substring(expected.length()));
+        List<String> reply = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++) {
+            String line = connection.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed mid-reply");
+            }
+            reply.add(line);
+        }
+        return reply;
+    }
+}
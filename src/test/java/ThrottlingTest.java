@@ -0,0 +1,184 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Rate limits of the socket and HTTP front-ends, with 2 commands per second per connection and client address (bursts
+// of 4). A burst of requests gets the full bucket plus whatever refilled while it ran, and is throttled beyond that,
+// without slowing down clients on other connections.
+class ThrottlingTest {
+    private static final int RATE = 2;
+    private static final int BURST = 2 * RATE;
+    private static final int REQUESTS = 20;
+    private static final String RATE_LIMITED = "ERROR: Rate limit exceeded, slow down.";
+    private static final int POLITE_REQUESTS = 6;
+    private static final int FLOOD_WINDOW = 100;
+    // Allowed for the polite client's slowest reply during the flood, when that is more than twice its idle one
+    private static final long MAX_POLITE_LATENCY_NANOS = 100_000_000L;
+
+    @TempDir
+    static Path dataDir;
+    private static int port;
+    private static int httpPort;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        try (ServerSocket free = new ServerSocket(0)) {
+            httpPort = free.getLocalPort();
+        }
+        port = TestServer.start(dataDir, Map.of("weather.rateLimit.connection", String.valueOf(RATE),
+                "weather.httpPort", String.valueOf(httpPort)));
+    }
+
+    @AfterAll
+    static void stopServer() {
+        TestServer.stop();
+    }
+
+    @Test
+    void commandsBeyondTheBurstAreThrottled() throws Exception {
+        try (WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, false)) {
+            long start = System.nanoTime();
+            int served = 0;
+            for (int i = 0; i < REQUESTS; i++) {
+                if (!TestServer.request(connection, i, "GET_WEATHER").get(0).equals(RATE_LIMITED)) {
+                    served++;
+                }
+            }
+            assertServedWithinRate(served, start);
+        }
+    }
+
+    @Test
+    void oversizedBatchIsRejectedWithoutUsingTheRate() throws Exception {
+        String batch = "GET_WEATHER_BATCH:" + String.join("|", Collections.nCopies(WeatherServer.BATCH_MAX_LOCATIONS + 1, "Cluj"));
+        try (WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, false)) {
+            for (int i = 0; i < 2 * BURST; i++) {
+                assertEquals(List.of("ERROR: Batch too large, at most " + WeatherServer.BATCH_MAX_LOCATIONS + " locations.", ""),
+                        TestServer.request(connection, i, batch));
+            }
+            // A batch costs one token per location, but never more than the whole bucket
+            String fullBucket = "GET_WEATHER_BATCH:" + String.join("|", Collections.nCopies(3 * BURST, "Cluj"));
+            assertEquals("Batch: " + 3 * BURST, TestServer.request(connection, 100, fullBucket).get(0));
+            assertEquals(RATE_LIMITED, TestServer.request(connection, 101, "GET_WEATHER").get(0));
+        }
+    }
+
+    // A flooding connection only drains its own bucket: a client at half the rate on another connection is never
+    // throttled and answers as fast as it does on an idle server
+    @Test
+    void politeClientKeepsItsLatencyWhileAnotherConnectionFloods() throws Exception {
+        try (WeatherConnection polite = WeatherConnection.open(TestServer.HOST, port, false);
+             WeatherConnection flooder = WeatherConnection.open(TestServer.HOST, port, false)) {
+            long idle = politeLatencyNanos(polite, 0);
+            AtomicBoolean flooding = new AtomicBoolean(true);
+            AtomicLong floodSent = new AtomicLong();
+            AtomicLong floodThrottled = new AtomicLong();
+            Thread flood = Thread.ofVirtual().start(() -> {
+                try {
+                    // Pipelined, so the flooder never waits for a reply before sending more
+                    while (flooding.get()) {
+                        long first = floodSent.get();
+                        for (int i = 0; i < FLOOD_WINDOW; i++) {
+                            flooder.sendTagged(floodSent.incrementAndGet(), "GET_WEATHER");
+                        }
+                        for (int i = 0; i < FLOOD_WINDOW; i++) {
+                            if (TestServer.readReply(flooder, first + 1 + i).get(0).equals(RATE_LIMITED)) {
+                                floodThrottled.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            long flooded;
+            try {
+                flooded = politeLatencyNanos(polite, POLITE_REQUESTS);
+            } finally {
+                flooding.set(false);
+                flood.join();
+            }
+            System.out.printf("Polite client: slowest reply %.1f ms idle, %.1f ms during a flood of %d commands, %d throttled%n",
+                    idle / 1e6, flooded / 1e6, floodSent.get(), floodThrottled.get());
+            assertTrue(floodThrottled.get() > floodSent.get() / 2, "the flood was not throttled");
+            assertTrue(flooded <= Math.max(2 * idle, MAX_POLITE_LATENCY_NANOS),
+                    "slowest polite reply took " + flooded / 1e6 + " ms during the flood, " + idle / 1e6 + " ms idle");
+        }
+    }
+
+    @Test
+    void bucketsAreChargedTogetherOrNotAtAll() {
+        TokenBucket connection = new TokenBucket(0.001, 4);
+        TokenBucket user = new TokenBucket(0.001, 2);
+        assertTrue(TokenBucket.tryAcquire(connection, user, 1));
+        assertTrue(TokenBucket.tryAcquire(connection, user, 1));
+        // Turned away by the user's bucket, so the connection keeps its two remaining tokens
+        assertFalse(TokenBucket.tryAcquire(connection, user, 1));
+        assertTrue(connection.tryAcquire(2));
+        assertFalse(connection.tryAcquire(1));
+    }
+
+    @Test
+    void httpRequestsShareTheAdmissionControl() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        String base = "http://" + TestServer.HOST + ":" + httpPort;
+        String oversized = String.join(",", Collections.nCopies(WeatherServer.BATCH_MAX_LOCATIONS + 1, "Cluj"));
+        assertEquals(400, get(client, base + "/batch?locations=" + oversized).statusCode());
+
+        long start = System.nanoTime();
+        int served = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            HttpResponse<String> response = get(client, base + "/weather/Cluj");
+            if (response.statusCode() == 429) {
+                assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+            } else {
+                assertEquals(200, response.statusCode());
+                served++;
+            }
+        }
+        assertServedWithinRate(served, start);
+    }
+
+    // Sends POLITE_REQUESTS commands at half the rate limit, none of which may be throttled; returns the slowest reply
+    private static long politeLatencyNanos(WeatherConnection connection, long firstId) throws Exception {
+        long slowest = 0;
+        for (int i = 0; i < POLITE_REQUESTS; i++) {
+            Thread.sleep(2000 / RATE);
+            long start = System.nanoTime();
+            List<String> reply = TestServer.request(connection, firstId + i, "GET_WEATHER");
+            slowest = Math.max(slowest, System.nanoTime() - start);
+            assertNotEquals(RATE_LIMITED, reply.get(0));
+        }
+        return slowest;
+    }
+
+    private static void assertServedWithinRate(int served, long start) {
+        double refilled = (System.nanoTime() - start) / 1e9 * RATE;
+        assertTrue(served >= BURST && served <= BURST + refilled + 1,
+                "served " + served + " of " + REQUESTS + " with " + refilled + " tokens refilled");
+        assertTrue(served < REQUESTS, "nothing was throttled");
+    }
+
+    private static HttpResponse<String> get(HttpClient client, String url) throws Exception {
+        return client.send(HttpRequest.newBuilder(URI.create(url)).GET().build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,37 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Self-registration over the socket protocol, which only ever creates plain users
+class UserRegistrationTest {
+    @TempDir
+    static Path dataDir;
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        port = TestServer.start(dataDir, Map.of("weather.password.iterations", "1000"));
+    }
+
+    @AfterAll
+    static void stopServer() {
+        TestServer.stop();
+    }
+
+    @Test
+    void registrationAlwaysCreatesPlainUsers() throws Exception {
+        try (WeatherConnection connection = WeatherConnection.open(TestServer.HOST, port, false)) {
+            assertEquals(List.of("ERROR: Only the user role can be registered."),
+                    TestServer.request(connection, 0, "REGISTER:mallory:secret:admin"));
+            assertEquals(List.of("SUCCESS: User registered."), TestServer.request(connection, 1, "REGISTER:mallory:secret"));
+            assertEquals(List.of("user"), TestServer.request(connection, 2, "LOGIN:mallory:secret"));
+            assertEquals(List.of("ERROR: Admin login required.", ""), TestServer.request(connection, 3, "STOP"));
+        }
+    }
+}